@@ -0,0 +1,61 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.UploadProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// DataBuffer -> ByteBuffer flattening of the upload body, for an 8 MB body split in buffers of the given size.
+// The consumer marks every ByteBuffer as consumed, so the pipeline releases the DataBuffers as it goes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ByteBufferFlatteningBenchmark {
+
+    private static final int BODY_SIZE = 8 * 1024 * 1024;
+
+    @Param({"1024", "8192", "65536"})
+    private int bufferSize;
+
+    private List<DataBuffer> dataBuffers;
+    private UploadPipeline uploadPipeline;
+
+    @Setup
+    public void setUp() {
+        dataBuffers = new ArrayList<>(BODY_SIZE / bufferSize);
+        for (int i = 0; i < BODY_SIZE / bufferSize; i++) {
+            dataBuffers.add(DefaultDataBufferFactory.sharedInstance.wrap(new byte[bufferSize]));
+        }
+        uploadPipeline = new UploadPipeline(new UploadProperties(1024, 4096, 512));
+    }
+
+    @Benchmark
+    public void toByteBuffers(Blackhole blackhole) {
+        uploadPipeline.upload(Flux.fromIterable(dataBuffers), content -> content
+                        .doOnNext(byteBuffer -> {
+                            blackhole.consume(byteBuffer);
+                            byteBuffer.position(byteBuffer.limit());
+                        })
+                        .then())
+                .block();
+    }
+}
@@ -0,0 +1,86 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.model.GetObjectAttributesParts;
+import software.amazon.awssdk.services.s3.model.GetObjectAttributesResponse;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// Signing is done locally, so the pre-signed URLs of an object with hundreds of parts are generated
+// without any S3 call, the batches being spread across the cores. The range planning is measured on its own,
+// for the same number of parts.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreSignedURLBenchmark {
+
+    private static final String BUCKET = "benchmark-bucket";
+    private static final String KEY = "benchmark/object.bin";
+    private static final int PART_SIZE_IN_MB = 8;
+
+    @Param({"100", "500", "1000"})
+    private int numberOfParts;
+
+    private S3Presigner s3Presigner;
+    private S3AsyncMultipartFileRepositoryService service;
+    private GetObjectAttributesResponse response;
+
+    @Setup
+    public void setUp() {
+        S3Properties s3Properties = new S3Properties("ap-southeast-2", null, BUCKET, false, false, 50,
+                Duration.ofMinutes(5), 8, 4, null,
+                new S3Properties.Multipart(20.0, PART_SIZE_IN_MB, 4, 32, 64, 4, 1000));
+        s3Presigner = S3Presigner.builder()
+                .region(Region.AP_SOUTHEAST_2)
+                .endpointOverride(URI.create("http://localhost:9090"))
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("key", "secret")))
+                .build();
+        service = new S3AsyncMultipartFileRepositoryService(null, s3Properties, s3Presigner, null, null, null,
+                new PartPlanner(s3Properties), null, null);
+        response = GetObjectAttributesResponse.builder()
+                .objectSize((long) numberOfParts * PART_SIZE_IN_MB * 1024 * 1024)
+                .objectParts(GetObjectAttributesParts.builder().totalPartsCount(numberOfParts).build())
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        s3Presigner.close();
+    }
+
+    @Benchmark
+    public Object preSignedGetObjectURLs() {
+        return service.getPreSignedGetObjectURLs(BUCKET, KEY, response).block();
+    }
+
+    @Benchmark
+    public void ranges(Blackhole blackhole) {
+        long objectSize = response.objectSize();
+        long partSize = PART_SIZE_IN_MB * 1024 * 1024;
+        for (int partNumber = 1; partNumber <= numberOfParts; partNumber++) {
+            blackhole.consume(S3AsyncMultipartFileRepositoryService.getRange(partNumber, objectSize, partSize));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "storage.admission")
+public record AdmissionProperties(boolean enabled,
+                                  int maximumConcurrentTransfers,
+                                  int maximumConcurrentTransfersPerClient,
+                                  int reservedInteractiveTransfers,
+                                  int maximumQueuedTransfers,
+                                  int maximumQueuedTransfersPerClient,
+                                  int bytesPerSecondInMb,
+                                  int bytesPerSecondPerClientInMb,
+                                  int smallObjectSizeInKb,
+                                  Duration retryAfter,
+                                  String clientIdHeader,
+                                  Duration cleanupInterval) {
+}
@@ -0,0 +1,7 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "storage.coalescing")
+public record CoalescingProperties(boolean enabled,
+                                   int maximumReplaySizeInKb) { }
@@ -0,0 +1,10 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.List;
+
+@ConfigurationProperties(prefix = "storage.compression")
+public record CompressionProperties(boolean enabled,
+                                    int level,
+                                    List<String> contentTypes) { }
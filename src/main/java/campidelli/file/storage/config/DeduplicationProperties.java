@@ -0,0 +1,8 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "storage.deduplication")
+public record DeduplicationProperties(boolean enabled,
+                                      String directory,
+                                      String blobPrefix) { }
@@ -0,0 +1,9 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(FileCacheProperties.class)
+public class FileCacheConfiguration {
+}
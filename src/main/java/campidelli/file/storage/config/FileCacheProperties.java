@@ -0,0 +1,17 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "storage.cache")
+public record FileCacheProperties(boolean enabled,
+                                  String directory,
+                                  long maximumSizeInMb,
+                                  long maximumObjectSizeInMb,
+                                  Metadata metadata) {
+
+  public record Metadata(
+      Duration timeToLive,
+      int maximumEntries) { }
+}
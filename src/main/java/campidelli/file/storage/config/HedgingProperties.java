@@ -0,0 +1,15 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "storage.hedging")
+public record HedgingProperties(boolean enabled,
+                                double percentile,
+                                int sampleSize,
+                                Duration initialDelay,
+                                Duration minimumDelay,
+                                double budgetPercent,
+                                int maximumBurst) {
+}
@@ -0,0 +1,78 @@
+package campidelli.file.storage.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.MetricRecord;
+
+import java.time.Duration;
+import java.util.List;
+
+// Bridges the metrics collected by the AWS SDK for every API call (call and attempt durations, retries,
+// HTTP status, connection pool usage) to Micrometer, under "aws.sdk." and tagged by client and operation.
+// Durations become timers, numbers become distribution summaries and booleans become counters.
+public class MicrometerMetricPublisher implements MetricPublisher {
+
+    private static final String PREFIX = "aws.sdk.";
+
+    private final MeterRegistry registry;
+    private final String client;
+
+    public MicrometerMetricPublisher(MeterRegistry registry, String client) {
+        this.registry = registry;
+        this.client = client;
+    }
+
+    @Override
+    public void publish(MetricCollection metricCollection) {
+        Tags tags = Tags.of(
+                "client", client,
+                "service", first(metricCollection.metricValues(CoreMetric.SERVICE_ID)),
+                "operation", first(metricCollection.metricValues(CoreMetric.OPERATION_NAME)));
+        record(metricCollection, tags);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void record(MetricCollection metricCollection, Tags tags) {
+        for (MetricRecord<?> metricRecord : metricCollection) {
+            String name = toMeterName(metricRecord.metric().name());
+            Object value = metricRecord.value();
+            if (value instanceof Duration duration) {
+                Timer.builder(name)
+                        .tags(tags)
+                        .publishPercentileHistogram()
+                        .register(registry)
+                        .record(duration);
+            } else if (value instanceof Number number) {
+                DistributionSummary.builder(name)
+                        .tags(tags)
+                        .register(registry)
+                        .record(number.doubleValue());
+            } else if (value instanceof Boolean bool) {
+                Counter.builder(name)
+                        .tags(tags)
+                        .tag("value", bool.toString())
+                        .register(registry)
+                        .increment();
+            }
+        }
+        metricCollection.children().forEach(child -> record(child, tags));
+    }
+
+    private String first(List<String> values) {
+        return values.isEmpty() ? "unknown" : values.get(0);
+    }
+
+    // ApiCallDuration -> aws.sdk.api.call.duration
+    private String toMeterName(String metricName) {
+        return PREFIX + metricName.replaceAll("([a-z0-9])([A-Z])", "$1.$2").toLowerCase();
+    }
+}
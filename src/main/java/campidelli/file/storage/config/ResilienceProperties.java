@@ -0,0 +1,20 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "storage.resilience")
+public record ResilienceProperties(boolean enabled,
+                                   int maximumAttempts,
+                                   Duration firstBackoff,
+                                   Duration maximumBackoff,
+                                   double jitter,
+                                   CircuitBreaker circuitBreaker) {
+
+    public record CircuitBreaker(
+            int failureRatePercent,
+            int slidingWindowSize,
+            int minimumCalls,
+            Duration openDuration) { }
+}
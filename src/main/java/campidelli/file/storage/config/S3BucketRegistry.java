@@ -4,9 +4,11 @@ import campidelli.file.storage.service.S3SyncFileRepositoryService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 @Component
+@ConditionalOnProperty(prefix = "storage.backend", name = "type", havingValue = "s3", matchIfMissing = true)
 @Slf4j
 public class S3BucketRegistry implements InitializingBean {
 
@@ -1,13 +1,20 @@
 package campidelli.file.storage.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
@@ -18,6 +25,9 @@ import software.amazon.awssdk.services.s3.S3CrtAsyncClientBuilder;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.transfer.s3.S3TransferManager;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static software.amazon.awssdk.transfer.s3.SizeConstant.MB;
 
 @Configuration
@@ -54,12 +64,15 @@ public class S3Configuration {
     @Bean
     public S3Client s3Client(AwsCredentialsProvider credentialsProvider,
                              Region region,
-                             SdkHttpClient httpClient) {
+                             SdkHttpClient httpClient,
+                             MeterRegistry meterRegistry) {
         S3ClientBuilder builder = S3Client.builder()
                 .credentialsProvider(credentialsProvider)
                 .region(region)
                 .forcePathStyle(true)
-                .httpClient(httpClient);
+                .httpClient(httpClient)
+                .overrideConfiguration(configuration -> configuration
+                        .addMetricPublisher(new MicrometerMetricPublisher(meterRegistry, "s3-sync")));
         if (s3Properties.endpoint() != null) {
             builder.endpointOverride(s3Properties.endpoint());
         }
@@ -82,6 +95,14 @@ public class S3Configuration {
         return builder.build();
     }
 
+    // The CRT based client takes no metric publishers when it's built, so they are set on each request instead.
+    @Bean
+    public AwsRequestOverrideConfiguration s3AsyncRequestOverrideConfiguration(MeterRegistry meterRegistry) {
+        return AwsRequestOverrideConfiguration.builder()
+                .addMetricPublisher(new MicrometerMetricPublisher(meterRegistry, "s3-async"))
+                .build();
+    }
+
     @Bean
     public S3TransferManager transferManager(S3AsyncClient s3AsyncClient) {
         return S3TransferManager.builder()
@@ -89,6 +110,31 @@ public class S3Configuration {
                     .build();
     }
 
+    // Shared by every part fetch of the multipart download, so connections to S3 are pooled and reused.
+    @Bean
+    public WebClient preSignedURLWebClient() {
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("pre-signed-url")
+                .maxConnections(s3Properties.multipart().maxConnections())
+                .build();
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connectionProvider)))
+                .build();
+    }
+
+    // Uploads the parts of the streaming sync uploads. The queue is unbounded because the service only hands
+    // over as many parts as it is allowed to hold in memory.
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService syncUploadExecutor() {
+        return Executors.newFixedThreadPool(s3Properties.multipart().uploadConcurrency(),
+                new CustomizableThreadFactory("sync-upload-"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService syncDeleteExecutor() {
+        return Executors.newFixedThreadPool(s3Properties.bulkDeleteConcurrency(),
+                new CustomizableThreadFactory("sync-delete-"));
+    }
+
     @Bean
     public S3Presigner preSigner(AwsCredentialsProvider credentialsProvider,
                                  Region region) {
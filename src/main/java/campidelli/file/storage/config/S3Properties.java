@@ -13,12 +13,19 @@ public record S3Properties(String region,
                            boolean checksumValidationDisabled,
                            int maximumObjectSizeInMb,
                            Duration preSignedURLDuration,
+                           int bulkDeleteConcurrency,
+                           int zipPrefetchEntries,
                            Credentials credentials,
                            Multipart multipart) {
 
   public record Multipart(
       double throughputInGbps,
-      int minimumPartSizeInMb) { }
+      int minimumPartSizeInMb,
+      int readAheadParts,
+      int readAheadBuffersPerPart,
+      int maxConnections,
+      int uploadConcurrency,
+      int maximumCachedPlans) { }
 
   public record Credentials(
           String key,
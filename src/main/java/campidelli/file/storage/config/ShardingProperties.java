@@ -0,0 +1,15 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.List;
+
+// A shard is a bucket, optionally followed by the prefix of its keys, e.g. "bucket" or "bucket/00/". A shard
+// starting with '/' is a prefix of 'aws.s3.bucket'. No shards means the whole 'aws.s3.bucket'. The shards in use are
+// kept in 'directory', which must survive restarts.
+@ConfigurationProperties(prefix = "storage.sharding")
+public record ShardingProperties(List<String> shards,
+                                 int virtualNodesPerShard,
+                                 int rebalanceConcurrency,
+                                 String directory) {
+}
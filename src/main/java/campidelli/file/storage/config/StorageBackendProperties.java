@@ -0,0 +1,14 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "storage.backend")
+public record StorageBackendProperties(Type type,
+                                       String directory,
+                                       int readBufferSizeInKb) {
+
+  public enum Type {
+      S3,
+      FILESYSTEM
+  }
+}
@@ -0,0 +1,9 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "storage.upload")
+public record UploadProperties(int backendBufferSizeInKb,
+                               int maximumInFlightSizeInKbPerTransfer,
+                               int maximumInFlightSizeInMb) {
+}
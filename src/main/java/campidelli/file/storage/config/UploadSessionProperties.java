@@ -0,0 +1,10 @@
+package campidelli.file.storage.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "storage.upload-session")
+public record UploadSessionProperties(String directory,
+                                      Duration timeToLive) {
+}
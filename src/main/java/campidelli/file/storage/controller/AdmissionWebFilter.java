@@ -0,0 +1,162 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.config.AdmissionProperties;
+import campidelli.file.storage.dto.FileMetadata;
+import campidelli.file.storage.service.FileMetadataCache;
+import campidelli.file.storage.service.TransferAdmission;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.server.PathContainer;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Optional;
+
+// Puts the uploads and downloads of content through the TransferAdmission. Listings, metadata, deletes and the
+// other calls that don't move content skip it altogether. Transfers of objects up to 'smallObjectSizeInKb' are
+// interactive, the size being taken from the Content-Length of an upload and from the Range or the cached
+// metadata of a download; the others, and those whose size isn't known, are bulk. Clients are told apart by
+// the 'clientIdHeader', or by their address when it isn't sent.
+@Component
+public class AdmissionWebFilter implements WebFilter {
+
+    private static final long KB = 1024;
+    private static final PathPatternParser PARSER = new PathPatternParser();
+    private static final List<Route> DOWNLOADS = List.of(
+            new Route(HttpMethod.GET, PARSER.parse("/v1/{api}/file/{id}")),
+            new Route(HttpMethod.GET, PARSER.parse("/v1/async/file/multipart/{objectKey}")),
+            new Route(HttpMethod.POST, PARSER.parse("/v1/async/file/zip")));
+    private static final List<Route> UPLOADS = List.of(
+            new Route(HttpMethod.POST, PARSER.parse("/v1/{api}/file")),
+            new Route(HttpMethod.PUT, PARSER.parse("/v1/sync/file/{id}")),
+            new Route(HttpMethod.PATCH, PARSER.parse("/v1/async/file/session/{id}")));
+    private static final List<String> METADATA_IDS = List.of("list");
+
+    private final TransferAdmission admission;
+    private final FileMetadataCache metadataCache;
+    private final AdmissionProperties properties;
+
+    @Autowired
+    public AdmissionWebFilter(TransferAdmission admission,
+                              FileMetadataCache metadataCache,
+                              AdmissionProperties properties) {
+        this.admission = admission;
+        this.metadataCache = metadataCache;
+        this.properties = properties;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!admission.isEnabled()) {
+            return chain.filter(exchange);
+        }
+        Optional<TransferAdmission.Priority> priority = getPriority(exchange.getRequest());
+        if (priority.isEmpty()) {
+            return chain.filter(exchange);
+        }
+        return Mono.usingWhen(admission.admit(getClientId(exchange.getRequest()), priority.get()),
+                        permit -> chain.filter(shape(exchange, permit)),
+                        permit -> Mono.fromRunnable(permit::release))
+                .onErrorResume(TransferAdmission.RejectedException.class, e -> reject(exchange.getResponse(), e));
+    }
+
+    private Optional<TransferAdmission.Priority> getPriority(ServerHttpRequest request) {
+        // Trailing slashes are matched like the controllers do.
+        PathContainer path = PathContainer.parsePath(
+                StringUtils.trimTrailingCharacter(request.getPath().pathWithinApplication().value(), '/'));
+        Optional<PathPattern.PathMatchInfo> download = match(DOWNLOADS, request.getMethod(), path);
+        if (download.isPresent()) {
+            String id = download.get().getUriVariables().get("id");
+            if (id != null && METADATA_IDS.contains(id)) {
+                return Optional.empty();
+            }
+            return Optional.of(toPriority(getDownloadSize(request, id)));
+        }
+        if (match(UPLOADS, request.getMethod(), path).isPresent()) {
+            long contentLength = request.getHeaders().getContentLength();
+            return Optional.of(toPriority(contentLength >= 0 ? Optional.of(contentLength) : Optional.empty()));
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<PathPattern.PathMatchInfo> match(List<Route> routes, HttpMethod method,
+                                                             PathContainer path) {
+        return routes.stream()
+                .filter(route -> route.method().equals(method))
+                .map(route -> route.pattern().matchAndExtract(path))
+                .filter(matchInfo -> matchInfo != null)
+                .findFirst();
+    }
+
+    // The bytes of the requested ranges, without knowing the length of the object, or else its cached length.
+    private Optional<Long> getDownloadSize(ServerHttpRequest request, String id) {
+        try {
+            List<HttpRange> ranges = request.getHeaders().getRange();
+            if (!ranges.isEmpty()) {
+                long size = 0;
+                for (HttpRange range : ranges) {
+                    size += range.getRangeEnd(Long.MAX_VALUE) - range.getRangeStart(Long.MAX_VALUE) + 1;
+                }
+                return Optional.of(size);
+            }
+        } catch (IllegalArgumentException e) {
+            // The controller tells the client what's wrong with its ranges.
+        }
+        return id == null ? Optional.empty() : metadataCache.get(id).map(FileMetadata::getLength);
+    }
+
+    private TransferAdmission.Priority toPriority(Optional<Long> size) {
+        return size.isPresent() && size.get() <= properties.smallObjectSizeInKb() * KB
+                ? TransferAdmission.Priority.INTERACTIVE
+                : TransferAdmission.Priority.BULK;
+    }
+
+    private String getClientId(ServerHttpRequest request) {
+        String clientId = request.getHeaders().getFirst(properties.clientIdHeader());
+        if (StringUtils.hasText(clientId)) {
+            return clientId;
+        }
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        if (remoteAddress == null) {
+            return "";
+        }
+        return remoteAddress.getAddress() != null
+                ? remoteAddress.getAddress().getHostAddress()
+                : remoteAddress.getHostString();
+    }
+
+    private static ServerWebExchange shape(ServerWebExchange exchange, TransferAdmission.Permit permit) {
+        ServerHttpRequest request = new ServerHttpRequestDecorator(exchange.getRequest()) {
+            @Override
+            public Flux<DataBuffer> getBody() {
+                return permit.shape(super.getBody());
+            }
+        };
+        return exchange.mutate()
+                .request(request)
+                .response(new ShapedServerHttpResponse(exchange.getResponse(), permit))
+                .build();
+    }
+
+    private static Mono<Void> reject(ServerHttpResponse response, TransferAdmission.RejectedException e) {
+        response.setStatusCode(e.getStatusCode());
+        response.getHeaders().addAll(e.getHeaders());
+        return response.setComplete();
+    }
+
+    private record Route(HttpMethod method, PathPattern pattern) { }
+}
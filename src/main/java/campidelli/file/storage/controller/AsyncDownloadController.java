@@ -1,29 +1,58 @@
 package campidelli.file.storage.controller;
 
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import campidelli.file.storage.service.CompressionService;
 import campidelli.file.storage.service.S3AsyncFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
+import campidelli.file.storage.service.ZipArchiveService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+
 @RestController
 @RequestMapping("/v1/async/file")
 @Slf4j
 public class AsyncDownloadController {
 
+    private static final MediaType APPLICATION_ZIP = MediaType.valueOf("application/zip");
+
     private final S3AsyncFileRepositoryService fileRepositoryService;
+    private final ZipArchiveService zipArchiveService;
+    private final CompressionService compressionService;
+    private final TransferMetrics metrics;
 
     @Autowired
-    public AsyncDownloadController(S3AsyncFileRepositoryService fileRepositoryService) {
+    public AsyncDownloadController(S3AsyncFileRepositoryService fileRepositoryService,
+                                   ZipArchiveService zipArchiveService,
+                                   CompressionService compressionService,
+                                   TransferMetrics metrics) {
         this.fileRepositoryService = fileRepositoryService;
+        this.zipArchiveService = zipArchiveService;
+        this.compressionService = compressionService;
+        this.metrics = metrics;
     }
 
     @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
@@ -32,13 +61,162 @@ public class AsyncDownloadController {
         return fileRepositoryService.listFiles().collectList();
     }
 
+    @GetMapping(value = "/list", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public Flux<FileEntry> streamFiles(FileListRequest fileListRequest) {
+        return fileRepositoryService.listFiles(fileListRequest);
+    }
+
+    @GetMapping(value = "/zip")
+    public Mono<Void> downloadZip(@RequestParam("prefix") String prefix, ServerHttpResponse response) {
+        if (prefix.isBlank()) {
+            throw new ResponseStatusException(BAD_REQUEST, "Parameter prefix must be informed.");
+        }
+        return writeZip(zipArchiveService.zipFilesByPrefix(prefix), response);
+    }
+
+    // The keys are streamed into the archive as they arrive, a JSON array or a JSON string per line.
+    @PostMapping(value = "/zip", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public Mono<Void> downloadZip(ServerHttpRequest request, ServerHttpResponse response) {
+        return writeZip(zipArchiveService.zipFiles(KeyListSupport.decode(request)), response);
+    }
+
     @GetMapping(value = "/{id}")
-    public Mono<ResponseEntity<Flux<ByteBuffer>>> downloadFile(@PathVariable String id) {
+    public Mono<Void> downloadFile(@PathVariable String id, ServerWebExchange exchange) {
+        Mono<Void> download = metrics.transfer(TransferMetrics.ASYNC, "download", transfer ->
+                downloadFile(id, exchange.getRequest(), new MeteredServerHttpResponse(exchange.getResponse(), transfer)));
+        HttpHeaders requestHeaders = exchange.getRequest().getHeaders();
+        if (!requestHeaders.getIfNoneMatch().isEmpty() || requestHeaders.getIfModifiedSince() != -1) {
+            return fileRepositoryService.getFileMetadata(id)
+                    .flatMap(metadata -> exchange.checkNotModified(
+                                    ContentEncodingSupport.getETag(requestHeaders, metadata.getETag(), metadata.getEncoding()),
+                                    metadata.getLastModified())
+                            ? exchange.getResponse().setComplete()
+                            : download);
+        }
+        return download;
+    }
+
+    private Mono<Void> downloadFile(String id, ServerHttpRequest request, ServerHttpResponse response) {
+        List<HttpRange> ranges = ByteRangeSupport.getRanges(request.getHeaders());
+        if (ranges.isEmpty()) {
+            return downloadFile(id, request.getHeaders(), response);
+        }
+        if (ranges.size() == 1 && !request.getHeaders().containsKey(HttpHeaders.IF_RANGE)) {
+            return downloadRange(id, ranges.get(0), request.getHeaders(), response);
+        }
+        return fileRepositoryService.getFileMetadata(id)
+                .flatMap(metadata -> {
+                    // Ranges of an encoded object are ranges of its encoded content, they can't be decoded on
+                    // their own nor be sent as parts of a multipart/byteranges, so the whole object is sent.
+                    if (!ByteRangeSupport.isIfRangeSatisfied(request.getHeaders(), metadata)
+                            || (ranges.size() > 1 && metadata.getEncoding() != null)) {
+                        return downloadFile(id, request.getHeaders(), response);
+                    }
+                    if (ranges.size() == 1) {
+                        return downloadRange(id, ranges.get(0), request.getHeaders(), response);
+                    }
+                    return downloadRanges(id, metadata, ranges, response);
+                });
+    }
+
+    private Mono<Void> downloadFile(String id, HttpHeaders requestHeaders, ServerHttpResponse response) {
         return fileRepositoryService.getFile(id)
-            .map(fileDownload -> ResponseEntity.ok()
-                .contentLength(fileDownload.getLength())
-                .contentType(MediaType.valueOf(fileDownload.getType()))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileDownload.getName() + "\"")
-                .body(fileDownload.getContent()));
+                .flatMap(fileDownload -> writeFile(fileDownload, requestHeaders, response));
+    }
+
+    private Mono<Void> downloadRange(String id, HttpRange range, HttpHeaders requestHeaders, ServerHttpResponse response) {
+        return fileRepositoryService.getFile(id, ByteRangeSupport.toRangeHeader(range))
+                .onErrorMap(ByteRangeSupport::isRangeNotSatisfiable,
+                        e -> new ResponseStatusException(REQUESTED_RANGE_NOT_SATISFIABLE, e.getMessage(), e))
+                .flatMap(fileDownload -> {
+                    if (!ContentEncodingSupport.isAccepted(requestHeaders, fileDownload.getEncoding())) {
+                        fileDownload.getContent().take(0).subscribe();
+                        return downloadFile(id, requestHeaders, response);
+                    }
+                    return writeFile(fileDownload, requestHeaders, response);
+                });
+    }
+
+    private Mono<Void> downloadRanges(String id, FileMetadata metadata, List<HttpRange> ranges, ServerHttpResponse response) {
+        long length = metadata.getLength();
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        for (HttpRange range : ranges) {
+            ByteRangeSupport.getRangeStart(range, length);
+        }
+
+        Flux<ByteBuffer> body = Flux.fromIterable(ranges)
+                .concatMap(range -> {
+                    long start = range.getRangeStart(length);
+                    long end = range.getRangeEnd(length);
+                    ByteBuffer partHeader = ascii(ByteRangeSupport.partHeader(boundary, metadata.getType(), start, end, length));
+                    return Flux.concat(
+                            Mono.just(partHeader),
+                            fileRepositoryService.getFile(id, ByteRangeSupport.toRangeHeader(start, end))
+                                    .flatMapMany(FileDownload::getContent));
+                })
+                .concatWith(Mono.fromSupplier(() -> ascii(ByteRangeSupport.closeDelimiter(boundary))));
+
+        response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        response.getHeaders().set(HttpHeaders.ACCEPT_RANGES, ByteRangeSupport.BYTES);
+        response.getHeaders().setContentType(ByteRangeSupport.multipartByteRanges(boundary));
+        response.getHeaders().setETag(metadata.getETag());
+        response.getHeaders().setLastModified(metadata.getLastModified());
+        return writeBody(body, response);
+    }
+
+    // Objects stored compressed are sent as they are when the client accepts their encoding, and
+    // decoded while they are sent otherwise.
+    private Mono<Void> writeFile(FileDownload fileDownload, HttpHeaders requestHeaders, ServerHttpResponse response) {
+        if (fileDownload.getEncoding() != null) {
+            response.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (!ContentEncodingSupport.isAccepted(requestHeaders, fileDownload.getEncoding())) {
+                FileDownload decoded = compressionService.decompress(fileDownload);
+                decoded.setETag(ContentEncodingSupport.toDecodedETag(fileDownload.getETag()));
+                return writeFile(decoded, response);
+            }
+            response.getHeaders().set(HttpHeaders.CONTENT_ENCODING, fileDownload.getEncoding());
+        }
+        return writeFile(fileDownload, response);
+    }
+
+    private Mono<Void> writeFile(FileDownload fileDownload, ServerHttpResponse response) {
+        HttpHeaders headers = response.getHeaders();
+        if (fileDownload.getContentRange() != null) {
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+            headers.set(HttpHeaders.CONTENT_RANGE, fileDownload.getContentRange());
+        }
+        headers.set(HttpHeaders.ACCEPT_RANGES, ByteRangeSupport.BYTES);
+        headers.setETag(fileDownload.getETag());
+        headers.setLastModified(fileDownload.getLastModified());
+        if (fileDownload.getLength() >= 0) {
+            headers.setContentLength(fileDownload.getLength());
+        }
+        headers.setContentType(MediaType.valueOf(fileDownload.getType()));
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileDownload.getName() + "\"");
+        if (fileDownload.getFile() != null && response instanceof ZeroCopyHttpOutputMessage zeroCopyResponse) {
+            Mono<Void> write = Mono.defer(() -> zeroCopyResponse.writeWith(fileDownload.getFile(),
+                    fileDownload.getFileOffset(), fileDownload.getLength()));
+            return fileDownload.getLease() == null
+                    ? write
+                    : Mono.using(fileDownload.getLease()::get, release -> write, Runnable::run);
+        }
+        return writeBody(fileDownload.getContent(), response);
+    }
+
+    // The archive is assembled while it's sent, so its length is unknown and the response is chunked.
+    private Mono<Void> writeZip(Flux<ByteBuffer> archive, ServerHttpResponse response) {
+        response.getHeaders().setContentType(APPLICATION_ZIP);
+        response.getHeaders().set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"archive.zip\"");
+        return metrics.transfer(TransferMetrics.ASYNC, "zip", transfer ->
+                writeBody(archive, new MeteredServerHttpResponse(response, transfer)));
+    }
+
+    private Mono<Void> writeBody(Flux<ByteBuffer> body, ServerHttpResponse response) {
+        DataBufferFactory bufferFactory = response.bufferFactory();
+        return response.writeWith(body.map(bufferFactory::wrap));
+    }
+
+    private ByteBuffer ascii(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
     }
 }
@@ -1,70 +1,79 @@
 package campidelli.file.storage.controller;
 
-import campidelli.file.storage.config.S3Properties;
 import campidelli.file.storage.dto.PreSignedURL;
+import campidelli.file.storage.service.CompressionService;
+import campidelli.file.storage.service.S3AsyncMultipartDownloadService;
 import campidelli.file.storage.service.S3AsyncMultipartFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpResponse;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.util.DefaultUriBuilderFactory;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.function.Consumer;
 
 @RestController
 @RequestMapping("/v1/async/file/multipart")
 @Slf4j
 public class AsyncMultipartDownloadController {
     private final S3AsyncMultipartFileRepositoryService s3Service;
-    private final S3Properties s3Properties;
+    private final S3AsyncMultipartDownloadService downloadService;
+    private final CompressionService compressionService;
+    private final TransferMetrics metrics;
 
-    public AsyncMultipartDownloadController(S3AsyncMultipartFileRepositoryService s3Service, S3Properties s3Properties) {
+    public AsyncMultipartDownloadController(S3AsyncMultipartFileRepositoryService s3Service,
+                                            S3AsyncMultipartDownloadService downloadService,
+                                            CompressionService compressionService,
+                                            TransferMetrics metrics) {
         this.s3Service = s3Service;
-        this.s3Properties = s3Properties;
+        this.downloadService = downloadService;
+        this.compressionService = compressionService;
+        this.metrics = metrics;
     }
 
+    // The parts of an object stored compressed are sent as they are, with its Content-Encoding, when the client
+    // accepts it, and decoded while they are sent otherwise.
     @GetMapping(path = "/{objectKey}")
-    public Mono<Void> multipartDownload(@PathVariable("objectKey") String key, ServerHttpResponse response) {
-        Flux<DataBuffer> body = preSignedMultipartDownloadURLs(key)
-                .flatMapMany(Flux::fromIterable)
-                .flatMapSequential(this::downloadPart);
-        return response.writeWith(Flux.from(body));
-    }
-
-    private Mono<DataBuffer> downloadPart(PreSignedURL preSignedURL) {
-        log.info("Processing part {}", preSignedURL.getPartNumber());
-        DefaultUriBuilderFactory factory = new DefaultUriBuilderFactory(preSignedURL.getUrl().toExternalForm());
-        factory.setEncodingMode(DefaultUriBuilderFactory.EncodingMode.NONE);
-        return WebClient
-                .builder()
-                .uriBuilderFactory(factory)
-                .codecs(codecs -> codecs
-                        .defaultCodecs()
-                        .maxInMemorySize(s3Properties.maximumObjectSizeInMb() * 1024 * 1024))
-                .build()
-                .get()
-                .headers(getHeadersFromPreSignedURL(preSignedURL))
-                .retrieve()
-                .bodyToMono(DataBuffer.class);
-    }
-
-    private Consumer<HttpHeaders> getHeadersFromPreSignedURL(PreSignedURL url) {
-        return httpHeaders -> {
-            httpHeaders.addAll(CollectionUtils.toMultiValueMap(url.getHeaders()));
-        };
+    public Mono<Void> multipartDownload(@PathVariable("objectKey") String key,
+                                        ServerHttpRequest request,
+                                        ServerHttpResponse response) {
+        return metrics.transfer(TransferMetrics.ASYNC, "multipart-download", transfer ->
+                preSignedMultipartDownloadURLs(key)
+                        .flatMap(preSignedURLs -> {
+                            Flux<DataBuffer> body = downloadService.download(preSignedURLs);
+                            String encoding = preSignedURLs.isEmpty() ? null : preSignedURLs.get(0).getEncoding();
+                            if (encoding != null) {
+                                response.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                                if (ContentEncodingSupport.isAccepted(request.getHeaders(), encoding)) {
+                                    response.getHeaders().set(HttpHeaders.CONTENT_ENCODING, encoding);
+                                } else {
+                                    body = compressionService.decompress(body.map(this::toByteBuffer))
+                                            .map(response.bufferFactory()::wrap);
+                                }
+                            }
+                            return new MeteredServerHttpResponse(response, transfer).writeWith(body);
+                        }));
     }
 
     @GetMapping(path = "/url/{objectKey}")
     public Mono<List<PreSignedURL>> preSignedMultipartDownloadURLs(@PathVariable("objectKey") String key) {
-        return s3Service.getPreSignedGetObjectURLs(s3Properties.bucket(), key);
+        return s3Service.getPreSignedGetObjectURLs(key);
+    }
+
+    // The decoder reads the buffers after they are emitted, so their bytes are copied before they are released.
+    private ByteBuffer toByteBuffer(DataBuffer dataBuffer) {
+        byte[] bytes = new byte[dataBuffer.readableByteCount()];
+        dataBuffer.read(bytes);
+        DataBufferUtils.release(dataBuffer);
+        return ByteBuffer.wrap(bytes);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,43 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.dto.TransferProgress;
+import campidelli.file.storage.service.TransferRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// The uploads of the async API running in this instance: list them with their rate and ETA, follow one of them
+// over SSE, or cancel it, e.g. when it takes too much of the bandwidth. Uploads of the sync API and downloads
+// aren't listed.
+@RestController
+@RequestMapping("/v1/async/transfers")
+public class AsyncTransferController {
+
+    private final TransferRegistry transferRegistry;
+
+    @Autowired
+    public AsyncTransferController(TransferRegistry transferRegistry) {
+        this.transferRegistry = transferRegistry;
+    }
+
+    @GetMapping
+    public Flux<TransferProgress> listTransfers() {
+        return Flux.defer(() -> Flux.fromIterable(transferRegistry.list()));
+    }
+
+    @GetMapping(value = "/{id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<TransferProgress>> watchTransfer(@PathVariable String id) {
+        return Flux.defer(() -> transferRegistry.watch(id))
+                .map(progress -> ServerSentEvent.builder(progress)
+                        .event(progress.getState())
+                        .build());
+    }
+
+    @DeleteMapping("/{id}")
+    public Mono<TransferProgress> cancelTransfer(@PathVariable String id) {
+        return Mono.fromCallable(() -> transferRegistry.cancel(id));
+    }
+}
@@ -1,14 +1,19 @@
 package campidelli.file.storage.controller;
 
+import campidelli.file.storage.dto.DeleteResult;
 import campidelli.file.storage.service.S3AsyncFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpHeaders;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import static java.net.URLConnection.guessContentTypeFromName;
@@ -20,20 +25,24 @@ import static org.springframework.http.HttpStatus.BAD_REQUEST;
 public class AsyncUploadController {
 
     private final S3AsyncFileRepositoryService fileRepositoryService;
+    private final TransferMetrics metrics;
 
     @Autowired
-    public AsyncUploadController(S3AsyncFileRepositoryService fileRepositoryService) {
+    public AsyncUploadController(S3AsyncFileRepositoryService fileRepositoryService, TransferMetrics metrics) {
         this.fileRepositoryService = fileRepositoryService;
+        this.metrics = metrics;
     }
 
+    // The Content-Length of the request also counts the multipart boundaries, only the one of the part is the
+    // length of the file. Files without it, e.g. streamed by producers that don't know their size upfront, are
+    // uploaded in parts as they arrive.
     @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public Mono<Void> uploadFile(@RequestHeader HttpHeaders headers, @RequestPart("file") FilePart file) {
-        long length = headers.getContentLength() < 0 ? file.headers().getContentLength() : headers.getContentLength();
-        if (length < 0) {
-            throw new ResponseStatusException(BAD_REQUEST, "Header Content-Length must informed.");
-        }
-        return fileRepositoryService.saveFile(file.content(), guessContentTypeFromName(file.filename()), length, file.filename());
+    public Mono<Void> uploadFile(@RequestPart("file") FilePart file) {
+        Long length = file.headers().getContentLength() < 0 ? null : file.headers().getContentLength();
+        return metrics.transfer(TransferMetrics.ASYNC, "upload", transfer -> fileRepositoryService.saveFile(
+                transfer.count(file.content(), DataBuffer::readableByteCount),
+                guessContentTypeFromName(file.filename()), length, file.filename()));
     }
 
     @DeleteMapping( "/{id}")
@@ -41,4 +50,20 @@ public class AsyncUploadController {
     public Mono<Void> deleteFile(@PathVariable String id) {
         return fileRepositoryService.deleteFile(id);
     }
+
+    // The keys are streamed into the batches as they arrive, so a list of any size can be deleted.
+    @PostMapping(value = "/delete",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<DeleteResult> deleteFiles(ServerHttpRequest request) {
+        return fileRepositoryService.deleteFiles(KeyListSupport.decode(request));
+    }
+
+    @DeleteMapping(params = "prefix", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<DeleteResult> deleteFilesByPrefix(@RequestParam("prefix") String prefix) {
+        if (!StringUtils.hasText(prefix)) {
+            throw new ResponseStatusException(BAD_REQUEST, "Parameter prefix must be informed.");
+        }
+        return fileRepositoryService.deleteFilesByPrefix(prefix);
+    }
 }
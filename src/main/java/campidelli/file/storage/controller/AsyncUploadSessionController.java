@@ -0,0 +1,86 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.dto.UploadSession;
+import campidelli.file.storage.service.S3AsyncUploadSessionService;
+import campidelli.file.storage.service.TransferMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static java.net.URLConnection.guessContentTypeFromName;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+// Resumable uploads: create a session, PATCH the chunks at their offsets, ask for the current offset
+// after a failure to know where to resume from, and complete the session once every chunk was sent.
+@RestController
+@RequestMapping("/v1/async/file/session")
+@Slf4j
+public class AsyncUploadSessionController {
+
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+
+    private final S3AsyncUploadSessionService uploadSessionService;
+    private final TransferMetrics metrics;
+
+    @Autowired
+    public AsyncUploadSessionController(S3AsyncUploadSessionService uploadSessionService, TransferMetrics metrics) {
+        this.uploadSessionService = uploadSessionService;
+        this.metrics = metrics;
+    }
+
+    @PostMapping
+    public Mono<ResponseEntity<UploadSession>> createSession(@RequestParam("key") String key,
+                                                             @RequestParam(value = "type", required = false) String type,
+                                                             UriComponentsBuilder uriBuilder) {
+        String contentType = type == null ? guessContentTypeFromName(key) : type;
+        return uploadSessionService.createSession(key, contentType)
+                .map(session -> ResponseEntity
+                        .created(uriBuilder.path("/v1/async/file/session/{id}").build(session.getId()))
+                        .header(UPLOAD_OFFSET, String.valueOf(session.getOffset()))
+                        .body(session));
+    }
+
+    @GetMapping("/{id}")
+    public Mono<ResponseEntity<UploadSession>> getSession(@PathVariable String id) {
+        return uploadSessionService.getSession(id)
+                .map(session -> ResponseEntity.ok()
+                        .header(UPLOAD_OFFSET, String.valueOf(session.getOffset()))
+                        .body(session));
+    }
+
+    @PatchMapping("/{id}")
+    public Mono<ResponseEntity<Void>> appendChunk(@PathVariable String id,
+                                                  @RequestHeader(UPLOAD_OFFSET) long offset,
+                                                  @RequestHeader HttpHeaders headers,
+                                                  @RequestBody Flux<DataBuffer> content) {
+        long length = headers.getContentLength();
+        if (length <= 0) {
+            throw new ResponseStatusException(BAD_REQUEST, "Header Content-Length must informed.");
+        }
+        return metrics.transfer(TransferMetrics.ASYNC, "upload-chunk", transfer -> uploadSessionService
+                        .appendChunk(id, offset, length, transfer.count(content, DataBuffer::readableByteCount)))
+                .map(session -> ResponseEntity.noContent()
+                        .header(UPLOAD_OFFSET, String.valueOf(session.getOffset()))
+                        .build());
+    }
+
+    @PostMapping("/{id}/complete")
+    @ResponseStatus(HttpStatus.OK)
+    public Mono<Void> completeSession(@PathVariable String id) {
+        return uploadSessionService.completeSession(id);
+    }
+
+    @DeleteMapping("/{id}")
+    @ResponseStatus(HttpStatus.OK)
+    public Mono<Void> abortSession(@PathVariable String id) {
+        return uploadSessionService.abortSession(id);
+    }
+}
@@ -0,0 +1,57 @@
+package campidelli.file.storage.controller;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Passes every buffer of the body through map() on its way to the response. A file is sent with zero-copy when
+// the response supports it and the subclass allows it, and is read into buffers that are mapped like any other
+// body otherwise.
+abstract class BodyMappingServerHttpResponse extends ServerHttpResponseDecorator implements ZeroCopyHttpOutputMessage {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    BodyMappingServerHttpResponse(ServerHttpResponse delegate) {
+        super(delegate);
+    }
+
+    abstract Flux<DataBuffer> map(Flux<DataBuffer> body);
+
+    boolean isZeroCopyAllowed() {
+        return true;
+    }
+
+    Mono<Void> writeWithZeroCopy(ZeroCopyHttpOutputMessage response, Path file, long position, long count) {
+        return response.writeWith(file, position, count);
+    }
+
+    @Override
+    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+        return super.writeWith(map(Flux.from(body)));
+    }
+
+    @Override
+    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+        return super.writeAndFlushWith(Flux.from(body).map(publisher -> map(Flux.from(publisher))));
+    }
+
+    @Override
+    public Mono<Void> writeWith(Path file, long position, long count) {
+        if (isZeroCopyAllowed() && getDelegate() instanceof ZeroCopyHttpOutputMessage zeroCopyResponse) {
+            return writeWithZeroCopy(zeroCopyResponse, file, position, count);
+        }
+        return writeWith(DataBufferUtils.takeUntilByteCount(
+                DataBufferUtils.readAsynchronousFileChannel(
+                        () -> AsynchronousFileChannel.open(file, StandardOpenOption.READ),
+                        position, bufferFactory(), READ_BUFFER_SIZE), count));
+    }
+}
@@ -0,0 +1,98 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.dto.FileMetadata;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+final class ByteRangeSupport {
+
+    static final String BYTES = "bytes";
+
+    private ByteRangeSupport() {
+    }
+
+    static List<HttpRange> getRanges(HttpHeaders headers) {
+        try {
+            return headers.getRange();
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(REQUESTED_RANGE_NOT_SATISFIABLE, e.getMessage());
+        }
+    }
+
+    static boolean isIfRangeSatisfied(HttpHeaders headers, FileMetadata metadata) {
+        String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        if (!StringUtils.hasText(ifRange)) {
+            return true;
+        }
+        // If-Range requires a strong comparison, so weak ETags never match.
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(metadata.getETag());
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return metadata.getLastModified() != null
+                    && date.toInstant().equals(metadata.getLastModified().truncatedTo(ChronoUnit.SECONDS));
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    static String toRangeHeader(HttpRange range) {
+        return HttpRange.toString(List.of(range));
+    }
+
+    static String toRangeHeader(long start, long end) {
+        return String.format("%s=%d-%d", BYTES, start, end);
+    }
+
+    static long getRangeStart(HttpRange range, long length) {
+        long start = range.getRangeStart(length);
+        if (start >= length) {
+            throw new ResponseStatusException(REQUESTED_RANGE_NOT_SATISFIABLE,
+                    "Range " + range + " is outside of the " + length + " bytes of the file.");
+        }
+        return start;
+    }
+
+    static boolean isRangeNotSatisfiable(Throwable throwable) {
+        return throwable instanceof S3Exception s3Exception
+                && s3Exception.statusCode() == REQUESTED_RANGE_NOT_SATISFIABLE.value();
+    }
+
+    static MediaType multipartByteRanges(String boundary) {
+        return new MediaType("multipart", "byteranges", Map.of("boundary", boundary));
+    }
+
+    static String partHeader(String boundary, String type, long start, long end, long length) {
+        StringBuilder header = new StringBuilder()
+                .append("\r\n--").append(boundary).append("\r\n");
+        if (type != null) {
+            header.append(HttpHeaders.CONTENT_TYPE).append(": ").append(type).append("\r\n");
+        }
+        return header
+                .append(HttpHeaders.CONTENT_RANGE).append(": ")
+                .append(BYTES).append(' ').append(start).append('-').append(end).append('/').append(length)
+                .append("\r\n\r\n")
+                .toString();
+    }
+
+    static String closeDelimiter(String boundary) {
+        return "\r\n--" + boundary + "--\r\n";
+    }
+}
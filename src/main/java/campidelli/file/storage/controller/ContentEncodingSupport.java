@@ -0,0 +1,53 @@
+package campidelli.file.storage.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.StringUtils;
+
+final class ContentEncodingSupport {
+
+    private ContentEncodingSupport() {
+    }
+
+    // Whether the stored encoding can be sent as it is, or the content must be decoded first.
+    static boolean isAccepted(HttpHeaders headers, String encoding) {
+        if (encoding == null) {
+            return true;
+        }
+        for (String value : headers.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String token : StringUtils.tokenizeToStringArray(value, ",")) {
+                String[] parameters = StringUtils.tokenizeToStringArray(token, ";");
+                String coding = parameters[0];
+                if ((coding.equalsIgnoreCase(encoding) || coding.equals("*")) && !isRejected(parameters)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The decoded content is another representation of the object, so it can't share the strong ETag of the
+    // stored one. A weak ETag still lets clients revalidate it, but never satisfies an If-Range.
+    static String toDecodedETag(String eTag) {
+        return eTag == null || eTag.startsWith("W/") ? eTag : "W/" + eTag;
+    }
+
+    // The ETag of the representation a request with these headers gets.
+    static String getETag(HttpHeaders headers, String eTag, String encoding) {
+        return isAccepted(headers, encoding) ? eTag : toDecodedETag(eTag);
+    }
+
+    // A quality value of 0 means "not acceptable", e.g. "gzip;q=0".
+    private static boolean isRejected(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].replace(" ", "");
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) == 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,31 @@
+package campidelli.file.storage.controller;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+// Decodes a list of keys as it arrives, either a JSON array or NDJSON with a JSON string per line. Neither is
+// held in memory as a whole, so only a single key is bound by the in-memory limit of the codecs, not the list.
+// A Flux<String> @RequestBody can't do it: Jackson doesn't decode strings and StringDecoder splits on new lines.
+final class KeyListSupport {
+
+    private static final Jackson2JsonDecoder DECODER = new Jackson2JsonDecoder();
+    private static final ResolvableType KEY_TYPE = ResolvableType.forClass(String.class);
+
+    private KeyListSupport() {
+    }
+
+    static Flux<String> decode(ServerHttpRequest request) {
+        return DECODER.decode(request.getBody(), KEY_TYPE, request.getHeaders().getContentType(), Map.of())
+                .cast(String.class)
+                .onErrorMap(DecodingException.class,
+                        e -> new ResponseStatusException(BAD_REQUEST, "The keys must be a JSON array of strings, or a JSON string per line.", e));
+    }
+}
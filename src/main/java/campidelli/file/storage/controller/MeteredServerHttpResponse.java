@@ -0,0 +1,32 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.service.TransferMetrics;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+
+// Counts the bytes written to the response, including the ones sent with zero-copy.
+final class MeteredServerHttpResponse extends BodyMappingServerHttpResponse {
+
+    private final TransferMetrics.Transfer transfer;
+
+    MeteredServerHttpResponse(ServerHttpResponse delegate, TransferMetrics.Transfer transfer) {
+        super(delegate);
+        this.transfer = transfer;
+    }
+
+    @Override
+    Flux<DataBuffer> map(Flux<DataBuffer> body) {
+        return transfer.count(body, DataBuffer::readableByteCount);
+    }
+
+    @Override
+    Mono<Void> writeWithZeroCopy(ZeroCopyHttpOutputMessage response, Path file, long position, long count) {
+        return super.writeWithZeroCopy(response, file, position, count)
+                .doOnSuccess(ignored -> transfer.addBytes(count));
+    }
+}
@@ -0,0 +1,37 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.service.TransferAdmission;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+
+// Writes the response at the pace the permit of the transfer allows. A file the permit may have to slow down is
+// read into buffers, as zero-copy can only send it all at once.
+final class ShapedServerHttpResponse extends BodyMappingServerHttpResponse {
+
+    private final TransferAdmission.Permit permit;
+
+    ShapedServerHttpResponse(ServerHttpResponse delegate, TransferAdmission.Permit permit) {
+        super(delegate);
+        this.permit = permit;
+    }
+
+    @Override
+    Flux<DataBuffer> map(Flux<DataBuffer> body) {
+        return permit.shape(body);
+    }
+
+    @Override
+    boolean isZeroCopyAllowed() {
+        return !permit.isShaped();
+    }
+
+    @Override
+    Mono<Void> writeWithZeroCopy(ZeroCopyHttpOutputMessage response, Path file, long position, long count) {
+        return permit.acquire(count).then(super.writeWithZeroCopy(response, file, position, count));
+    }
+}
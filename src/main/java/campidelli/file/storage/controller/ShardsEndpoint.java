@@ -0,0 +1,58 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.service.ShardRebalancer;
+import campidelli.file.storage.service.ShardRouter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// GET /actuator/shards shows the shards and the progress of a rebalance. POST /actuator/shards with
+// {"shards": "bucket-a,bucket-b/00/"} rebalances the keys to the given shards, online. It's excluded from the web
+// exposure of the actuator, and must only be exposed on a management port the clients can't reach.
+@Component
+@Endpoint(id = "shards")
+public class ShardsEndpoint {
+
+    private final ShardRouter shardRouter;
+    private final ShardRebalancer shardRebalancer;
+
+    @Autowired
+    public ShardsEndpoint(ShardRouter shardRouter, ShardRebalancer shardRebalancer) {
+        this.shardRouter = shardRouter;
+        this.shardRebalancer = shardRebalancer;
+    }
+
+    @ReadOperation
+    public Map<String, Object> shards() {
+        return Map.of(
+                "shards", toStrings(shardRouter.getShards()),
+                "previousShards", toStrings(shardRouter.getPreviousShards()),
+                "rebalancing", shardRouter.isRebalancing(),
+                "running", shardRebalancer.isRunning(),
+                "movedObjects", shardRebalancer.getMovedObjects(),
+                "failedObjects", shardRebalancer.getFailedObjects());
+    }
+
+    @WriteOperation
+    public Map<String, Object> rebalance(String shards) {
+        List<String> specs = Arrays.stream(shards.split(","))
+                .map(String::trim)
+                .filter(StringUtils::hasText)
+                .toList();
+        shardRebalancer.rebalance(shardRouter.parse(specs));
+        return shards();
+    }
+
+    private static List<String> toStrings(List<ShardRouter.Shard> shards) {
+        return shards.stream()
+                .map(ShardRouter.Shard::toString)
+                .toList();
+    }
+}
@@ -1,18 +1,42 @@
 package campidelli.file.storage.controller;
 
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import campidelli.file.storage.service.CompressionService;
 import campidelli.file.storage.service.S3SyncFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 
 @RestController
 @RequestMapping("/v1/sync/file")
@@ -20,34 +44,153 @@ import java.util.List;
 public class SyncDownloadController {
 
     private final S3SyncFileRepositoryService fileRepositoryService;
+    private final ObjectMapper objectMapper;
+    private final TransferMetrics metrics;
 
     @Autowired
-    public SyncDownloadController(S3SyncFileRepositoryService fileRepositoryService) {
+    public SyncDownloadController(S3SyncFileRepositoryService fileRepositoryService,
+                                  ObjectMapper objectMapper,
+                                  TransferMetrics metrics) {
         this.fileRepositoryService = fileRepositoryService;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
     }
 
     @GetMapping(value = "/", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<List<String>> listFiles() {
-        long start = System.currentTimeMillis();
-        ResponseEntity<List<String>> response = ResponseEntity.ok(fileRepositoryService.listFiles());
-        log.info("GET '/v1/sync/file' elapsed time: {} ms.", System.currentTimeMillis() - start);
-        return response;
+        return ResponseEntity.ok(metrics.time(TransferMetrics.SYNC, "list", () -> fileRepositoryService.listFiles()));
     }
 
-    @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable String id) {
-        long start = System.currentTimeMillis();
-        InputStream fileStream = fileRepositoryService.getFile(id);
-
+    @GetMapping(value = "/list", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamFiles(FileListRequest fileListRequest) {
         final StreamingResponseBody body = outputStream -> {
-            int numberOfBytesToWrite;
-            byte[] data = new byte[1024];
-            while ((numberOfBytesToWrite = fileStream.read(data, 0, data.length)) != -1) {
-                outputStream.write(data, 0, numberOfBytesToWrite);
+            try (Stream<FileEntry> entries = fileRepositoryService.listFiles(fileListRequest)) {
+                Iterator<FileEntry> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    outputStream.write(objectMapper.writeValueAsBytes(iterator.next()));
+                    outputStream.write('\n');
+                    outputStream.flush();
+                }
             }
-            fileStream.close();
         };
-        log.info("GET '/v1/sync/file/{}' elapsed time: {} ms.", id, System.currentTimeMillis() - start);
-        return ResponseEntity.ok(body);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable String id,
+                                                              @RequestHeader HttpHeaders headers,
+                                                              WebRequest webRequest) {
+        if (!headers.getIfNoneMatch().isEmpty() || headers.getIfModifiedSince() != -1) {
+            FileMetadata metadata = fileRepositoryService.getFileMetadata(id);
+            String eTag = ContentEncodingSupport.getETag(headers, metadata.getETag(), metadata.getEncoding());
+            if (webRequest.checkNotModified(eTag, metadata.getLastModified().toEpochMilli())) {
+                // The 304 response has already been prepared.
+                return null;
+            }
+        }
+        List<HttpRange> ranges = ByteRangeSupport.getRanges(headers);
+        if (ranges.isEmpty()) {
+            return downloadObject(id, null, headers);
+        }
+        if (ranges.size() == 1 && !headers.containsKey(HttpHeaders.IF_RANGE)) {
+            return downloadObject(id, ranges.get(0), headers);
+        }
+        FileMetadata metadata = fileRepositoryService.getFileMetadata(id);
+        // Ranges of an encoded object can't be sent as parts of a multipart/byteranges.
+        if (!ByteRangeSupport.isIfRangeSatisfied(headers, metadata)
+                || (ranges.size() > 1 && metadata.getEncoding() != null)) {
+            return downloadObject(id, null, headers);
+        }
+        if (ranges.size() == 1) {
+            return downloadObject(id, ranges.get(0), headers);
+        }
+        return downloadRanges(id, metadata, ranges);
+    }
+
+    private ResponseEntity<StreamingResponseBody> downloadObject(String id, HttpRange range, HttpHeaders requestHeaders) {
+        ResponseInputStream<GetObjectResponse> fileStream;
+        try {
+            fileStream = fileRepositoryService.getFile(id, range == null ? null : ByteRangeSupport.toRangeHeader(range));
+        } catch (S3Exception e) {
+            if (ByteRangeSupport.isRangeNotSatisfiable(e)) {
+                throw new ResponseStatusException(REQUESTED_RANGE_NOT_SATISFIABLE, e.getMessage(), e);
+            }
+            throw e;
+        }
+
+        GetObjectResponse object = fileStream.response();
+        // Objects stored compressed are decoded for clients that don't accept their encoding, a range of the
+        // encoded content would be useless to them so the whole object is sent instead.
+        boolean decode = CompressionService.GZIP.equals(object.contentEncoding())
+                && !ContentEncodingSupport.isAccepted(requestHeaders, object.contentEncoding());
+        if (decode && range != null) {
+            fileStream.abort();
+            return downloadObject(id, null, requestHeaders);
+        }
+
+        // The body is written after this method returns, so that's where the transfer is measured.
+        final StreamingResponseBody body = outputStream -> metrics.transferBlocking(TransferMetrics.SYNC, "download", transfer -> {
+            try (InputStream inputStream = decode ? new GZIPInputStream(fileStream) : fileStream) {
+                transfer.addBytes(copy(inputStream, outputStream));
+            }
+        });
+        ResponseEntity.BodyBuilder builder = range == null
+                ? ResponseEntity.ok()
+                : ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).header(HttpHeaders.CONTENT_RANGE, object.contentRange());
+        builder.header(HttpHeaders.ACCEPT_RANGES, ByteRangeSupport.BYTES)
+                .eTag(decode ? ContentEncodingSupport.toDecodedETag(object.eTag()) : object.eTag())
+                .lastModified(object.lastModified());
+        if (object.contentEncoding() != null) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (!decode) {
+            if (object.contentEncoding() != null) {
+                builder.header(HttpHeaders.CONTENT_ENCODING, object.contentEncoding());
+            }
+            builder.contentLength(object.contentLength());
+        } else if (object.metadata().containsKey(CompressionService.UNCOMPRESSED_LENGTH)) {
+            builder.contentLength(Long.parseLong(object.metadata().get(CompressionService.UNCOMPRESSED_LENGTH)));
+        }
+        return builder.body(body);
+    }
+
+    private ResponseEntity<StreamingResponseBody> downloadRanges(String id, FileMetadata metadata, List<HttpRange> ranges) {
+        long length = metadata.getLength();
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        for (HttpRange range : ranges) {
+            ByteRangeSupport.getRangeStart(range, length);
+        }
+
+        final StreamingResponseBody body = outputStream -> metrics.transferBlocking(TransferMetrics.SYNC, "download", transfer -> {
+            for (HttpRange range : ranges) {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                String partHeader = ByteRangeSupport.partHeader(boundary, metadata.getType(), start, end, length);
+                outputStream.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+                try (InputStream fileStream = fileRepositoryService.getFile(id, ByteRangeSupport.toRangeHeader(start, end))) {
+                    transfer.addBytes(copy(fileStream, outputStream));
+                }
+            }
+            outputStream.write(ByteRangeSupport.closeDelimiter(boundary).getBytes(StandardCharsets.US_ASCII));
+        });
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .header(HttpHeaders.ACCEPT_RANGES, ByteRangeSupport.BYTES)
+                .eTag(metadata.getETag())
+                .lastModified(metadata.getLastModified())
+                .contentType(ByteRangeSupport.multipartByteRanges(boundary))
+                .body(body);
+    }
+
+    static long copy(InputStream fileStream, OutputStream outputStream) throws IOException {
+        long numberOfBytesWritten = 0;
+        int numberOfBytesToWrite;
+        byte[] data = new byte[1024];
+        while ((numberOfBytesToWrite = fileStream.read(data, 0, data.length)) != -1) {
+            outputStream.write(data, 0, numberOfBytesToWrite);
+            numberOfBytesWritten += numberOfBytesToWrite;
+        }
+        return numberOfBytesWritten;
     }
 }
@@ -1,11 +1,26 @@
 package campidelli.file.storage.controller;
 
+import campidelli.file.storage.dto.DeleteResult;
 import campidelli.file.storage.service.S3SyncFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
 
 @RestController
 @RequestMapping("/v1/sync/file")
@@ -13,23 +28,70 @@ import org.springframework.web.multipart.MultipartFile;
 public class SyncUploadController {
 
     private final S3SyncFileRepositoryService fileRepositoryService;
+    private final ObjectMapper objectMapper;
+    private final TransferMetrics metrics;
 
     @Autowired
-    public SyncUploadController(S3SyncFileRepositoryService fileRepositoryService) {
+    public SyncUploadController(S3SyncFileRepositoryService fileRepositoryService,
+                                ObjectMapper objectMapper,
+                                TransferMetrics metrics) {
         this.fileRepositoryService = fileRepositoryService;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
     }
 
     @PostMapping(value = "/", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public void uploadFile(@RequestParam("file") MultipartFile file) {
-        long start = System.currentTimeMillis();
-        fileRepositoryService.saveFile(file);
-        log.info("POST '/v1/sync/file' elapsed time: {} ms.", System.currentTimeMillis() - start);
+    public void uploadFile(@RequestParam("file") MultipartFile file) throws IOException {
+        metrics.transferBlocking(TransferMetrics.SYNC, "upload", transfer -> {
+            fileRepositoryService.saveFile(file);
+            transfer.addBytes(file.getSize());
+        });
+    }
+
+    // Takes the raw request body, which is streamed to S3 as it arrives instead of being written to a temporary file.
+    @PutMapping("/{id}")
+    public void uploadFile(@PathVariable String id,
+                           @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String type,
+                           InputStream body) throws IOException {
+        metrics.transferBlocking(TransferMetrics.SYNC, "upload", transfer ->
+                fileRepositoryService.saveFile(id, type, transfer.count(body)));
     }
 
     @DeleteMapping( "/{id}")
     public void deleteFile(@PathVariable String id) {
-        long start = System.currentTimeMillis();
         fileRepositoryService.deleteFile(id);
-        log.info("DELETE '/v1/sync/file/{}' - elapsed time: {} ms.", id, System.currentTimeMillis() - start);
+    }
+
+    @PostMapping(value = "/delete", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> deleteFiles(@RequestBody List<String> keys) {
+        final StreamingResponseBody body = outputStream ->
+                fileRepositoryService.deleteFiles(keys.stream(), results -> write(results, outputStream));
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    @DeleteMapping(value = "/", params = "prefix", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> deleteFilesByPrefix(@RequestParam("prefix") String prefix) {
+        if (!StringUtils.hasText(prefix)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter prefix must be informed.");
+        }
+        final StreamingResponseBody body = outputStream ->
+                fileRepositoryService.deleteFilesByPrefix(prefix, results -> write(results, outputStream));
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    private void write(List<DeleteResult> results, OutputStream outputStream) {
+        try {
+            for (DeleteResult result : results) {
+                outputStream.write(objectMapper.writeValueAsBytes(result));
+                outputStream.write('\n');
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
@@ -0,0 +1,16 @@
+package campidelli.file.storage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeleteResult {
+    private String key;
+    private boolean deleted;
+    private String error;
+}
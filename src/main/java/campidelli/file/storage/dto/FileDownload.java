@@ -5,6 +5,9 @@ import lombok.Data;
 import reactor.core.publisher.Flux;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.Supplier;
 
 @Data
 @Builder
@@ -13,4 +16,17 @@ public class FileDownload {
     private String type;
     private long length;
     private String name;
+    private String eTag;
+    private Instant lastModified;
+    // Content-Encoding the object was stored with, e.g. "gzip", and the length of its decoded content, if known.
+    private String encoding;
+    private Long decodedLength;
+    // Set only when a byte range was requested, e.g. "bytes 0-1023/146515".
+    private String contentRange;
+    // Set when the content is served from a local file, so it can be written with zero-copy.
+    private Path file;
+    private long fileOffset;
+    // Set when the local file may be deleted while it's written. Whoever writes it with zero-copy takes a lease
+    // when the write starts, which fails if the file is already gone, and runs the release it returns when done.
+    private Supplier<Runnable> lease;
 }
@@ -0,0 +1,21 @@
+package campidelli.file.storage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileEntry {
+    private String key;
+    private Long size;
+    private String eTag;
+    private Instant lastModified;
+    // True for the common prefixes rolled up by a delimiter, which have no size, ETag or last modified date.
+    private boolean directory;
+}
@@ -0,0 +1,19 @@
+package campidelli.file.storage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileListRequest {
+    private String prefix;
+    private String delimiter;
+    private String startAfter;
+    private String continuationToken;
+    // Number of keys fetched per ListObjectsV2 call, S3 caps it at 1,000.
+    private Integer pageSize;
+}
@@ -0,0 +1,17 @@
+package campidelli.file.storage.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Instant;
+
+@Data
+@Builder
+public class FileMetadata {
+    private String name;
+    private String type;
+    private long length;
+    private String eTag;
+    private Instant lastModified;
+    private String encoding;
+}
@@ -9,12 +9,22 @@ import java.net.URL;
 import java.util.List;
 import java.util.Map;
 
+// Besides the URL, each part carries the plan of the download: its byte range, when the object is split in
+// ranges, the number of parts and how many of them should be downloaded at once. Ranges are ranges of the object as
+// stored, so the parts of an object stored with a Content-Encoding must be put together before they are decoded.
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class PreSignedURL {
     private int partNumber;
     private URL url;
     private Map<String, List<String>> headers;
+    private Long offset;
+    private Long length;
+    private int partCount;
+    private int concurrency;
+    // Content-Encoding the object was stored with, e.g. "gzip", and the length of its decoded content, if known.
+    private String encoding;
+    private Long decodedLength;
 }
@@ -0,0 +1,24 @@
+package campidelli.file.storage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferProgress {
+    private String id;
+    private String key;
+    private String state;
+    private long transferredBytes;
+    // Null when the length of the upload isn't known upfront, and so is the ETA.
+    private Long totalBytes;
+    private long bytesPerSecond;
+    private Long etaInSeconds;
+    private Instant startedAt;
+}
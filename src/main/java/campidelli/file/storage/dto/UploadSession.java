@@ -0,0 +1,28 @@
+package campidelli.file.storage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadSession {
+    private String id;
+    private String key;
+    private String type;
+    private String uploadId;
+    private long offset;
+    // Bytes received after the last part, which are held until they make a part of at least 5 MB.
+    private long pendingLength;
+    @Builder.Default
+    private List<UploadSessionPart> parts = new ArrayList<>();
+    private Instant createdAt;
+    private Instant expiresAt;
+}
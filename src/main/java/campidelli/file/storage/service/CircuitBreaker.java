@@ -0,0 +1,105 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.ResilienceProperties;
+import lombok.extern.slf4j.Slf4j;
+
+// Stops sending requests once 'failureRatePercent' of the last 'slidingWindowSize' ones failed, with at least
+// 'minimumCalls' of them. After 'openDuration' a single request is let through: the breaker closes again when it
+// succeeds and stays open for another 'openDuration' when it fails.
+@Slf4j
+class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final ResilienceProperties.CircuitBreaker properties;
+    private final boolean[] failedCalls;
+    private int nextCall;
+    private int calls;
+    private int failures;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    CircuitBreaker(ResilienceProperties.CircuitBreaker properties) {
+        this.properties = properties;
+        this.failedCalls = new boolean[Math.max(1, properties.slidingWindowSize())];
+    }
+
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < properties.openDuration().toNanos()) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = true;
+                return true;
+            default:
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            close();
+            return;
+        }
+        record(false);
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && calls >= properties.minimumCalls()
+                && failures * 100 >= properties.failureRatePercent() * calls) {
+            open();
+        }
+    }
+
+    // A request that was cancelled before it succeeded or failed tells nothing.
+    synchronized void onCancel() {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failed) {
+        if (calls == failedCalls.length) {
+            failures -= failedCalls[nextCall] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failedCalls[nextCall] = failed;
+        failures += failed ? 1 : 0;
+        nextCall = (nextCall + 1) % failedCalls.length;
+    }
+
+    private void open() {
+        log.warn("Circuit breaker open, {} of the last {} requests failed.", failures, calls);
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        probing = false;
+    }
+
+    private void close() {
+        log.info("Circuit breaker closed.");
+        state = State.CLOSED;
+        probing = false;
+        calls = 0;
+        failures = 0;
+        nextCall = 0;
+    }
+}
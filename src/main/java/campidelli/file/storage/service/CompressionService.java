@@ -0,0 +1,231 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.CompressionProperties;
+import campidelli.file.storage.dto.FileDownload;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+// Compresses the objects of the configured content types with gzip while they are uploaded, and
+// decompresses them while they are downloaded by clients that don't accept gzip. Both ways are streamed,
+// only a chunk of the object is held in memory at a time.
+@Service
+@Slf4j
+public class CompressionService {
+
+    public static final String GZIP = "gzip";
+    // User metadata with the length of the object before it was compressed.
+    public static final String UNCOMPRESSED_LENGTH = "uncompressed-length";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final CompressionProperties properties;
+    private final List<MimeType> contentTypes;
+
+    @Autowired
+    public CompressionService(CompressionProperties properties) {
+        this.properties = properties;
+        this.contentTypes = properties.contentTypes() == null
+                ? List.of()
+                : properties.contentTypes().stream().map(MimeType::valueOf).toList();
+    }
+
+    public boolean isCompressible(String type) {
+        if (!properties.enabled() || type == null) {
+            return false;
+        }
+        MimeType mimeType = MimeType.valueOf(type);
+        return contentTypes.stream().anyMatch(contentType -> contentType.includes(mimeType));
+    }
+
+    // The buffers are released as soon as they are compressed.
+    public Flux<ByteBuffer> compress(Flux<DataBuffer> content) {
+        return Flux.using(() -> new GzipEncoder(properties.level()),
+                encoder -> content
+                        .map(dataBuffer -> {
+                            try {
+                                return encoder.encode(dataBuffer);
+                            } finally {
+                                DataBufferUtils.release(dataBuffer);
+                            }
+                        })
+                        .concatWith(Mono.fromCallable(encoder::finish))
+                        .filter(ByteBuffer::hasRemaining),
+                GzipEncoder::close);
+    }
+
+    public Flux<ByteBuffer> decompress(Flux<ByteBuffer> content) {
+        return Flux.using(GzipDecoder::new,
+                decoder -> content
+                        .concatMapIterable(decoder::decode)
+                        .concatWith(Mono.fromRunnable(decoder::finish)),
+                GzipDecoder::close);
+    }
+
+    // Turns a download of a compressed object into the download of its original content.
+    // Its length is only known when it was recorded on upload.
+    public FileDownload decompress(FileDownload fileDownload) {
+        return FileDownload.builder()
+                .name(fileDownload.getName())
+                .type(fileDownload.getType())
+                .length(fileDownload.getDecodedLength() == null ? -1 : fileDownload.getDecodedLength())
+                .eTag(fileDownload.getETag())
+                .lastModified(fileDownload.getLastModified())
+                .content(decompress(fileDownload.getContent()))
+                .build();
+    }
+
+    private static class GzipEncoder {
+
+        // Collects whatever the GZIPOutputStream writes, it's drained after every call.
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(CHUNK_SIZE);
+        private final GZIPOutputStream gzipOutputStream;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        GzipEncoder(int level) throws IOException {
+            gzipOutputStream = new GZIPOutputStream(output, CHUNK_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        ByteBuffer encode(DataBuffer dataBuffer) {
+            try (DataBuffer.ByteBufferIterator iterator = dataBuffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    ByteBuffer source = iterator.next();
+                    while (source.hasRemaining()) {
+                        int length = Math.min(source.remaining(), chunk.length);
+                        source.get(chunk, 0, length);
+                        gzipOutputStream.write(chunk, 0, length);
+                    }
+                }
+                return drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error compressing the content.", e);
+            }
+        }
+
+        ByteBuffer finish() throws IOException {
+            gzipOutputStream.finish();
+            return drain();
+        }
+
+        void close() {
+            try {
+                gzipOutputStream.close();
+            } catch (IOException e) {
+                log.debug("Error closing the gzip stream.", e);
+            }
+        }
+
+        private ByteBuffer drain() {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(output.toByteArray());
+            output.reset();
+            return byteBuffer;
+        }
+    }
+
+    // Reads the gzip members written by GzipEncoder: a 10 bytes header without optional fields,
+    // the deflated content, and a trailer with the CRC32 and the length of the original content.
+    private static class GzipDecoder {
+
+        private static final int HEADER_LENGTH = 10;
+        private static final int TRAILER_LENGTH = 8;
+
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+        List<ByteBuffer> decode(ByteBuffer byteBuffer) {
+            ByteBuffer source = byteBuffer.duplicate();
+            List<ByteBuffer> decoded = new ArrayList<>();
+            try {
+                while (source.hasRemaining()) {
+                    if (header.hasRemaining()) {
+                        transfer(source, header);
+                        if (!header.hasRemaining()) {
+                            checkHeader();
+                        }
+                    } else if (!inflater.finished()) {
+                        inflate(source, decoded);
+                    } else if (trailer.hasRemaining()) {
+                        transfer(source, trailer);
+                        if (!trailer.hasRemaining()) {
+                            checkTrailer();
+                        }
+                    } else {
+                        throw new IllegalStateException("Unexpected content after the end of the gzip stream.");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Invalid gzip content.", e);
+            }
+            return decoded;
+        }
+
+        void finish() {
+            if (trailer.hasRemaining()) {
+                throw new IllegalStateException("The gzip stream ended before its trailer.");
+            }
+        }
+
+        void close() {
+            inflater.end();
+        }
+
+        private void inflate(ByteBuffer source, List<ByteBuffer> decoded) throws DataFormatException {
+            inflater.setInput(source);
+            while (!inflater.finished() && !inflater.needsInput()) {
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                int length = inflater.inflate(chunk);
+                if (length == 0 && inflater.needsDictionary()) {
+                    throw new DataFormatException("A preset dictionary is not supported.");
+                }
+                chunk.flip();
+                crc.update(chunk.duplicate());
+                if (chunk.hasRemaining()) {
+                    decoded.add(chunk);
+                }
+            }
+        }
+
+        private void checkHeader() {
+            if (header.get(0) != (byte) 0x1f || header.get(1) != (byte) 0x8b || header.get(2) != 8 || header.get(3) != 0) {
+                throw new IllegalStateException("Unsupported gzip header.");
+            }
+        }
+
+        private void checkTrailer() {
+            if (trailer.getInt(0) != (int) crc.getValue() || trailer.getInt(4) != (int) inflater.getBytesWritten()) {
+                throw new IllegalStateException("The gzip trailer doesn't match the decompressed content.");
+            }
+        }
+
+        private static void transfer(ByteBuffer source, ByteBuffer target) {
+            int length = Math.min(source.remaining(), target.remaining());
+            ByteBuffer slice = source.slice();
+            slice.limit(length);
+            target.put(slice);
+            source.position(source.position() + length);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.DeduplicationProperties;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Maps every key to the SHA-256 of its content when deduplication is enabled. The content is stored once,
+// as a blob named after its hash, and a blob is only deleted when the last key pointing to it is gone.
+// Every key is kept as a JSON file, so the mapping survives restarts, and the reference counts are
+// rebuilt from them on startup.
+// Storing a key reserves its blob before uploading it, and a blob is only deleted once it has neither references nor
+// reservations. A reservation made while the blob is being deleted uploads it again once the delete is done, so an
+// upload and a delete of the same blob never overlap.
+@Component
+@Slf4j
+public class ContentIndex implements InitializingBean {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String SPOOL_FILE_SUFFIX = ".upload";
+
+    private final DeduplicationProperties properties;
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+    private final NavigableMap<String, Entry> entries = new TreeMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, Integer> reservations = new HashMap<>();
+    private final Map<String, CompletableFuture<Void>> deletions = new HashMap<>();
+
+    @Autowired
+    public ContentIndex(DeduplicationProperties properties, ObjectMapper objectMapper) {
+        this.properties = properties;
+        this.directory = Paths.get(properties.directory());
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (!properties.enabled()) {
+            return;
+        }
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SPOOL_FILE_SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                Entry entry = objectMapper.readValue(file.toFile(), Entry.class);
+                entries.put(entry.key(), entry);
+                references.merge(entry.hash(), 1, Integer::sum);
+            }
+        }
+        log.info("Loaded {} keys pointing to {} blobs from '{}'.", entries.size(), references.size(), directory);
+    }
+
+    public boolean isEnabled() {
+        return properties.enabled();
+    }
+
+    public String getBlobKey(String hash) {
+        return properties.blobPrefix() + hash;
+    }
+
+    public boolean isBlob(String key) {
+        return key.startsWith(properties.blobPrefix());
+    }
+
+    // The S3 key holding the content of the given key, the key itself when it was not deduplicated.
+    public String resolve(String key) {
+        return find(key)
+                .map(entry -> getBlobKey(entry.hash()))
+                .orElse(key);
+    }
+
+    public synchronized Optional<Entry> find(String key) {
+        return Optional.ofNullable(entries.get(key));
+    }
+
+    // The blob must be uploaded when no key points to it yet, after the deletion the reservation waits for, if any.
+    // The reservation ends when the entry is put, or when it's cancelled.
+    public synchronized Reservation reserve(String hash) {
+        reservations.merge(hash, 1, Integer::sum);
+        CompletableFuture<Void> deletion = deletions.getOrDefault(hash, CompletableFuture.completedFuture(null));
+        return new Reservation(hash, !references.containsKey(hash), deletion);
+    }
+
+    public synchronized void cancel(Reservation reservation) {
+        if (reservation.end()) {
+            reservations.computeIfPresent(reservation.hash(), (ignored, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    // Returns the entry that was replaced, whose blob must be deleted when it's no longer referenced.
+    public synchronized Optional<Release> put(Entry entry, Reservation reservation) {
+        write(entry);
+        cancel(reservation);
+        Entry previous = entries.put(entry.key(), entry);
+        references.merge(entry.hash(), 1, Integer::sum);
+        return Optional.ofNullable(previous).map(this::release);
+    }
+
+    // Returns the entry that was removed, whose blob must be deleted when it's no longer referenced.
+    public synchronized Optional<Release> remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed == null) {
+            return Optional.empty();
+        }
+        try {
+            Files.deleteIfExists(getFile(key));
+        } catch (IOException e) {
+            log.warn("Error deleting the index entry of '{}'.", key, e);
+        }
+        return Optional.of(release(removed));
+    }
+
+    // Must be called once the blob of an unreferenced release has been deleted, or failed to be.
+    public void deleted(String hash) {
+        CompletableFuture<Void> deletion;
+        synchronized (this) {
+            deletion = deletions.remove(hash);
+        }
+        if (deletion != null) {
+            deletion.complete(null);
+        }
+    }
+
+    public synchronized List<FileEntry> list(FileListRequest fileListRequest) {
+        return ListObjectsV2Support.list(entries, fileListRequest, entry -> FileEntry.builder()
+                .key(entry.key())
+                .size(entry.length())
+                .lastModified(entry.lastModified())
+                .build());
+    }
+
+    public Path createSpoolFile() throws IOException {
+        return Files.createTempFile(directory, "", SPOOL_FILE_SUFFIX);
+    }
+
+    public void deleteSpoolFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Error deleting the spool file '{}'.", file, e);
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available.", e);
+        }
+    }
+
+    public static String toHash(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private Release release(Entry entry) {
+        String hash = entry.hash();
+        references.computeIfPresent(hash, (ignored, count) -> count == 1 ? null : count - 1);
+        boolean unreferenced = !references.containsKey(hash) && !reservations.containsKey(hash)
+                && !deletions.containsKey(hash);
+        if (unreferenced) {
+            deletions.put(hash, new CompletableFuture<>());
+        }
+        return new Release(entry, unreferenced);
+    }
+
+    private void write(Entry entry) {
+        try {
+            Path file = getFile(entry.key());
+            Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            objectMapper.writeValue(temporaryFile.toFile(), entry);
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving the index entry of '" + entry.key() + "'.", e);
+        }
+    }
+
+    // Keys may contain characters that are not valid in file names, so files are named after their hash.
+    private Path getFile(String key) {
+        MessageDigest digest = newDigest();
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(toHash(digest) + ".json");
+    }
+
+    public record Release(Entry entry, boolean unreferenced) { }
+
+    public record Reservation(String hash, boolean uploadNeeded, CompletableFuture<Void> deletion, AtomicBoolean ended) {
+
+        Reservation(String hash, boolean uploadNeeded, CompletableFuture<Void> deletion) {
+            this(hash, uploadNeeded, deletion, new AtomicBoolean());
+        }
+
+        private boolean end() {
+            return ended.compareAndSet(false, true);
+        }
+    }
+
+    public record Entry(String key,
+                        String hash,
+                        long length,
+                        String type,
+                        Instant lastModified) { }
+}
@@ -0,0 +1,53 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.dto.DeleteResult;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class DeleteObjectsSupport {
+
+    // The most keys a single DeleteObjects call accepts.
+    static final int MAXIMUM_KEYS_PER_REQUEST = 1_000;
+
+    private DeleteObjectsSupport() {
+    }
+
+    static DeleteObjectsRequest toRequest(String bucket, List<String> keys) {
+        List<ObjectIdentifier> objects = keys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+        return DeleteObjectsRequest.builder()
+                .bucket(bucket)
+                .delete(delete -> delete.objects(objects).quiet(false))
+                .build();
+    }
+
+    static List<DeleteResult> toDeleteResults(DeleteObjectsResponse response) {
+        List<DeleteResult> results = new ArrayList<>(response.deleted().size() + response.errors().size());
+        response.deleted().forEach(deleted -> results.add(DeleteResult.builder()
+                .key(deleted.key())
+                .deleted(true)
+                .build()));
+        for (S3Error error : response.errors()) {
+            results.add(DeleteResult.builder()
+                    .key(error.key())
+                    .error(error.code() + ": " + error.message())
+                    .build());
+        }
+        return results;
+    }
+
+    static List<DeleteResult> toDeleteResults(List<String> keys, Throwable throwable) {
+        return keys.stream()
+                .map(key -> DeleteResult.builder()
+                        .key(key)
+                        .error(throwable.getMessage())
+                        .build())
+                .toList();
+    }
+}
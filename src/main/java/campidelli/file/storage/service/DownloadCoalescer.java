@@ -0,0 +1,109 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.CoalescingProperties;
+import campidelli.file.storage.config.FileCacheProperties;
+import campidelli.file.storage.dto.FileDownload;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+// Lets concurrent downloads of the same object share a single GET. A request joins the download in flight for its
+// key when it has the ETag the request expects, if it knows which one, and its content can still be read from the
+// first byte. Otherwise it starts a new one. The download in flight is dropped along with the cached metadata of
+// the key, so requests that come after a write never join a download of an older version, and changes made by
+// anyone else are seen once the download is older than the metadata cache would trust it. Blobs of the content
+// index never change, so their downloads don't need to be dropped.
+@Component
+public class DownloadCoalescer {
+
+    private static final long KB = 1024;
+
+    private final CoalescingProperties properties;
+    private final Duration timeToLive;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    @Autowired
+    public DownloadCoalescer(CoalescingProperties properties,
+                             FileCacheProperties fileCacheProperties,
+                             FileMetadataCache metadataCache) {
+        this.properties = properties;
+        this.timeToLive = fileCacheProperties.metadata().timeToLive();
+        metadataCache.addEvictionListener(this::evict);
+    }
+
+    public boolean isEnabled() {
+        return properties.enabled();
+    }
+
+    // The fallback downloads the content of the given ETag from an offset, for the readers that fall behind.
+    public Mono<FileDownload> download(String key, String eTag, Supplier<Mono<FileDownload>> get,
+                                       BiFunction<String, Long, Flux<ByteBuffer>> fallback) {
+        Flight flight = flights.compute(key, (ignored, current) -> current != null && current.isJoinable(eTag)
+                ? current
+                : new Flight(key, get.get(), fallback));
+        return flight.join();
+    }
+
+    public void evict(String key) {
+        flights.remove(key);
+    }
+
+    private class Flight {
+
+        private final Instant expiresAt = Instant.now().plus(timeToLive);
+        private final Mono<SharedDownload> sharedDownload;
+        private volatile FileDownload fileDownload;
+        private volatile SharedDownload shared;
+
+        Flight(String key, Mono<FileDownload> get, BiFunction<String, Long, Flux<ByteBuffer>> fallback) {
+            this.sharedDownload = get
+                    .doOnNext(download -> fileDownload = download)
+                    .doOnError(e -> flights.remove(key, this))
+                    .map(download -> {
+                        shared = new SharedDownload(download.getContent(), properties.maximumReplaySizeInKb() * KB,
+                                offset -> fallback.apply(download.getETag(), offset),
+                                () -> flights.remove(key, this));
+                        return shared;
+                    })
+                    .cache();
+        }
+
+        // Requests that come before the response join it, as S3 would have served them the same version.
+        boolean isJoinable(String eTag) {
+            if (expiresAt.isBefore(Instant.now())) {
+                return false;
+            }
+            if (fileDownload == null) {
+                return true;
+            }
+            return (eTag == null || eTag.equals(fileDownload.getETag()))
+                    && (shared == null || shared.isJoinable());
+        }
+
+        // Content the backend serves from a local file is read again by every request, with zero-copy.
+        Mono<FileDownload> join() {
+            return sharedDownload.map(download -> FileDownload.builder()
+                    .name(fileDownload.getName())
+                    .type(fileDownload.getType())
+                    .length(fileDownload.getLength())
+                    .eTag(fileDownload.getETag())
+                    .lastModified(fileDownload.getLastModified())
+                    .encoding(fileDownload.getEncoding())
+                    .decodedLength(fileDownload.getDecodedLength())
+                    .content(fileDownload.getFile() == null ? download.content() : fileDownload.getContent())
+                    .file(fileDownload.getFile())
+                    .fileOffset(fileDownload.getFileOffset())
+                    .lease(fileDownload.getLease())
+                    .build());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.FileCacheProperties;
+import campidelli.file.storage.dto.FileMetadata;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Remembers the HeadObject results for a short while, so revalidating a file doesn't need a request to S3.
+// Writes and deletes going through this service invalidate the entry straight away, changes made by
+// anyone else become visible once the entry expires.
+@Component
+public class FileMetadataCache {
+
+    private final FileCacheProperties.Metadata properties;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> evictionListeners = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public FileMetadataCache(FileCacheProperties fileCacheProperties) {
+        this.properties = fileCacheProperties.metadata();
+    }
+
+    public Optional<FileMetadata> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (entry.expiresAt().isBefore(Instant.now())) {
+            entries.remove(key, entry);
+            return Optional.empty();
+        }
+        return Optional.of(entry.metadata());
+    }
+
+    public void put(String key, FileMetadata metadata) {
+        if (entries.size() >= properties.maximumEntries()) {
+            Instant now = Instant.now();
+            entries.values().removeIf(entry -> entry.expiresAt().isBefore(now));
+            if (entries.size() >= properties.maximumEntries()) {
+                return;
+            }
+        }
+        entries.put(key, new Entry(metadata, Instant.now().plus(properties.timeToLive())));
+    }
+
+    public void evict(String key) {
+        entries.remove(key);
+        evictionListeners.forEach(listener -> listener.accept(key));
+    }
+
+    // Lets the caches built from the metadata of a key be invalidated along with it.
+    public void addEvictionListener(Consumer<String> listener) {
+        evictionListeners.add(listener);
+    }
+
+    private record Entry(FileMetadata metadata, Instant expiresAt) { }
+}
@@ -0,0 +1,556 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.StorageBackendProperties;
+import campidelli.file.storage.dto.DeleteResult;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+// Keeps the objects in a local directory, for deployments without S3 and benchmarks without network.
+// Every object is a data file, written through an AsynchronousFileChannel to a temporary file that is renamed
+// atomically on commit, and a JSON file with its metadata named after the SHA-256 of the key. The keys are
+// indexed in memory, the index is rebuilt from the JSON files on startup. Ranges are served from a
+// memory-mapped region of the data file, and the data file is exposed so it can be sent with zero-copy.
+// The data file of a version that is replaced or deleted while it's read is only deleted once its last reader
+// is done with it. The file I/O runs on the bounded elastic scheduler, never on the caller's thread.
+@Service
+@ConditionalOnProperty(prefix = "storage.backend", name = "type", havingValue = "filesystem")
+@Slf4j
+public class FileSystemStorageBackend implements StorageBackend, InitializingBean {
+
+    private static final String DATA_FILE_SUFFIX = ".bin";
+    private static final String METADATA_FILE_SUFFIX = ".json";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final String PART_FILE_SUFFIX = ".part";
+    private static final String UPLOAD_FILE = "upload.json";
+    // Regions are mapped up to this size, a single mapping can't go over 2 GB.
+    private static final long MAXIMUM_REGION_SIZE = 1L << 30;
+
+    private final Path directory;
+    private final Path objectsDirectory;
+    private final Path uploadsDirectory;
+    private final int readBufferSize;
+    private final ObjectMapper objectMapper;
+    private final NavigableMap<String, StoredObject> objects = new TreeMap<>();
+    // Guarded by this, as the objects are. Data files are named by their file name.
+    private final Map<String, Integer> readers = new HashMap<>();
+    private final Set<String> replacedWhileRead = new HashSet<>();
+
+    @Autowired
+    public FileSystemStorageBackend(StorageBackendProperties properties, ObjectMapper objectMapper) {
+        this.directory = Paths.get(properties.directory());
+        this.objectsDirectory = directory.resolve("objects");
+        this.uploadsDirectory = directory.resolve("uploads");
+        this.readBufferSize = properties.readBufferSizeInKb() * 1024;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Files.createDirectories(objectsDirectory);
+        Files.createDirectories(uploadsDirectory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(objectsDirectory, "*" + METADATA_FILE_SUFFIX)) {
+            for (Path file : files) {
+                StoredObject object = objectMapper.readValue(file.toFile(), StoredObject.class);
+                objects.put(object.key(), object);
+            }
+        }
+        // Leftovers of writes that were interrupted, or of objects replaced right before a crash.
+        Set<String> dataFiles = new HashSet<>();
+        objects.values().forEach(object -> dataFiles.add(object.file()));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(objectsDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY_FILE_SUFFIX) || (name.endsWith(DATA_FILE_SUFFIX) && !dataFiles.contains(name))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        log.info("Filesystem storage backend at '{}' with {} objects.", directory, objects.size());
+    }
+
+    @Override
+    public Flux<FileEntry> list(FileListRequest fileListRequest) {
+        return Flux.defer(() -> Flux.fromIterable(listEntries(fileListRequest)));
+    }
+
+    private synchronized List<FileEntry> listEntries(FileListRequest fileListRequest) {
+        return ListObjectsV2Support.list(objects, fileListRequest, object -> FileEntry.builder()
+                .key(object.key())
+                .size(object.length())
+                .eTag(object.eTag())
+                .lastModified(object.lastModified())
+                .build());
+    }
+
+    @Override
+    public Mono<FileMetadata> head(String key) {
+        return Mono.fromCallable(() -> find(key))
+                .map(object -> FileMetadata.builder()
+                        .name(object.metadata().getOrDefault("filename", key))
+                        .type(object.type())
+                        .length(object.length())
+                        .eTag(object.eTag())
+                        .lastModified(object.lastModified())
+                        .encoding(object.encoding())
+                        .build());
+    }
+
+    @Override
+    public Mono<FileDownload> get(String key, String range, String ifNoneMatch) {
+        return Mono.fromCallable(() -> {
+            StoredObject object = find(key);
+            if (object.eTag().equals(ifNoneMatch)) {
+                throw new ResponseStatusException(NOT_MODIFIED);
+            }
+            Path file = objectsDirectory.resolve(object.file());
+            FileDownload.FileDownloadBuilder fileDownload = FileDownload.builder()
+                    .name(object.metadata().getOrDefault("filename", key))
+                    .type(object.type())
+                    .eTag(object.eTag())
+                    .lastModified(object.lastModified())
+                    .encoding(object.encoding())
+                    .decodedLength(getDecodedLength(object))
+                    .file(file)
+                    .lease(() -> acquire(object));
+            if (range == null) {
+                return fileDownload
+                        .length(object.length())
+                        .content(Flux.using(() -> acquire(object),
+                                release -> DataBufferUtils.read(file, DefaultDataBufferFactory.sharedInstance, readBufferSize)
+                                        .map(dataBuffer -> ((DefaultDataBuffer) dataBuffer).getNativeBuffer()),
+                                Runnable::run))
+                        .build();
+            }
+
+            HttpRange httpRange = HttpRange.parseRanges(range).get(0);
+            long start = httpRange.getRangeStart(object.length());
+            if (start >= object.length()) {
+                throw new ResponseStatusException(REQUESTED_RANGE_NOT_SATISFIABLE,
+                        "Range '" + range + "' is not satisfiable for '" + key + "' with " + object.length() + " bytes.");
+            }
+            long end = httpRange.getRangeEnd(object.length());
+            return fileDownload
+                    .length(end - start + 1)
+                    .contentRange(String.format("bytes %d-%d/%d", start, end, object.length()))
+                    .content(Flux.using(() -> acquire(object),
+                            release -> map(file, start, end - start + 1),
+                            Runnable::run))
+                    .fileOffset(start)
+                    .build();
+        });
+    }
+
+    // The region is mapped once and sent in slices of 'readBufferSize', so its bytes are never copied to the heap.
+    private Flux<ByteBuffer> map(Path file, long position, long length) {
+        int numberOfRegions = (int) ((length + MAXIMUM_REGION_SIZE - 1) / MAXIMUM_REGION_SIZE);
+        return Flux.using(() -> FileChannel.open(file, StandardOpenOption.READ),
+                channel -> Flux.range(0, numberOfRegions)
+                        .concatMap(region -> {
+                            long regionPosition = position + region * MAXIMUM_REGION_SIZE;
+                            long regionLength = Math.min(MAXIMUM_REGION_SIZE, position + length - regionPosition);
+                            int numberOfSlices = (int) ((regionLength + readBufferSize - 1) / readBufferSize);
+                            return Mono.fromCallable(() -> channel.map(FileChannel.MapMode.READ_ONLY, regionPosition, regionLength))
+                                    .flatMapMany(mappedRegion -> Flux.range(0, numberOfSlices)
+                                            .map(slice -> slice(mappedRegion, slice, regionLength)));
+                        }),
+                this::close);
+    }
+
+    private ByteBuffer slice(MappedByteBuffer mappedRegion, int slice, long regionLength) {
+        int offset = slice * readBufferSize;
+        return mappedRegion.slice(offset, (int) Math.min(readBufferSize, regionLength - offset));
+    }
+
+    @Override
+    public Mono<Void> put(String key, String type, String encoding, Map<String, String> metadata, Long length,
+                          Flux<ByteBuffer> content) {
+        return Mono.defer(() -> {
+                    String dataFile = newDataFile(key);
+                    Path temporaryFile = objectsDirectory.resolve(dataFile + TEMPORARY_FILE_SUFFIX);
+                    MessageDigest digest = newMd5Digest();
+                    AtomicLong written = new AtomicLong();
+                    return write(content, temporaryFile, digest, written)
+                            .then(Mono.fromCallable(() -> {
+                                        checkLength(key, length, written.get());
+                                        return commit(new StoredObject(key, dataFile, type, encoding,
+                                                metadata == null ? Map.of() : Map.copyOf(metadata), written.get(),
+                                                toETag(digest.digest()), Instant.now()), temporaryFile);
+                                    })
+                                    .subscribeOn(Schedulers.boundedElastic()))
+                            .doFinally(signal -> deleteQuietly(temporaryFile));
+                })
+                .then();
+    }
+
+    @Override
+    public Mono<Void> put(String key, String type, Path file) {
+        return Mono.fromCallable(() -> {
+                    String dataFile = newDataFile(key);
+                    Path temporaryFile = objectsDirectory.resolve(dataFile + TEMPORARY_FILE_SUFFIX);
+                    MessageDigest digest = newMd5Digest();
+                    try {
+                        try (InputStream inputStream = new DigestInputStream(Files.newInputStream(file), digest)) {
+                            Files.copy(inputStream, temporaryFile);
+                        }
+                        return commit(new StoredObject(key, dataFile, type, null, Map.of(), Files.size(temporaryFile),
+                                toETag(digest.digest()), Instant.now()), temporaryFile);
+                    } finally {
+                        deleteQuietly(temporaryFile);
+                    }
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    @Override
+    public Mono<Void> delete(String key) {
+        return Mono.fromCallable(() -> remove(key))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    @Override
+    public Flux<DeleteResult> delete(List<String> keys) {
+        return Flux.fromIterable(keys)
+                .concatMap(key -> delete(key)
+                        .thenReturn(DeleteResult.builder().key(key).deleted(true).build())
+                        .onErrorResume(e -> Mono.just(DeleteResult.builder().key(key).error(e.getMessage()).build())));
+    }
+
+    @Override
+    public Mono<String> createMultipartUpload(String key, String type, String encoding, Map<String, String> metadata) {
+        return Mono.fromCallable(() -> {
+                    String uploadId = UUID.randomUUID().toString();
+                    Path uploadDirectory = Files.createDirectories(uploadsDirectory.resolve(uploadId));
+                    objectMapper.writeValue(uploadDirectory.resolve(UPLOAD_FILE).toFile(),
+                            new PendingUpload(key, type, encoding, metadata == null ? Map.of() : Map.copyOf(metadata)));
+                    return uploadId;
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // A part that is uploaded again replaces the previous one, as in S3.
+    @Override
+    public Mono<Part> uploadPart(String key, String uploadId, int partNumber, long length, Flux<ByteBuffer> content) {
+        return Mono.fromCallable(() -> getPendingUpload(key, uploadId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(uploadDirectory -> {
+                    Path partFile = uploadDirectory.resolve(partNumber + PART_FILE_SUFFIX);
+                    Path temporaryFile = uploadDirectory.resolve(partNumber + "-" + UUID.randomUUID() + TEMPORARY_FILE_SUFFIX);
+                    MessageDigest digest = newMd5Digest();
+                    AtomicLong written = new AtomicLong();
+                    return write(content, temporaryFile, digest, written)
+                            .then(Mono.fromCallable(() -> {
+                                        checkLength(key, length, written.get());
+                                        Files.move(temporaryFile, partFile, StandardCopyOption.ATOMIC_MOVE,
+                                                StandardCopyOption.REPLACE_EXISTING);
+                                        return new Part(partNumber, toETag(digest.digest()));
+                                    })
+                                    .subscribeOn(Schedulers.boundedElastic()))
+                            .doFinally(signal -> deleteQuietly(temporaryFile));
+                });
+    }
+
+    // The parts are concatenated into the data file with transferTo, and the ETag is built the way S3 does it
+    // for multipart uploads: the MD5 of the MD5s of the parts, followed by the number of parts.
+    @Override
+    public Mono<Void> completeMultipartUpload(String key, String uploadId, List<Part> parts) {
+        return Mono.fromCallable(() -> {
+                    Path uploadDirectory = getPendingUpload(key, uploadId);
+                    PendingUpload pendingUpload = objectMapper.readValue(uploadDirectory.resolve(UPLOAD_FILE).toFile(),
+                            PendingUpload.class);
+                    String dataFile = newDataFile(key);
+                    Path temporaryFile = objectsDirectory.resolve(dataFile + TEMPORARY_FILE_SUFFIX);
+                    MessageDigest digest = newMd5Digest();
+                    List<Part> sortedParts = parts.stream()
+                            .sorted(Comparator.comparingInt(Part::partNumber))
+                            .toList();
+                    try {
+                        try (FileChannel target = FileChannel.open(temporaryFile,
+                                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                            for (Part part : sortedParts) {
+                                transfer(uploadDirectory.resolve(part.partNumber() + PART_FILE_SUFFIX), target, key);
+                                digest.update(HexFormat.of().parseHex(part.eTag().replace("\"", "")));
+                            }
+                        }
+                        String eTag = toETag(digest.digest()).replace("\"", "");
+                        commit(new StoredObject(key, dataFile, pendingUpload.type(), pendingUpload.encoding(),
+                                pendingUpload.metadata(), Files.size(temporaryFile),
+                                "\"" + eTag + "-" + sortedParts.size() + "\"", Instant.now()), temporaryFile);
+                    } finally {
+                        deleteQuietly(temporaryFile);
+                    }
+                    FileSystemUtils.deleteRecursively(uploadDirectory);
+                    return key;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    @Override
+    public Mono<Void> abortMultipartUpload(String key, String uploadId) {
+        return Mono.fromCallable(() -> FileSystemUtils.deleteRecursively(getPendingUpload(key, uploadId)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doOnError(e -> log.warn("Error aborting the multipart upload '{}' of '{}'.", uploadId, key, e))
+                .then();
+    }
+
+    // Every buffer is marked as consumed, by moving its position to its limit, once it has been written.
+    private Mono<Void> write(Flux<ByteBuffer> content, Path file, MessageDigest digest, AtomicLong written) {
+        Queue<ByteBuffer> writing = new ConcurrentLinkedQueue<>();
+        Flux<DataBuffer> dataBuffers = content
+                .doOnNext(byteBuffer -> {
+                    written.addAndGet(byteBuffer.remaining());
+                    digest.update(byteBuffer.duplicate());
+                    writing.add(byteBuffer);
+                })
+                .map(DefaultDataBufferFactory.sharedInstance::wrap);
+        return Flux.using(() -> AsynchronousFileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                        channel -> DataBufferUtils.write(dataBuffers, channel)
+                                .doOnNext(dataBuffer -> {
+                                    ByteBuffer byteBuffer = writing.poll();
+                                    byteBuffer.position(byteBuffer.limit());
+                                }),
+                        this::closeQuietly)
+                .then();
+    }
+
+    private void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing '{}'.", channel, e);
+        }
+    }
+
+    private void transfer(Path partFile, FileChannel target, String key) throws IOException {
+        if (!Files.exists(partFile)) {
+            throw new ResponseStatusException(BAD_REQUEST, "Part '" + partFile.getFileName() + "' of '" + key + "' was not uploaded.");
+        }
+        try (FileChannel source = FileChannel.open(partFile, StandardOpenOption.READ)) {
+            long position = 0;
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        }
+    }
+
+    // The data file is renamed into place before the metadata is, so the metadata never points to a partial file.
+    // The data file of the object that was replaced, if any, is deleted afterwards, or once it's no longer read.
+    private StoredObject commit(StoredObject object, Path temporaryFile) throws IOException {
+        Files.move(temporaryFile, objectsDirectory.resolve(object.file()), StandardCopyOption.ATOMIC_MOVE);
+        Path metadataFile = getMetadataFile(object.key());
+        Path temporaryMetadataFile = metadataFile.resolveSibling(
+                metadataFile.getFileName() + "-" + UUID.randomUUID() + TEMPORARY_FILE_SUFFIX);
+        objectMapper.writeValue(temporaryMetadataFile.toFile(), object);
+        StoredObject previous;
+        synchronized (this) {
+            Files.move(temporaryMetadataFile, metadataFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            previous = objects.put(object.key(), object);
+        }
+        if (previous != null) {
+            discard(previous.file());
+        }
+        return object;
+    }
+
+    private boolean remove(String key) throws IOException {
+        StoredObject removed;
+        synchronized (this) {
+            removed = objects.get(key);
+            if (removed == null) {
+                return false;
+            }
+            Files.deleteIfExists(getMetadataFile(key));
+            objects.remove(key);
+        }
+        discard(removed.file());
+        return true;
+    }
+
+    // A data file that is neither the current version of its object nor being read is already gone.
+    private Runnable acquire(StoredObject object) {
+        synchronized (this) {
+            StoredObject current = objects.get(object.key());
+            if (!readers.containsKey(object.file()) && (current == null || !current.file().equals(object.file()))) {
+                throw new IllegalStateException("'" + object.key() + "' was replaced or deleted while it was read.");
+            }
+            readers.merge(object.file(), 1, Integer::sum);
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                release(object.file());
+            }
+        };
+    }
+
+    private void release(String dataFile) {
+        boolean replaced;
+        synchronized (this) {
+            Integer remaining = readers.computeIfPresent(dataFile, (ignored, count) -> count > 1 ? count - 1 : null);
+            replaced = remaining == null && replacedWhileRead.remove(dataFile);
+        }
+        if (replaced) {
+            deleteQuietly(objectsDirectory.resolve(dataFile));
+        }
+    }
+
+    private void discard(String dataFile) {
+        synchronized (this) {
+            if (readers.containsKey(dataFile)) {
+                replacedWhileRead.add(dataFile);
+                return;
+            }
+        }
+        deleteQuietly(objectsDirectory.resolve(dataFile));
+    }
+
+    private synchronized StoredObject find(String key) {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            throw new ResponseStatusException(NOT_FOUND, "Object '" + key + "' not found.");
+        }
+        return object;
+    }
+
+    private Path getPendingUpload(String key, String uploadId) throws IOException {
+        Path uploadDirectory;
+        try {
+            uploadDirectory = uploadsDirectory.resolve(UUID.fromString(uploadId).toString());
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(NOT_FOUND, "Multipart upload '" + uploadId + "' not found.");
+        }
+        Path uploadFile = uploadDirectory.resolve(UPLOAD_FILE);
+        if (!Files.exists(uploadFile) || !objectMapper.readValue(uploadFile.toFile(), PendingUpload.class).key().equals(key)) {
+            throw new ResponseStatusException(NOT_FOUND, "Multipart upload '" + uploadId + "' of '" + key + "' not found.");
+        }
+        return uploadDirectory;
+    }
+
+    private void checkLength(String key, Long expected, long written) {
+        if (expected != null && expected != written) {
+            throw new ResponseStatusException(BAD_REQUEST,
+                    "Received " + written + " bytes for '" + key + "', " + expected + " were expected.");
+        }
+    }
+
+    private Long getDecodedLength(StoredObject object) {
+        String decodedLength = object.metadata().get(CompressionService.UNCOMPRESSED_LENGTH);
+        return decodedLength == null ? null : Long.valueOf(decodedLength);
+    }
+
+    // Keys may contain characters that are not valid in file names, so files are named after their hash.
+    private Path getMetadataFile(String key) {
+        return objectsDirectory.resolve(toHash(key) + METADATA_FILE_SUFFIX);
+    }
+
+    // Every version of an object gets its own data file, so a replaced one can still be read until it's deleted.
+    private String newDataFile(String key) {
+        return toHash(key) + "-" + UUID.randomUUID() + DATA_FILE_SUFFIX;
+    }
+
+    private String toHash(String key) {
+        MessageDigest digest = ContentIndex.newDigest();
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        return ContentIndex.toHash(digest);
+    }
+
+    private static MessageDigest newMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available.", e);
+        }
+    }
+
+    private static String toETag(byte[] digest) {
+        return "\"" + HexFormat.of().formatHex(digest) + "\"";
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Error deleting the file '{}'.", file, e);
+        }
+    }
+
+    private void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing a file channel.", e);
+        }
+    }
+
+    record StoredObject(String key,
+                        String file,
+                        String type,
+                        String encoding,
+                        Map<String, String> metadata,
+                        long length,
+                        String eTag,
+                        Instant lastModified) { }
+
+    record PendingUpload(String key,
+                         String type,
+                         String encoding,
+                         Map<String, String> metadata) { }
+}
@@ -0,0 +1,190 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import org.springframework.util.StringUtils;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+final class ListObjectsV2Support {
+
+    private ListObjectsV2Support() {
+    }
+
+    static ListObjectsV2Request toRequest(String bucket, FileListRequest fileListRequest) {
+        return ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(fileListRequest.getPrefix())
+                .delimiter(fileListRequest.getDelimiter())
+                .startAfter(fileListRequest.getStartAfter())
+                .continuationToken(fileListRequest.getContinuationToken())
+                .maxKeys(fileListRequest.getPageSize())
+                .build();
+    }
+
+    // The keys of the request are the keys of the shard, without its prefix.
+    static ListObjectsV2Request toRequest(ShardRouter.Shard shard, FileListRequest fileListRequest) {
+        String prefix = shard.toObjectKey(fileListRequest.getPrefix() == null ? "" : fileListRequest.getPrefix());
+        return toRequest(shard.bucket(), fileListRequest).toBuilder()
+                .prefix(prefix.isEmpty() ? null : prefix)
+                .startAfter(fileListRequest.getStartAfter() == null
+                        ? null
+                        : shard.toObjectKey(fileListRequest.getStartAfter()))
+                .build();
+    }
+
+    // A listing merged from several shards can't follow their continuation tokens, the last key of the previous
+    // page is used as the key to start after instead.
+    static FileListRequest toMergedRequest(FileListRequest fileListRequest) {
+        if (!StringUtils.hasText(fileListRequest.getContinuationToken())) {
+            return fileListRequest;
+        }
+        return fileListRequest.toBuilder()
+                .startAfter(fileListRequest.getContinuationToken())
+                .continuationToken(null)
+                .build();
+    }
+
+    // The common prefixes are sorted among the objects, so the entries of every shard can be merged in order.
+    static List<FileEntry> toFileEntries(ListObjectsV2Response page, ShardRouter.Shard shard) {
+        List<FileEntry> entries = toFileEntries(page);
+        for (FileEntry entry : entries) {
+            entry.setKey(shard.toKey(entry.getKey()));
+        }
+        if (!page.commonPrefixes().isEmpty()) {
+            entries.sort(Comparator.comparing(FileEntry::getKey));
+        }
+        return entries;
+    }
+
+    // Merges the listings of several shards, each in lexicographical order, into one. A key found in more than
+    // one shard during a rebalance, or a common prefix of several, is only listed once.
+    static Stream<FileEntry> merge(List<Stream<FileEntry>> listings) {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>(Comparator.comparing(Cursor::key));
+        for (Stream<FileEntry> listing : listings) {
+            Cursor cursor = new Cursor(listing.iterator());
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+        Iterator<FileEntry> merged = new Iterator<>() {
+            private String lastKey;
+
+            @Override
+            public boolean hasNext() {
+                while (!cursors.isEmpty() && cursors.peek().key().equals(lastKey)) {
+                    next(cursors.poll());
+                }
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public FileEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                FileEntry entry = cursors.peek().entry;
+                next(cursors.poll());
+                lastKey = entry.getKey();
+                return entry;
+            }
+
+            private void next(Cursor cursor) {
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> listings.forEach(Stream::close));
+    }
+
+    static List<FileEntry> toFileEntries(ListObjectsV2Response page) {
+        List<FileEntry> entries = new ArrayList<>(page.contents().size() + page.commonPrefixes().size());
+        for (S3Object object : page.contents()) {
+            entries.add(FileEntry.builder()
+                    .key(object.key())
+                    .size(object.size())
+                    .eTag(object.eTag())
+                    .lastModified(object.lastModified())
+                    .build());
+        }
+        for (CommonPrefix commonPrefix : page.commonPrefixes()) {
+            entries.add(FileEntry.builder()
+                    .key(commonPrefix.prefix())
+                    .directory(true)
+                    .build());
+        }
+        return entries;
+    }
+
+    private static class Cursor {
+
+        private final Iterator<FileEntry> iterator;
+        private FileEntry entry;
+
+        Cursor(Iterator<FileEntry> iterator) {
+            this.iterator = iterator;
+        }
+
+        boolean advance() {
+            entry = iterator.hasNext() ? iterator.next() : null;
+            return entry != null;
+        }
+
+        String key() {
+            return entry.getKey();
+        }
+    }
+
+    // Same semantics as ListObjectsV2 for the keys kept locally: keys after 'startAfter' (or the continuation
+    // token, which is the last key of the previous page) starting with the prefix, rolled up to the first
+    // delimiter after it.
+    static <T> List<FileEntry> list(NavigableMap<String, T> entries, FileListRequest fileListRequest,
+                                    Function<T, FileEntry> toFileEntry) {
+        String prefix = fileListRequest.getPrefix() == null ? "" : fileListRequest.getPrefix();
+        String startAfter = StringUtils.hasText(fileListRequest.getContinuationToken())
+                ? fileListRequest.getContinuationToken()
+                : fileListRequest.getStartAfter();
+        String delimiter = fileListRequest.getDelimiter();
+
+        NavigableMap<String, T> candidates = startAfter != null && startAfter.compareTo(prefix) >= 0
+                ? entries.tailMap(startAfter, false)
+                : entries.tailMap(prefix, true);
+        List<FileEntry> fileEntries = new ArrayList<>();
+        String lastCommonPrefix = null;
+        for (Map.Entry<String, T> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            int delimiterIndex = StringUtils.hasLength(delimiter) ? key.indexOf(delimiter, prefix.length()) : -1;
+            if (delimiterIndex >= 0) {
+                String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                if (!commonPrefix.equals(lastCommonPrefix)) {
+                    fileEntries.add(FileEntry.builder().key(commonPrefix).directory(true).build());
+                    lastCommonPrefix = commonPrefix;
+                }
+                continue;
+            }
+            fileEntries.add(toFileEntry.apply(entry.getValue()));
+        }
+        return fileEntries;
+    }
+}
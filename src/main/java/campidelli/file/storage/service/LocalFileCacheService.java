@@ -0,0 +1,306 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.FileCacheProperties;
+import campidelli.file.storage.dto.FileDownload;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static software.amazon.awssdk.transfer.s3.SizeConstant.MB;
+
+// Keeps the most recently used objects on local disk, so they can be served with zero-copy instead of
+// going to S3. Entries are validated by ETag and evicted in LRU order once the cache goes over its size.
+// A file that is being read when its entry is evicted is only deleted once its last reader is done with it.
+@Service
+@Slf4j
+public class LocalFileCacheService implements InitializingBean {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // The cache keeps its files in a subdirectory of its own, and never touches anything else in the directory.
+    private static final String SUBDIRECTORY = "objects";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String FILE_SUFFIX = ".bin";
+
+    private final FileCacheProperties properties;
+    private final Path directory;
+    // Access ordered, so iterating it goes from the least to the most recently used entry.
+    private final LinkedHashMap<String, CachedFile> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    // Guarded by this, as the index is.
+    private final Map<Path, Integer> readers = new HashMap<>();
+    private final Set<Path> evictedWhileRead = new HashSet<>();
+
+    @Autowired
+    public LocalFileCacheService(FileCacheProperties properties) {
+        this.properties = properties;
+        this.directory = Paths.get(properties.directory()).resolve(SUBDIRECTORY);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (properties.enabled()) {
+            // The index only lives in memory, so whatever was left by a previous run is stale.
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(LocalFileCacheService::isCacheFile).forEach(this::delete);
+            }
+            log.info("Local file cache enabled at '{}' with {} MB.", directory, properties.maximumSizeInMb());
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.enabled();
+    }
+
+    public synchronized Optional<CachedFile> get(String key) {
+        return Optional.ofNullable(index.get(key));
+    }
+
+    public Optional<CachedFile> get(String key, String eTag) {
+        Optional<CachedFile> cachedFile = get(key);
+        if (cachedFile.isPresent() && !cachedFile.get().eTag().equals(eTag)) {
+            evict(key);
+            return Optional.empty();
+        }
+        return cachedFile;
+    }
+
+    // Files are served without asking the backend for as long as the cached metadata would be trusted.
+    public boolean isFresh(CachedFile cachedFile) {
+        return cachedFile.validatedAt().plus(properties.metadata().timeToLive()).isAfter(Instant.now());
+    }
+
+    // Called when the backend confirms that the cached version is still the current one.
+    public synchronized void validated(CachedFile cachedFile) {
+        index.computeIfPresent(cachedFile.key(), (key, current) -> current.eTag().equals(cachedFile.eTag())
+                ? current.validatedNow()
+                : current);
+    }
+
+    public void evict(String key) {
+        CachedFile removed;
+        synchronized (this) {
+            removed = index.remove(key);
+            if (removed != null) {
+                size -= removed.length();
+            }
+        }
+        if (removed != null) {
+            discard(removed.path());
+        }
+    }
+
+    // Returns the content of the download, writing each buffer to the cache before passing it on.
+    // The file only becomes visible in the cache once the whole object has been written.
+    public Flux<ByteBuffer> fill(String key, FileDownload fileDownload) {
+        if (!isCacheable(fileDownload)) {
+            return fileDownload.getContent();
+        }
+        return Flux.using(
+                () -> {
+                    Path file = directory.resolve(UUID.randomUUID() + TMP_SUFFIX);
+                    return new Fill(file, AsynchronousFileChannel.open(file,
+                            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+                },
+                fill -> DataBufferUtils.write(fileDownload.getContent().map(DefaultDataBufferFactory.sharedInstance::wrap), fill.channel())
+                        .map(dataBuffer -> ((DefaultDataBuffer) dataBuffer).getNativeBuffer())
+                        .doOnNext(byteBuffer -> fill.written().addAndGet(byteBuffer.remaining()))
+                        .doFinally(signal -> complete(key, fileDownload, fill, signal)),
+                fill -> { });
+    }
+
+    // Serves the cached file, or the slice of it selected by an HTTP byte range. The file is kept while the
+    // content is read, or while whoever writes the file itself with zero-copy holds a lease on it, both taken
+    // on subscription, so a download that is never read doesn't keep an evicted file around.
+    public FileDownload toFileDownload(CachedFile cachedFile, String range) {
+        long offset = 0;
+        long length = cachedFile.length();
+        String contentRange = null;
+        if (range != null) {
+            List<HttpRange> ranges = HttpRange.parseRanges(range);
+            offset = ranges.get(0).getRangeStart(cachedFile.length());
+            long end = ranges.get(0).getRangeEnd(cachedFile.length());
+            length = end - offset + 1;
+            contentRange = String.format("bytes %d-%d/%d", offset, end, cachedFile.length());
+        }
+        long start = offset;
+        long count = length;
+        Flux<ByteBuffer> content = Flux.using(() -> acquire(cachedFile),
+                release -> DataBufferUtils.takeUntilByteCount(
+                                DataBufferUtils.readAsynchronousFileChannel(
+                                        () -> AsynchronousFileChannel.open(cachedFile.path(), StandardOpenOption.READ),
+                                        start, DefaultDataBufferFactory.sharedInstance, READ_BUFFER_SIZE),
+                                count)
+                        .map(dataBuffer -> ((DefaultDataBuffer) dataBuffer).getNativeBuffer()),
+                Runnable::run);
+
+        return FileDownload.builder()
+                .name(cachedFile.name())
+                .type(cachedFile.type())
+                .length(length)
+                .eTag(cachedFile.eTag())
+                .lastModified(cachedFile.lastModified())
+                .encoding(cachedFile.encoding())
+                .decodedLength(cachedFile.decodedLength())
+                .contentRange(contentRange)
+                .content(content)
+                .file(cachedFile.path())
+                .fileOffset(offset)
+                .lease(() -> acquire(cachedFile))
+                .build();
+    }
+
+    private boolean isCacheable(FileDownload fileDownload) {
+        return properties.enabled()
+                && fileDownload.getContentRange() == null
+                && fileDownload.getETag() != null
+                && fileDownload.getLength() <= properties.maximumObjectSizeInMb() * MB;
+    }
+
+    private void complete(String key, FileDownload fileDownload, Fill fill, SignalType signal) {
+        try {
+            fill.channel().close();
+        } catch (IOException e) {
+            log.warn("Error closing the cache file '{}'.", fill.file(), e);
+        }
+        if (signal != SignalType.ON_COMPLETE || fill.written().get() != fileDownload.getLength()) {
+            delete(fill.file());
+            return;
+        }
+        try {
+            Path path = Files.move(fill.file(), fill.file().resolveSibling(UUID.randomUUID() + FILE_SUFFIX),
+                    StandardCopyOption.ATOMIC_MOVE);
+            put(new CachedFile(key, fileDownload.getETag(), path, fileDownload.getLength(),
+                    fileDownload.getType(), fileDownload.getName(), fileDownload.getLastModified(),
+                    fileDownload.getEncoding(), fileDownload.getDecodedLength(), Instant.now()));
+        } catch (IOException e) {
+            log.warn("Error adding '{}' to the cache.", key, e);
+            delete(fill.file());
+        }
+    }
+
+    private void put(CachedFile cachedFile) {
+        List<CachedFile> evicted = new ArrayList<>();
+        synchronized (this) {
+            CachedFile previous = index.put(cachedFile.key(), cachedFile);
+            if (previous != null) {
+                size -= previous.length();
+                evicted.add(previous);
+            }
+            size += cachedFile.length();
+            Iterator<Map.Entry<String, CachedFile>> iterator = index.entrySet().iterator();
+            while (size > properties.maximumSizeInMb() * MB && iterator.hasNext()) {
+                CachedFile eldest = iterator.next().getValue();
+                iterator.remove();
+                size -= eldest.length();
+                evicted.add(eldest);
+            }
+        }
+        evicted.forEach(file -> discard(file.path()));
+    }
+
+    // A file that is neither in the index nor being read has been, or is about to be, deleted.
+    private Runnable acquire(CachedFile cachedFile) {
+        Path path = cachedFile.path();
+        synchronized (this) {
+            CachedFile current = index.get(cachedFile.key());
+            if (!readers.containsKey(path) && (current == null || !current.path().equals(path))) {
+                throw new IllegalStateException("'" + cachedFile.key() + "' was evicted from the cache.");
+            }
+            readers.merge(path, 1, Integer::sum);
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                release(path);
+            }
+        };
+    }
+
+    private void release(Path path) {
+        boolean evicted;
+        synchronized (this) {
+            Integer remaining = readers.computeIfPresent(path, (ignored, count) -> count > 1 ? count - 1 : null);
+            evicted = remaining == null && evictedWhileRead.remove(path);
+        }
+        if (evicted) {
+            delete(path);
+        }
+    }
+
+    private void discard(Path path) {
+        synchronized (this) {
+            if (readers.containsKey(path)) {
+                evictedWhileRead.add(path);
+                return;
+            }
+        }
+        delete(path);
+    }
+
+    private static boolean isCacheFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(TMP_SUFFIX) || name.endsWith(FILE_SUFFIX);
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Error deleting the cache file '{}'.", path, e);
+        }
+    }
+
+    public record CachedFile(String key,
+                             String eTag,
+                             Path path,
+                             long length,
+                             String type,
+                             String name,
+                             Instant lastModified,
+                             String encoding,
+                             Long decodedLength,
+                             Instant validatedAt) {
+
+        CachedFile validatedNow() {
+            return new CachedFile(key, eTag, path, length, type, name, lastModified, encoding, decodedLength,
+                    Instant.now());
+        }
+    }
+
+    private record Fill(Path file, AsynchronousFileChannel channel, AtomicLong written) {
+        Fill(Path file, AsynchronousFileChannel channel) {
+            this(file, channel, new AtomicLong());
+        }
+    }
+}
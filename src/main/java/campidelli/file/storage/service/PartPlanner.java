@@ -0,0 +1,68 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides how a ranged multipart download is split and how many of its parts are fetched at once.
+// Parts are 'minimumPartSizeInMb' unless the object would need more than the 10,000 parts S3 allows. Enough parts
+// are downloaded in parallel to reach 'throughputInGbps', within the connections the parts already in flight
+// leave free, and never fewer than 'readAheadParts' + 1 so a download under load still streams ahead.
+@Component
+public class PartPlanner {
+
+    static final int MAXIMUM_PARTS = 10_000;
+    // A single connection to S3 delivers about 90 MB/s.
+    static final double CONNECTION_THROUGHPUT_IN_MB_PER_SECOND = 90.0;
+    private static final long MB = 1024 * 1024;
+
+    private final S3Properties.Multipart properties;
+    private final AtomicInteger partsInFlight = new AtomicInteger();
+
+    @Autowired
+    public PartPlanner(S3Properties s3Properties) {
+        this.properties = s3Properties.multipart();
+    }
+
+    public Plan plan(long objectSize) {
+        if (objectSize <= 0) {
+            return new Plan(0, 0, 0);
+        }
+        long minimumPartSize = properties.minimumPartSizeInMb() * MB;
+        long partSize = Math.max(minimumPartSize, ceilDiv(ceilDiv(objectSize, MAXIMUM_PARTS), MB) * MB);
+        return new Plan(objectSize, partSize, (int) ceilDiv(objectSize, partSize));
+    }
+
+    public int concurrency(int partCount) {
+        int connectionsForThroughput = (int) Math.ceil(
+                properties.throughputInGbps() * 1000 / 8 / CONNECTION_THROUGHPUT_IN_MB_PER_SECOND);
+        int freeConnections = properties.maxConnections() - partsInFlight.get();
+        int concurrency = Math.max(properties.readAheadParts() + 1, Math.min(connectionsForThroughput, freeConnections));
+        return Math.max(1, Math.min(partCount, concurrency));
+    }
+
+    public void partStarted() {
+        partsInFlight.incrementAndGet();
+    }
+
+    public void partFinished() {
+        partsInFlight.decrementAndGet();
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    public record Plan(long objectSize, long partSize, int partCount) {
+
+        public long offset(int partNumber) {
+            return (partNumber - 1) * partSize;
+        }
+
+        public long length(int partNumber) {
+            return Math.min(partSize, objectSize - offset(partNumber));
+        }
+    }
+}
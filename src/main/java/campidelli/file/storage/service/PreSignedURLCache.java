@@ -0,0 +1,104 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.FileCacheProperties;
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.dto.PreSignedURL;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers the pre-signed part URLs of an object, keyed by bucket, key and ETag, so a hot object neither needs a
+// GetObjectAttributes request nor a signature per part on every call. A plan is trusted without asking S3 for as
+// long as the metadata cache would trust the metadata of the object, and it's invalidated along with it.
+// URLs are only handed out while at least half of their validity is left, so clients always have time to use them.
+@Component
+public class PreSignedURLCache {
+
+    private final Duration timeToLive;
+    private final Duration revalidateAfter;
+    private final int maximumEntries;
+    private final ShardRouter shardRouter;
+    private final Map<Location, Plan> plans = new ConcurrentHashMap<>();
+
+    @Autowired
+    public PreSignedURLCache(S3Properties s3Properties,
+                             FileCacheProperties fileCacheProperties,
+                             FileMetadataCache metadataCache,
+                             ShardRouter shardRouter) {
+        this.timeToLive = s3Properties.preSignedURLDuration().dividedBy(2);
+        this.revalidateAfter = fileCacheProperties.metadata().timeToLive();
+        this.maximumEntries = s3Properties.multipart().maximumCachedPlans();
+        this.shardRouter = shardRouter;
+        metadataCache.addEvictionListener(this::evict);
+    }
+
+    // The plan of the latest known version of the object, while it doesn't need to be revalidated.
+    public Optional<List<PreSignedURL>> get(String bucket, String key) {
+        Plan plan = getPlan(bucket, key);
+        if (plan == null || plan.revalidateAt().isBefore(Instant.now())) {
+            return Optional.empty();
+        }
+        return Optional.of(plan.urls());
+    }
+
+    // The plan of the version of the object whose ETag has just been read from S3.
+    public Optional<List<PreSignedURL>> get(String bucket, String key, String eTag) {
+        Location location = new Location(bucket, key);
+        Plan plan = getPlan(bucket, key);
+        if (plan == null || !plan.eTag().equals(eTag)) {
+            return Optional.empty();
+        }
+        plans.replace(location, plan, plan.revalidated(Instant.now().plus(revalidateAfter)));
+        return Optional.of(plan.urls());
+    }
+
+    // The URLs must have been signed at 'signedAt' or later.
+    public void put(String bucket, String key, String eTag, List<PreSignedURL> urls, Instant signedAt) {
+        if (eTag == null) {
+            return;
+        }
+        if (plans.size() >= maximumEntries) {
+            Instant now = Instant.now();
+            plans.values().removeIf(plan -> plan.expiresAt().isBefore(now));
+            if (plans.size() >= maximumEntries) {
+                return;
+            }
+        }
+        plans.put(new Location(bucket, key),
+                new Plan(eTag, List.copyOf(urls), signedAt.plus(timeToLive), Instant.now().plus(revalidateAfter)));
+    }
+
+    // Writes only go to the current shard of the key.
+    public void evict(String key) {
+        ShardRouter.Shard shard = shardRouter.locate(key);
+        plans.remove(new Location(shard.bucket(), shard.toObjectKey(key)));
+    }
+
+    private Plan getPlan(String bucket, String key) {
+        Location location = new Location(bucket, key);
+        Plan plan = plans.get(location);
+        if (plan == null) {
+            return null;
+        }
+        if (plan.expiresAt().isBefore(Instant.now())) {
+            plans.remove(location, plan);
+            return null;
+        }
+        return plan;
+    }
+
+    private record Location(String bucket, String key) { }
+
+    private record Plan(String eTag, List<PreSignedURL> urls, Instant expiresAt, Instant revalidateAt) {
+
+        Plan revalidated(Instant revalidateAt) {
+            return new Plan(eTag, urls, expiresAt, revalidateAt);
+        }
+    }
+}
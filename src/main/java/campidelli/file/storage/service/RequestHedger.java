@@ -0,0 +1,133 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.HedgingProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Sends a second, identical request when the first one hasn't answered within the 'percentile' of the recent
+// times to first byte of the same operation, measured over the last 'sampleSize' requests ('initialDelay' until
+// there are enough of them). Whichever answers first is kept and the other one is cancelled, so a request that
+// stalls on a slow connection or server doesn't set the tail latency. Errors are not hedged, the first signal
+// wins. Every request adds 'budgetPercent' / 100 to a budget of up to 'maximumBurst' hedges, and every hedge
+// takes one, so hedges never go over 'budgetPercent' of the requests, even when everything is slow.
+@Component
+public class RequestHedger {
+
+    private final HedgingProperties properties;
+    private final TransferMetrics metrics;
+    private final Map<String, LatencyTracker> trackers = new ConcurrentHashMap<>();
+    private double budget;
+
+    @Autowired
+    public RequestHedger(HedgingProperties properties, TransferMetrics metrics) {
+        this.properties = properties;
+        this.metrics = metrics;
+    }
+
+    // The value of the request that lost, if it got one, is handed to 'discard'.
+    public <T> Mono<T> hedge(String operation, Class<T> type, Supplier<Mono<T>> request, Consumer<? super T> discard) {
+        if (!properties.enabled()) {
+            return Mono.defer(request);
+        }
+        return Mono.defer(() -> {
+            LatencyTracker tracker = trackers.computeIfAbsent(operation, ignored -> new LatencyTracker());
+            deposit();
+            Mono<T> hedged = Mono.delay(tracker.getThreshold())
+                    .flatMap(ignored -> {
+                        if (!withdraw()) {
+                            return Mono.never();
+                        }
+                        metrics.recordHedge(operation);
+                        return tracker.time(request.get());
+                    });
+            return Mono.firstWithSignal(tracker.time(request.get()), hedged)
+                    .doOnDiscard(type, discard);
+        });
+    }
+
+    // The first element of the content is its first byte.
+    public <T> Flux<T> hedgeMany(String operation, Supplier<Flux<T>> request) {
+        if (!properties.enabled()) {
+            return Flux.defer(request);
+        }
+        return Flux.defer(() -> {
+            LatencyTracker tracker = trackers.computeIfAbsent(operation, ignored -> new LatencyTracker());
+            deposit();
+            Flux<T> hedged = Mono.delay(tracker.getThreshold())
+                    .flatMapMany(ignored -> {
+                        if (!withdraw()) {
+                            return Flux.never();
+                        }
+                        metrics.recordHedge(operation);
+                        return tracker.time(request.get());
+                    });
+            return Flux.firstWithSignal(tracker.time(request.get()), hedged);
+        });
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(properties.maximumBurst(), budget + properties.budgetPercent() / 100);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    // Keeps the last times to first byte and works out the threshold again every tenth of them.
+    private class LatencyTracker {
+
+        private final long[] samples = new long[Math.max(1, properties.sampleSize())];
+        private final int recomputeInterval = Math.max(1, samples.length / 10);
+        private long count;
+        private volatile Duration threshold = properties.initialDelay();
+
+        Duration getThreshold() {
+            return threshold;
+        }
+
+        <T> Mono<T> time(Mono<T> request) {
+            return Mono.defer(() -> {
+                long start = System.nanoTime();
+                return request.doOnNext(ignored -> record(System.nanoTime() - start));
+            });
+        }
+
+        <T> Flux<T> time(Flux<T> request) {
+            return Flux.defer(() -> {
+                long start = System.nanoTime();
+                AtomicBoolean first = new AtomicBoolean(true);
+                return request.doOnNext(ignored -> {
+                    if (first.compareAndSet(true, false)) {
+                        record(System.nanoTime() - start);
+                    }
+                });
+            });
+        }
+
+        private synchronized void record(long nanos) {
+            samples[(int) (count % samples.length)] = nanos;
+            count++;
+            if (count >= samples.length && count % recomputeInterval == 0) {
+                long[] sorted = samples.clone();
+                Arrays.sort(sorted);
+                int index = (int) Math.min(sorted.length - 1, Math.ceil(properties.percentile() * sorted.length) - 1);
+                Duration percentile = Duration.ofNanos(sorted[Math.max(0, index)]);
+                threshold = percentile.compareTo(properties.minimumDelay()) > 0 ? percentile : properties.minimumDelay();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.ResilienceProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+// Gets requests to S3 through transient errors. A request that fails with a network error, a 5xx or a 429 is
+// sent again after a backoff that starts at 'firstBackoff' and doubles up to 'maximumBackoff', with 'jitter', at
+// most 'maximumAttempts' times in a row. A stream of content that breaks goes on from the byte it had reached,
+// and the attempts start over every time it makes progress. All of them go through a circuit breaker, so when
+// S3 browns out the requests fail straight away with a 503 instead of piling up.
+@Component
+public class ResilientFetcher {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVER_ERROR = 500;
+
+    private final ResilienceProperties properties;
+    private final CircuitBreaker circuitBreaker;
+    private final TransferMetrics metrics;
+
+    @Autowired
+    public ResilientFetcher(ResilienceProperties properties, TransferMetrics metrics) {
+        this.properties = properties;
+        this.circuitBreaker = new CircuitBreaker(properties.circuitBreaker());
+        this.metrics = metrics;
+    }
+
+    public <T> Mono<T> fetch(String operation, Supplier<Mono<T>> request) {
+        if (!properties.enabled()) {
+            return Mono.defer(request);
+        }
+        return Mono.defer(() -> {
+                    if (!circuitBreaker.tryAcquire()) {
+                        return Mono.error(unavailable());
+                    }
+                    return request.get()
+                            .doOnNext(ignored -> circuitBreaker.onSuccess())
+                            .doOnError(this::onError)
+                            .doOnCancel(circuitBreaker::onCancel);
+                })
+                .retryWhen(retry(operation));
+    }
+
+    // Every attempt requests the content from the byte reached, the first one from the beginning.
+    public <T> Flux<T> fetchMany(String operation, LongFunction<Flux<T>> from, ToLongFunction<T> size) {
+        if (!properties.enabled()) {
+            return Flux.defer(() -> from.apply(0));
+        }
+        return resume(operation, Flux.defer(() -> attempt(from.apply(0))), size, from);
+    }
+
+    // The first attempt is the content already requested, the next ones are requested from the byte reached.
+    public <T> Flux<T> resume(String operation, Flux<T> content, ToLongFunction<T> size, LongFunction<Flux<T>> from) {
+        if (!properties.enabled()) {
+            return content;
+        }
+        return Flux.defer(() -> {
+            AtomicBoolean firstAttempt = new AtomicBoolean(true);
+            AtomicLong position = new AtomicLong();
+            return Flux.defer(() -> firstAttempt.getAndSet(false) ? content : attempt(from.apply(position.get())))
+                    .doOnNext(item -> position.addAndGet(size.applyAsLong(item)))
+                    .retryWhen(retry(operation).transientErrors(true));
+        });
+    }
+
+    private <T> Flux<T> attempt(Flux<T> content) {
+        if (!circuitBreaker.tryAcquire()) {
+            return Flux.error(unavailable());
+        }
+        AtomicBoolean started = new AtomicBoolean();
+        return content
+                .doOnNext(ignored -> {
+                    if (started.compareAndSet(false, true)) {
+                        circuitBreaker.onSuccess();
+                    }
+                })
+                .doOnError(this::onError)
+                .doOnCancel(circuitBreaker::onCancel);
+    }
+
+    private void onError(Throwable throwable) {
+        if (isRetryable(throwable)) {
+            circuitBreaker.onFailure();
+        } else {
+            circuitBreaker.onCancel();
+        }
+    }
+
+    private RetryBackoffSpec retry(String operation) {
+        return Retry.backoff(Math.max(0, properties.maximumAttempts() - 1), properties.firstBackoff())
+                .maxBackoff(properties.maximumBackoff())
+                .jitter(properties.jitter())
+                .filter(ResilientFetcher::isRetryable)
+                .doBeforeRetry(signal -> metrics.recordRetry(operation))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private static ResponseStatusException unavailable() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                "The storage is unavailable, try again later.");
+    }
+
+    static boolean isRetryable(Throwable throwable) {
+        if (throwable instanceof SdkServiceException serviceException) {
+            return isRetryable(serviceException.statusCode());
+        }
+        if (throwable instanceof WebClientResponseException responseException) {
+            return isRetryable(responseException.getStatusCode().value());
+        }
+        if (throwable instanceof SdkClientException
+                || throwable instanceof WebClientRequestException
+                || throwable instanceof IOException) {
+            return true;
+        }
+        return throwable.getCause() != null && throwable.getCause() != throwable && isRetryable(throwable.getCause());
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode >= SERVER_ERROR || statusCode == TOO_MANY_REQUESTS;
+    }
+}
@@ -1,117 +1,420 @@
 package campidelli.file.storage.service;
 
 import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.dto.DeleteResult;
 import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import campidelli.file.storage.service.LocalFileCacheService.CachedFile;
 import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscription;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.BaseSubscriber;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import software.amazon.awssdk.core.async.AsyncRequestBody;
-import software.amazon.awssdk.core.async.AsyncResponseTransformer;
-import software.amazon.awssdk.core.async.ResponsePublisher;
-import software.amazon.awssdk.services.s3.S3AsyncClient;
-import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.transfer.s3.S3TransferManager;
-import software.amazon.awssdk.transfer.s3.model.Upload;
-import software.amazon.awssdk.transfer.s3.model.UploadRequest;
-import software.amazon.awssdk.transfer.s3.progress.LoggingTransferListener;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static software.amazon.awssdk.transfer.s3.SizeConstant.MB;
 
 @Service
 @Slf4j
 public class S3AsyncFileRepositoryService {
 
-    private final S3AsyncClient s3AsyncClient;
-    private final S3TransferManager transferManager;
+    private final StorageBackend storageBackend;
     private final S3Properties s3Properties;
+    private final LocalFileCacheService fileCache;
+    private final FileMetadataCache metadataCache;
+    private final CompressionService compressionService;
+    private final ContentIndex contentIndex;
+    private final UploadPipeline uploadPipeline;
+    private final DownloadCoalescer downloadCoalescer;
+    private final RequestHedger requestHedger;
+    private final ResilientFetcher resilientFetcher;
+    private final TransferRegistry transferRegistry;
+    private final TransferMetrics metrics;
 
     @Autowired
-    public S3AsyncFileRepositoryService(S3AsyncClient s3AsyncClient,
-                                        S3TransferManager transferManager,
-                                        S3Properties s3Properties) {
-        this.s3AsyncClient = s3AsyncClient;
-        this.transferManager = transferManager;
+    public S3AsyncFileRepositoryService(StorageBackend storageBackend,
+                                        S3Properties s3Properties,
+                                        LocalFileCacheService fileCache,
+                                        FileMetadataCache metadataCache,
+                                        CompressionService compressionService,
+                                        ContentIndex contentIndex,
+                                        UploadPipeline uploadPipeline,
+                                        DownloadCoalescer downloadCoalescer,
+                                        RequestHedger requestHedger,
+                                        ResilientFetcher resilientFetcher,
+                                        TransferRegistry transferRegistry,
+                                        TransferMetrics metrics) {
+        this.storageBackend = storageBackend;
         this.s3Properties = s3Properties;
+        this.fileCache = fileCache;
+        this.metadataCache = metadataCache;
+        this.compressionService = compressionService;
+        this.contentIndex = contentIndex;
+        this.uploadPipeline = uploadPipeline;
+        this.downloadCoalescer = downloadCoalescer;
+        this.requestHedger = requestHedger;
+        this.resilientFetcher = resilientFetcher;
+        this.transferRegistry = transferRegistry;
+        this.metrics = metrics;
     }
 
     public Flux<String> listFiles() {
-        return Flux.create((emitter) -> {
-            CompletableFuture<ListObjectsResponse> future = s3AsyncClient.listObjects(
-                    request -> request.bucket(s3Properties.bucket()));
-            future.whenComplete((response, throwable) -> {
-                if (throwable == null) {
-                    response.contents().stream()
-                            .map(S3Object::key)
-                            .forEach(emitter::next);
-                }
-                emitter.complete();
-            });
-        });
+        return listFiles(new FileListRequest())
+                .map(FileEntry::getKey);
+    }
+
+    public Flux<FileEntry> listFiles(FileListRequest fileListRequest) {
+        // Keys stored before deduplication was enabled are still in the bucket, next to the blobs.
+        if (contentIndex.isEnabled()) {
+            Flux<FileEntry> stored = storageBackend.list(ListObjectsV2Support.toMergedRequest(fileListRequest))
+                    .filter(entry -> !contentIndex.isBlob(entry.getKey()));
+            Flux<FileEntry> indexed = Flux.defer(() -> Flux.fromIterable(contentIndex.list(fileListRequest)));
+            Flux<FileEntry> merged = Flux.mergeComparing(Comparator.comparing(FileEntry::getKey), indexed, stored);
+            return metrics.time(TransferMetrics.ASYNC, "list", merged.distinctUntilChanged(FileEntry::getKey));
+        }
+        return metrics.time(TransferMetrics.ASYNC, "list", storageBackend.list(fileListRequest));
+    }
+
+    public Mono<FileMetadata> getFileMetadata(String id) {
+        Optional<FileMetadata> cachedMetadata = metadataCache.get(id);
+        if (cachedMetadata.isPresent()) {
+            return metrics.time(TransferMetrics.ASYNC, "head", Mono.just(cachedMetadata.get()));
+        }
+
+        return metrics.time(TransferMetrics.ASYNC, "head", storageBackend.head(contentIndex.resolve(id))
+                .doOnNext(metadata -> metadataCache.put(id, metadata)));
     }
 
     public Mono<FileDownload> getFile(String id) {
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                .bucket(s3Properties.bucket())
-                .key(id)
-                .build();
+        return getFile(id, null);
+    }
 
-        CompletableFuture<ResponsePublisher<GetObjectResponse>> future = s3AsyncClient.getObject(getObjectRequest,
-                AsyncResponseTransformer.toPublisher());
+    // The range is a HTTP byte range, e.g. "bytes=0-1023", or null to download the whole object.
+    // When the object is in the local cache, the backend is only asked whether it has changed since, unless
+    // the cached file was validated recently or the cached metadata already tells that it hasn't. Objects
+    // the backend already has in local files, which it exposes for zero-copy, are not cached again.
+    public Mono<FileDownload> getFile(String id, String range) {
+        Optional<CachedFile> cachedFile = fileCache.get(id)
+                .filter(file -> range == null || isSatisfiable(range, file.length()));
+        if (cachedFile.isPresent() && (fileCache.isFresh(cachedFile.get()) || metadataCache.get(id)
+                .filter(metadata -> cachedFile.get().eTag().equals(metadata.getETag()))
+                .isPresent())) {
+            return metrics.time(TransferMetrics.ASYNC, "get",
+                    Mono.fromSupplier(() -> fileCache.toFileDownload(cachedFile.get(), range)));
+        }
 
-        return Mono.fromFuture(future)
-                .map(response -> FileDownload.builder()
-                        .name(getMetadataItem(response.response(), "filename", id))
-                        .type(response.response().contentType())
-                        .length(response.response().contentLength())
-                        .content(Flux.from(response))
-                        .build());
+        String key = contentIndex.resolve(id);
+        // Times the request up to the response headers, the body is accounted for by whoever consumes it.
+        if (range == null && cachedFile.isEmpty() && downloadCoalescer.isEnabled()) {
+            String eTag = metadataCache.get(id).map(FileMetadata::getETag).orElse(null);
+            return metrics.time(TransferMetrics.ASYNC, "get", downloadCoalescer.download(key, eTag,
+                    () -> download(id, key, null, null),
+                    (expectedETag, offset) -> getContent(key, expectedETag, offset)));
+        }
+        return metrics.time(TransferMetrics.ASYNC, "get", download(id, key, range, cachedFile.map(CachedFile::eTag).orElse(null))
+                .onErrorResume(e -> cachedFile.isPresent() && isNotModified(e),
+                        e -> {
+                            fileCache.validated(cachedFile.get());
+                            return Mono.fromSupplier(() -> fileCache.toFileDownload(cachedFile.get(), range));
+                        }));
     }
 
-    private String getMetadataItem(GetObjectResponse sdkResponse, String key, String defaultValue) {
-        for (Map.Entry<String, String> entry : sdkResponse.metadata().entrySet()) {
-            if (entry.getKey().equalsIgnoreCase(key)) {
-                return entry.getValue();
+    private Mono<FileDownload> download(String id, String key, String range, String ifNoneMatch) {
+        return resilientFetcher.fetch("get", () -> requestHedger.hedge("get", FileDownload.class,
+                        () -> storageBackend.get(key, range, ifNoneMatch), S3AsyncFileRepositoryService::discard))
+                .map(fileDownload -> {
+                    if (range == null) {
+                        metadataCache.put(id, toFileMetadata(fileDownload));
+                    }
+                    // Drops the cached copy, if any, as the object has changed since it was cached.
+                    fileCache.get(id, fileDownload.getETag());
+                    if (fileDownload.getFile() == null) {
+                        fileDownload.setContent(resumable(key, fileDownload));
+                        fileDownload.setContent(fileCache.fill(id, fileDownload));
+                    }
+                    return fileDownload;
+                });
+    }
+
+    // The response of a hedged request that lost is cancelled, so its connection is released.
+    private static void discard(FileDownload fileDownload) {
+        if (fileDownload.getContent() != null) {
+            fileDownload.getContent().subscribe(new BaseSubscriber<>() {
+                @Override
+                protected void hookOnSubscribe(Subscription subscription) {
+                    cancel();
+                }
+            });
+        }
+    }
+
+    // Content that breaks goes on with a ranged GET of the same version, from the byte it had reached.
+    private Flux<ByteBuffer> resumable(String key, FileDownload fileDownload) {
+        long start = 0;
+        long end = fileDownload.getLength() - 1;
+        String contentRange = fileDownload.getContentRange();
+        if (contentRange != null) {
+            // e.g. "bytes 0-1023/4096"
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                return fileDownload.getContent();
             }
+            start = Long.parseLong(contentRange.substring(contentRange.indexOf(' ') + 1, dash));
+            end = Long.parseLong(contentRange.substring(dash + 1, slash));
+        }
+        if (end < start) {
+            return fileDownload.getContent();
         }
-        return defaultValue;
+        long first = start;
+        String last = String.valueOf(end);
+        return resilientFetcher.resume("get", fileDownload.getContent(), ByteBuffer::remaining,
+                position -> getContent(key, fileDownload.getETag(), first + position, last));
     }
 
-    public Mono<Void> saveFile(Flux<DataBuffer> dataBufferFlux, String type, Long length, String id) {
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(s3Properties.bucket())
-                .key(id)
-                .contentLength(length)
-                .contentType(type)
-                .build();
+    // The rest of a shared download, for a reader that fell behind. It fails if the object has changed since.
+    private Flux<ByteBuffer> getContent(String key, String eTag, long offset) {
+        return getContent(key, eTag, offset, "");
+    }
 
-        Flux<ByteBuffer> byteBufferFlux = dataBufferFlux
-                .flatMap(dataBuffer -> Flux.fromIterable(dataBuffer::readableByteBuffers));
+    private Flux<ByteBuffer> getContent(String key, String eTag, long offset, String end) {
+        return storageBackend.get(key, "bytes=" + offset + "-" + end, null)
+                .flatMapMany(fileDownload -> eTag.equals(fileDownload.getETag())
+                        ? fileDownload.getContent()
+                        : Flux.error(new IllegalStateException("'" + key + "' has changed while it was downloaded.")));
+    }
 
-        UploadRequest uploadRequest = UploadRequest.builder()
-                .putObjectRequest(putObjectRequest)
-                .requestBody(AsyncRequestBody.fromPublisher(byteBufferFlux))
-                .addTransferListener(LoggingTransferListener.create())
+    private FileMetadata toFileMetadata(FileDownload fileDownload) {
+        return FileMetadata.builder()
+                .name(fileDownload.getName())
+                .type(fileDownload.getType())
+                .length(fileDownload.getLength())
+                .eTag(fileDownload.getETag())
+                .lastModified(fileDownload.getLastModified())
+                .encoding(fileDownload.getEncoding())
                 .build();
+    }
+
+    private boolean isSatisfiable(String range, long length) {
+        List<HttpRange> ranges = HttpRange.parseRanges(range);
+        return ranges.size() == 1 && ranges.get(0).getRangeStart(length) < length;
+    }
+
+    private boolean isNotModified(Throwable throwable) {
+        return throwable instanceof ResponseStatusException responseStatusException
+                && responseStatusException.getStatusCode().value() == HttpStatus.NOT_MODIFIED.value();
+    }
+
+    // The length is null when it's not known upfront.
+    public Mono<Void> saveFile(Flux<DataBuffer> dataBufferFlux, String type, Long length, String id) {
+        Mono<Void> save;
+        if (contentIndex.isEnabled()) {
+            save = saveDeduplicatedFile(dataBufferFlux, type, id);
+        } else if (compressionService.isCompressible(type)) {
+            save = saveCompressedFile(dataBufferFlux, type, length, id);
+        } else if (length == null) {
+            save = saveStreamedFile(dataBufferFlux, type, id);
+        } else {
+            save = uploadFile(dataBufferFlux, type, length, id);
+        }
+        return metrics.time(TransferMetrics.ASYNC, "save", save);
+    }
 
-        Upload upload = transferManager.upload(uploadRequest);
+    private Mono<Void> uploadFile(Flux<DataBuffer> dataBufferFlux, String type, Long length, String id) {
+        return uploadPipeline.upload(dataBufferFlux, content -> storageBackend.put(id, type, null, Map.of(), length, content))
+                .doFinally(signal -> evict(id));
+    }
 
-        return Mono.fromFuture(upload.completionFuture())
-                .map(completedUpload -> completedUpload.response())
-                .handle((response, sink) -> {
-                    if (response.sdkHttpResponse() == null || !response.sdkHttpResponse().isSuccessful()) {
-                        sink.error(new RuntimeException(response.sdkHttpResponse().toString()));
+    // The compressed length is only known at the end. The uncompressed one is recorded when the client sent it.
+    private Mono<Void> saveCompressedFile(Flux<DataBuffer> dataBufferFlux, String type, Long length, String id) {
+        Map<String, String> metadata = length == null
+                ? Map.of()
+                : Map.of(CompressionService.UNCOMPRESSED_LENGTH, String.valueOf(length));
+        return transferRegistry.track(id, length, transfer -> uploadInParts(id, type, CompressionService.GZIP, metadata,
+                        compressionService.compress(transfer.count(dataBufferFlux))))
+                .doFinally(signal -> evict(id));
+    }
+
+    // Without a length the body can't be streamed straight into a PUT, so it's copied into parts instead and
+    // every buffer is released as soon as it's copied.
+    private Mono<Void> saveStreamedFile(Flux<DataBuffer> dataBufferFlux, String type, String id) {
+        return transferRegistry.track(id, null, transfer -> uploadInParts(id, type, null, Map.of(),
+                        transfer.count(dataBufferFlux).map(dataBuffer -> {
+                            try {
+                                byte[] bytes = new byte[dataBuffer.readableByteCount()];
+                                dataBuffer.read(bytes);
+                                return ByteBuffer.wrap(bytes);
+                            } finally {
+                                DataBufferUtils.release(dataBuffer);
+                            }
+                        })))
+                .doFinally(signal -> evict(id));
+    }
+
+    // Cuts the content in parts of 'minimumPartSizeInMb' as it arrives. Content that ends before filling the
+    // first part is sent in a single PUT, anything bigger as a multipart upload, up to 'uploadConcurrency' parts
+    // at a time, so at most that many parts, plus the one being filled, are held in memory.
+    private Mono<Void> uploadInParts(String id, String type, String encoding, Map<String, String> metadata,
+                                     Flux<ByteBuffer> content) {
+        long partSize = s3Properties.multipart().minimumPartSizeInMb() * MB;
+        return content
+                .bufferUntil(everyBytes(partSize))
+                .switchOnFirst((first, parts) -> {
+                    if (first.hasValue() && getLength(first.get()) >= partSize) {
+                        return uploadParts(id, type, encoding, metadata, parts);
                     }
-                }).then();
+                    return parts.next()
+                            .defaultIfEmpty(List.of())
+                            .flatMap(part -> storageBackend.put(id, type, encoding, metadata, getLength(part),
+                                    Flux.fromIterable(part)));
+                })
+                .then();
+    }
+
+    private Mono<Void> uploadParts(String id, String type, String encoding, Map<String, String> metadata,
+                                   Flux<List<ByteBuffer>> parts) {
+        return storageBackend.createMultipartUpload(id, type, encoding, metadata)
+                .flatMap(uploadId -> parts
+                        .index()
+                        .flatMapSequential(part -> storageBackend.uploadPart(id, uploadId,
+                                        part.getT1().intValue() + 1, getLength(part.getT2()),
+                                        Flux.fromIterable(part.getT2())),
+                                s3Properties.multipart().uploadConcurrency(), 1)
+                        .collectList()
+                        .flatMap(uploadedParts -> storageBackend.completeMultipartUpload(id, uploadId, uploadedParts))
+                        .onErrorResume(e -> storageBackend.abortMultipartUpload(id, uploadId)
+                                .onErrorResume(abortError -> Mono.empty())
+                                .then(Mono.error(e))));
+    }
+
+    // The body is spooled to a local file while its digest is computed, and only stored when no other
+    // key already points to the same content. The blob is reserved until the key points to it.
+    private Mono<Void> saveDeduplicatedFile(Flux<DataBuffer> dataBufferFlux, String type, String id) {
+        MessageDigest digest = ContentIndex.newDigest();
+        AtomicLong length = new AtomicLong();
+        Flux<DataBuffer> digestedFlux = dataBufferFlux.doOnNext(dataBuffer -> {
+            try (DataBuffer.ByteBufferIterator iterator = dataBuffer.readableByteBuffers()) {
+                iterator.forEachRemaining(byteBuffer -> {
+                    length.addAndGet(byteBuffer.remaining());
+                    digest.update(byteBuffer);
+                });
+            }
+        });
+
+        return Mono.using(contentIndex::createSpoolFile,
+                        spoolFile -> DataBufferUtils.write(digestedFlux, spoolFile)
+                                .then(Mono.defer(() -> {
+                                    String hash = ContentIndex.toHash(digest);
+                                    ContentIndex.Reservation reservation = contentIndex.reserve(hash);
+                                    Mono<Void> upload = reservation.uploadNeeded()
+                                            ? Mono.fromFuture(reservation.deletion(), true)
+                                                    .then(Mono.defer(() -> storageBackend.put(
+                                                            contentIndex.getBlobKey(hash), type, spoolFile)))
+                                            : Mono.empty();
+                                    return upload.then(Mono.fromCallable(() -> contentIndex.put(
+                                                    new ContentIndex.Entry(id, hash, length.get(), type, Instant.now()),
+                                                    reservation)))
+                                            .doOnError(e -> contentIndex.cancel(reservation))
+                                            .doOnCancel(() -> contentIndex.cancel(reservation));
+                                }))
+                                .flatMap(previous -> previous.map(this::releaseBlob).orElse(Mono.empty())),
+                        contentIndex::deleteSpoolFile)
+                .doFinally(signal -> evict(id));
+    }
+
+    private Mono<Void> releaseBlob(ContentIndex.Release release) {
+        if (!release.unreferenced()) {
+            return Mono.empty();
+        }
+        String hash = release.entry().hash();
+        return storageBackend.delete(contentIndex.getBlobKey(hash))
+                .doFinally(signal -> contentIndex.deleted(hash));
+    }
+
+    private static long getLength(List<ByteBuffer> content) {
+        return content.stream().mapToLong(ByteBuffer::remaining).sum();
+    }
+
+    // Closes a buffer every time the content accumulated since the previous one reaches the given size.
+    private static Predicate<ByteBuffer> everyBytes(long size) {
+        AtomicLong accumulated = new AtomicLong();
+        return byteBuffer -> {
+            if (accumulated.addAndGet(byteBuffer.remaining()) >= size) {
+                accumulated.set(0);
+                return true;
+            }
+            return false;
+        };
     }
 
     public Mono<Void> deleteFile(String id) {
-        CompletableFuture<DeleteObjectResponse> future = s3AsyncClient.deleteObject(
-                request -> request.bucket(s3Properties.bucket()).key(id));
-        return Mono.fromFuture(future).then();
+        Mono<Void> delete = contentIndex.isEnabled()
+                ? Mono.defer(() -> contentIndex.remove(id)
+                        .map(this::releaseBlob)
+                        .orElseGet(() -> storageBackend.delete(id)))
+                : storageBackend.delete(id);
+        return metrics.time(TransferMetrics.ASYNC, "delete", delete.doFinally(signal -> evict(id)));
+    }
+
+    // Deletes in batches of up to 1,000 keys, running 'bulkDeleteConcurrency' batches at once.
+    // The result of every key is emitted as soon as its batch is done.
+    public Flux<DeleteResult> deleteFiles(Flux<String> keys) {
+        return metrics.time(TransferMetrics.ASYNC, "bulk-delete", keys.buffer(DeleteObjectsSupport.MAXIMUM_KEYS_PER_REQUEST)
+                .flatMap(this::deleteFiles, s3Properties.bulkDeleteConcurrency()));
+    }
+
+    public Flux<DeleteResult> deleteFilesByPrefix(String prefix) {
+        Flux<String> keys = listFiles(FileListRequest.builder().prefix(prefix).build())
+                .map(FileEntry::getKey);
+        return deleteFiles(keys);
+    }
+
+    // Keys in the content index only drop their reference to a blob, the other ones are deleted in one request.
+    private Flux<DeleteResult> deleteFiles(List<String> keys) {
+        if (contentIndex.isEnabled()) {
+            Map<Boolean, List<String>> indexedKeys = keys.stream()
+                    .collect(Collectors.partitioningBy(key -> contentIndex.find(key).isPresent()));
+            Flux<DeleteResult> dereferenced = Flux.fromIterable(indexedKeys.get(true))
+                    .concatMap(key -> deleteFile(key)
+                            .thenReturn(DeleteResult.builder().key(key).deleted(true).build())
+                            .onErrorResume(e -> Mono.just(DeleteResult.builder().key(key).error(e.getMessage()).build())));
+            return indexedKeys.get(false).isEmpty()
+                    ? dereferenced
+                    : dereferenced.concatWith(deleteObjects(indexedKeys.get(false)));
+        }
+        return deleteObjects(keys);
+    }
+
+    private Flux<DeleteResult> deleteObjects(List<String> keys) {
+        return storageBackend.delete(keys)
+                .doOnNext(result -> {
+                    if (result.isDeleted()) {
+                        evict(result.getKey());
+                    }
+                });
+    }
+
+    private void evict(String id) {
+        metadataCache.evict(id);
+        fileCache.evict(id);
     }
 }
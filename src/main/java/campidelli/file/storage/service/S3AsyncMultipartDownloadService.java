@@ -0,0 +1,82 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.dto.PreSignedURL;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+
+@Service
+@Slf4j
+public class S3AsyncMultipartDownloadService {
+
+    private final WebClient webClient;
+    private final S3Properties s3Properties;
+    private final TransferMetrics metrics;
+    private final PartPlanner partPlanner;
+    private final RequestHedger requestHedger;
+    private final ResilientFetcher resilientFetcher;
+
+    @Autowired
+    public S3AsyncMultipartDownloadService(WebClient preSignedURLWebClient,
+                                           S3Properties s3Properties,
+                                           TransferMetrics metrics,
+                                           PartPlanner partPlanner,
+                                           RequestHedger requestHedger,
+                                           ResilientFetcher resilientFetcher) {
+        this.webClient = preSignedURLWebClient;
+        this.s3Properties = s3Properties;
+        this.metrics = metrics;
+        this.partPlanner = partPlanner;
+        this.requestHedger = requestHedger;
+        this.resilientFetcher = resilientFetcher;
+    }
+
+    // Streams the parts in order. While the current part is being written, the following parts are already
+    // downloading, as many at once as the plan's concurrency, each one holding at most 'readAheadBuffersPerPart'
+    // buffers.
+    public Flux<DataBuffer> download(List<PreSignedURL> preSignedURLs) {
+        int concurrency = preSignedURLs.isEmpty() ? 1 : Math.max(1, preSignedURLs.get(0).getConcurrency());
+        return Flux.fromIterable(preSignedURLs)
+                .flatMapSequential(this::downloadPart,
+                        concurrency,
+                        s3Properties.multipart().readAheadBuffersPerPart())
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    // The part latency goes from the request to the last byte received, read ahead parts included.
+    // The Range header of a part is signed, so a part that breaks is requested again and the bytes already
+    // streamed are skipped, which keeps the output going on from the exact byte it had reached.
+    public Flux<DataBuffer> downloadPart(PreSignedURL preSignedURL) {
+        log.debug("Processing part {}", preSignedURL.getPartNumber());
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            partPlanner.partStarted();
+            return resilientFetcher.fetchMany("part",
+                            position -> DataBufferUtils.skipUntilByteCount(fetchPart(preSignedURL), position),
+                            DataBuffer::readableByteCount)
+                    .doFinally(signal -> {
+                        partPlanner.partFinished();
+                        metrics.recordPart(Duration.ofNanos(System.nanoTime() - start), TransferMetrics.toOutcome(signal));
+                    });
+        });
+    }
+
+    private Flux<DataBuffer> fetchPart(PreSignedURL preSignedURL) {
+        // The pre-signed URL is already encoded, using a URI prevents it from being encoded again.
+        return requestHedger.hedgeMany("part", () -> webClient.get()
+                .uri(URI.create(preSignedURL.getUrl().toExternalForm()))
+                .headers(headers -> headers.addAll(CollectionUtils.toMultiValueMap(preSignedURL.getHeaders())))
+                .retrieve()
+                .bodyToFlux(DataBuffer.class));
+    }
+}
@@ -4,7 +4,10 @@ import campidelli.file.storage.config.S3Properties;
 import campidelli.file.storage.dto.PreSignedURL;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
@@ -14,9 +17,10 @@ import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignReques
 
 import java.net.URL;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Function;
 
 @Slf4j
 @Service
@@ -26,13 +30,31 @@ class S3AsyncMultipartFileRepositoryService {
     private final S3AsyncClient s3Client;
     private final S3Properties s3Properties;
     private final S3Presigner s3Presigner;
+    private final ContentIndex contentIndex;
+    private final PreSignedURLCache preSignedURLCache;
+    private final ShardRouter shardRouter;
+    private final PartPlanner partPlanner;
+    private final TransferMetrics metrics;
+    private final AwsRequestOverrideConfiguration overrideConfiguration;
 
     public S3AsyncMultipartFileRepositoryService(S3AsyncClient s3Client,
                                                  S3Properties s3Properties,
-                                                 S3Presigner s3Presigner) {
+                                                 S3Presigner s3Presigner,
+                                                 ContentIndex contentIndex,
+                                                 PreSignedURLCache preSignedURLCache,
+                                                 ShardRouter shardRouter,
+                                                 PartPlanner partPlanner,
+                                                 TransferMetrics metrics,
+                                                 AwsRequestOverrideConfiguration overrideConfiguration) {
         this.s3Client = s3Client;
         this.s3Properties = s3Properties;
         this.s3Presigner = s3Presigner;
+        this.contentIndex = contentIndex;
+        this.preSignedURLCache = preSignedURLCache;
+        this.shardRouter = shardRouter;
+        this.partPlanner = partPlanner;
+        this.metrics = metrics;
+        this.overrideConfiguration = overrideConfiguration;
     }
 
     public URL getPreSignedGetObjectURL(GetObjectRequest getObjectRequest, Duration duration) {
@@ -52,67 +74,120 @@ class S3AsyncMultipartFileRepositoryService {
         return s3Presigner.presignPutObject(preSignPutObjectRequest).url();
     }
 
-    public Mono<List<PreSignedURL>> getPreSignedGetObjectURLs(String bucket, String key) {
+    // Hot objects are served from the cache, without going to S3, until their plan has to be revalidated. Then
+    // only the attributes are read again, the URLs are re-signed when the ETag has changed or they're too old.
+    // The concurrency depends on the current load, so it's planned on every request.
+    public Mono<List<PreSignedURL>> getPreSignedGetObjectURLs(String id) {
+        String key = contentIndex.resolve(id);
+        ShardRouter.Shard shard = shardRouter.locate(key);
+        Optional<List<PreSignedURL>> cachedURLs = preSignedURLCache.get(shard.bucket(), shard.toObjectKey(key));
+        if (cachedURLs.isPresent()) {
+            return metrics.time(TransferMetrics.ASYNC, "presign", Mono.just(withConcurrency(cachedURLs.get())));
+        }
+        return metrics.time(TransferMetrics.ASYNC, "presign", shardRouter.read(key, current ->
+                        getPreSignedGetObjectURLs(current.bucket(), current.toObjectKey(key)))
+                .map(this::withConcurrency));
+    }
+
+    private Mono<List<PreSignedURL>> getPreSignedGetObjectURLs(String bucket, String key) {
         GetObjectAttributesRequest request = GetObjectAttributesRequest.builder()
                 .bucket(bucket)
                 .key(key)
-                .objectAttributes(ObjectAttributes.OBJECT_SIZE, ObjectAttributes.OBJECT_PARTS)
+                .objectAttributes(ObjectAttributes.E_TAG, ObjectAttributes.OBJECT_SIZE, ObjectAttributes.OBJECT_PARTS)
+                .overrideConfiguration(overrideConfiguration)
                 .build();
 
         return Mono.fromFuture(s3Client.getObjectAttributes(request))
-                .map(response -> getPreSignedGetObjectURLs(bucket, key, response));
+                .flatMap(response -> preSignedURLCache.get(bucket, key, response.eTag())
+                        .map(Mono::just)
+                        .orElseGet(() -> {
+                            Instant signedAt = Instant.now();
+                            return getPreSignedGetObjectURLs(bucket, key, response)
+                                    .zipWith(getEncoding(bucket, key), this::withEncoding)
+                                    .doOnNext(urls -> preSignedURLCache.put(bucket, key, response.eTag(), urls, signedAt));
+                        }));
     }
 
-    private List<PreSignedURL> getPreSignedGetObjectURLs(String bucket, String key, GetObjectAttributesResponse response) {
-        if (response.objectParts() != null && response.objectParts().totalPartsCount() > 0) {
-            return getPreSignedGetObjectURLsUsingObjectParts(bucket, key, response.objectParts().totalPartsCount());
-        }
-        return getPreSignedGetObjectURLsUsingByteRange(bucket, key, response.objectSize());
+    // The attributes of an object don't include its Content-Encoding, so it's read once per signed plan.
+    private Mono<HeadObjectResponse> getEncoding(String bucket, String key) {
+        return Mono.fromFuture(s3Client.headObject(request -> request
+                .bucket(bucket)
+                .key(key)
+                .overrideConfiguration(overrideConfiguration)));
     }
 
-    private List<PreSignedURL> getPreSignedGetObjectURLsUsingObjectParts(String bucket, String key, int numberOfParts) {
-        List<PreSignedURL> result = new ArrayList<>(numberOfParts);
-        for (int partNumber = 1; partNumber <= numberOfParts; partNumber++) {
-            result.add(getPreSignedGetObjectURLObjectParts(bucket, key, partNumber));
+    private List<PreSignedURL> withEncoding(List<PreSignedURL> urls, HeadObjectResponse response) {
+        if (response.contentEncoding() == null) {
+            return urls;
         }
-        return result;
+        String decodedLength = response.metadata().get(CompressionService.UNCOMPRESSED_LENGTH);
+        return urls.stream()
+                .map(url -> url.toBuilder()
+                        .encoding(response.contentEncoding())
+                        .decodedLength(decodedLength == null ? null : Long.valueOf(decodedLength))
+                        .build())
+                .toList();
+    }
+
+    private List<PreSignedURL> withConcurrency(List<PreSignedURL> urls) {
+        int concurrency = partPlanner.concurrency(urls.size());
+        return urls.stream()
+                .map(url -> url.toBuilder().concurrency(concurrency).build())
+                .toList();
     }
 
-    private List<PreSignedURL> getPreSignedGetObjectURLsUsingByteRange(String bucket, String key, long objectSize) {
-        int numberOfParts = (int) Math.ceil((double) objectSize / s3Properties.multipart().minimumPartSizeInMb());
-        List<PreSignedURL> result = new ArrayList<>(numberOfParts);
-        for (int partNumber = 1; partNumber <= numberOfParts; partNumber++) {
-            String range = getRange(partNumber, objectSize, s3Properties.multipart().minimumPartSizeInMb());
-            result.add(getPreSignedGetObjectURLUsingByteRange(bucket, key, partNumber, range));
+    Mono<List<PreSignedURL>> getPreSignedGetObjectURLs(String bucket, String key, GetObjectAttributesResponse response) {
+        if (response.objectParts() != null && response.objectParts().totalPartsCount() > 0) {
+            int partCount = response.objectParts().totalPartsCount();
+            return sign(partCount, partNumber -> getPreSignedGetObjectURLObjectParts(bucket, key, partNumber, partCount));
         }
-        return result;
+        PartPlanner.Plan plan = partPlanner.plan(response.objectSize());
+        return sign(plan.partCount(), partNumber -> getPreSignedGetObjectURLUsingByteRange(bucket, key, partNumber, plan));
+    }
+
+    // Signing is CPU bound, so the parts are split in one batch per core and the batches are signed in parallel.
+    private Mono<List<PreSignedURL>> sign(int numberOfParts, Function<Integer, PreSignedURL> signer) {
+        int batchSize = Math.max(1, (int) Math.ceil((double) numberOfParts / Schedulers.DEFAULT_POOL_SIZE));
+        return Flux.range(1, numberOfParts)
+                .buffer(batchSize)
+                .flatMapSequential(partNumbers -> Mono.fromCallable(() -> partNumbers.stream().map(signer).toList())
+                        .subscribeOn(Schedulers.parallel()))
+                .concatMapIterable(urls -> urls)
+                .collectList();
     }
 
-    private String getRange(int partNumber, long objectSize, long chunkSize) {
+    // The last part ends at the end of the object.
+    static String getRange(int partNumber, long objectSize, long chunkSize) {
         long from = calculateRangeFrom(partNumber, chunkSize);
-        long to = calculateRangeTo(partNumber, objectSize < chunkSize ? objectSize : chunkSize);
+        long to = calculateRangeTo(partNumber, objectSize, chunkSize);
         return String.format("bytes=%d-%d",from, to);
     }
 
-    private long calculateRangeFrom(int partNumber, long chunkSize) {
+    private static long calculateRangeFrom(int partNumber, long chunkSize) {
         return (partNumber - 1) * chunkSize;
     }
 
-    private long calculateRangeTo(int partNumber, long chunkSize) {
-        return (partNumber * chunkSize) - 1;
+    private static long calculateRangeTo(int partNumber, long objectSize, long chunkSize) {
+        return Math.min(partNumber * chunkSize, objectSize) - 1;
     }
 
-    private PreSignedURL getPreSignedGetObjectURLObjectParts(String bucket, String key, int partNumber) {
-        return getPreSignedGetObjectURL(bucket, key, partNumber, Optional.empty());
+    private PreSignedURL getPreSignedGetObjectURLObjectParts(String bucket, String key, int partNumber, int partCount) {
+        return getPreSignedGetObjectURL(bucket, key, partNumber, partCount, Optional.empty());
     }
 
-    private PreSignedURL getPreSignedGetObjectURLUsingByteRange(String bucket, String key, int partNumber, String range) {
-        return getPreSignedGetObjectURL(bucket, key, partNumber, Optional.of(range));
+    private PreSignedURL getPreSignedGetObjectURLUsingByteRange(String bucket, String key, int partNumber,
+                                                                PartPlanner.Plan plan) {
+        String range = getRange(partNumber, plan.objectSize(), plan.partSize());
+        PreSignedURL preSignedURL = getPreSignedGetObjectURL(bucket, key, partNumber, plan.partCount(), Optional.of(range));
+        preSignedURL.setOffset(plan.offset(partNumber));
+        preSignedURL.setLength(plan.length(partNumber));
+        return preSignedURL;
     }
 
     private PreSignedURL getPreSignedGetObjectURL(String bucket,
                                                   String key,
                                                   int partNumber,
+                                                  int partCount,
                                                   Optional<String> range) {
 
         GetObjectRequest getObjectRequest = makeGetObjectRequest(bucket, key, partNumber, range);
@@ -123,6 +198,7 @@ class S3AsyncMultipartFileRepositoryService {
                 .partNumber(partNumber)
                 .url(preSignedGetObjectRequest.url())
                 .headers(preSignedGetObjectRequest.signedHeaders())
+                .partCount(partCount)
                 .build();
     }
 
@@ -0,0 +1,254 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.UploadSessionProperties;
+import campidelli.file.storage.dto.UploadSession;
+import campidelli.file.storage.dto.UploadSessionPart;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+// Resumable uploads. Every session is backed by a multipart upload of the storage backend and chunks sent to it become
+// its parts, so a chunk that fails half way can be sent again from the last offset the session knows about.
+// As all the parts of a multipart upload but the last must have at least 5 MB, smaller chunks are kept in a local
+// file next to the session until, with the chunks after them, they make a part that big, or the session is completed.
+@Service
+@Slf4j
+public class S3AsyncUploadSessionService {
+
+    private static final int MAXIMUM_NUMBER_OF_PARTS = 10_000;
+    private static final long MINIMUM_PART_SIZE = 5 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final StorageBackend storageBackend;
+    private final UploadSessionStore sessionStore;
+    private final UploadSessionProperties properties;
+    private final FileMetadataCache metadataCache;
+    private final LocalFileCacheService fileCache;
+    private final UploadPipeline uploadPipeline;
+    private final TransferRegistry transferRegistry;
+    // Sessions that have a chunk being uploaded, chunks of the same session are not accepted concurrently.
+    private final Set<String> busySessions = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public S3AsyncUploadSessionService(StorageBackend storageBackend,
+                                       UploadSessionStore sessionStore,
+                                       UploadSessionProperties properties,
+                                       FileMetadataCache metadataCache,
+                                       LocalFileCacheService fileCache,
+                                       UploadPipeline uploadPipeline,
+                                       TransferRegistry transferRegistry) {
+        this.storageBackend = storageBackend;
+        this.sessionStore = sessionStore;
+        this.properties = properties;
+        this.metadataCache = metadataCache;
+        this.fileCache = fileCache;
+        this.uploadPipeline = uploadPipeline;
+        this.transferRegistry = transferRegistry;
+    }
+
+    public Mono<UploadSession> createSession(String key, String type) {
+        return storageBackend.createMultipartUpload(key, type, null, Map.of())
+                .map(uploadId -> {
+                    Instant now = Instant.now();
+                    UploadSession session = UploadSession.builder()
+                            .id(UUID.randomUUID().toString())
+                            .key(key)
+                            .type(type)
+                            .uploadId(uploadId)
+                            .createdAt(now)
+                            .expiresAt(now.plus(properties.timeToLive()))
+                            .build();
+                    sessionStore.save(session);
+                    return session;
+                });
+    }
+
+    public Mono<UploadSession> getSession(String id) {
+        return Mono.justOrEmpty(sessionStore.find(id))
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(NOT_FOUND, "Upload session '" + id + "' not found.")));
+    }
+
+    public Mono<UploadSession> appendChunk(String id, long offset, long length, Flux<DataBuffer> content) {
+        return getSession(id)
+                .flatMap(session -> {
+                    if (session.getOffset() != offset) {
+                        return Mono.error(new ResponseStatusException(CONFLICT,
+                                "Upload-Offset " + offset + " doesn't match the session offset " + session.getOffset() + "."));
+                    }
+                    if (session.getParts().size() >= MAXIMUM_NUMBER_OF_PARTS) {
+                        return Mono.error(new ResponseStatusException(BAD_REQUEST,
+                                "Upload session '" + id + "' already has " + MAXIMUM_NUMBER_OF_PARTS + " parts."));
+                    }
+                    if (!busySessions.add(id)) {
+                        return Mono.error(new ResponseStatusException(CONFLICT,
+                                "Upload session '" + id + "' is already receiving a chunk."));
+                    }
+                    // The session may have expired since it was read. A chunk written now would bring it back.
+                    if (sessionStore.find(id).isEmpty()) {
+                        busySessions.remove(id);
+                        return Mono.error(new ResponseStatusException(NOT_FOUND, "Upload session '" + id + "' not found."));
+                    }
+                    // Every chunk is a transfer of its own, that can be followed and cancelled.
+                    Mono<UploadSession> append = transferRegistry.track(session.getKey(), length, transfer ->
+                            session.getPendingLength() + length < MINIMUM_PART_SIZE
+                                    ? holdChunk(session, length, transfer.count(content))
+                                    : uploadPart(session, length, transfer.count(content)));
+                    return append
+                            .doOnNext(ignored -> {
+                                session.setOffset(offset + length);
+                                session.setExpiresAt(Instant.now().plus(properties.timeToLive()));
+                                sessionStore.save(session);
+                            })
+                            .as(request -> release(id, request));
+                });
+    }
+
+    // The session is free again before the response is sent, so the client can send the next chunk right away.
+    private <T> Mono<T> release(String id, Mono<T> request) {
+        return request
+                .doOnSuccess(ignored -> busySessions.remove(id))
+                .doOnError(e -> busySessions.remove(id))
+                .doOnCancel(() -> busySessions.remove(id));
+    }
+
+    // Writes the chunk after the ones already held, a chunk that breaks half way is written again over its remains.
+    private Mono<UploadSession> holdChunk(UploadSession session, long length, Flux<DataBuffer> content) {
+        Path pendingFile = sessionStore.getPendingFile(session.getId());
+        AtomicLong written = new AtomicLong();
+        return Mono.using(
+                () -> AsynchronousFileChannel.open(pendingFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                channel -> DataBufferUtils.write(content, channel, session.getPendingLength())
+                        .doOnNext(dataBuffer -> written.addAndGet(dataBuffer.readableByteCount()))
+                        .doOnNext(DataBufferUtils::release)
+                        .then(Mono.fromCallable(() -> {
+                            checkLength(session, length, written.get());
+                            session.setPendingLength(session.getPendingLength() + length);
+                            return session;
+                        })),
+                channel -> {
+                    try {
+                        channel.close();
+                    } catch (Exception e) {
+                        log.warn("Error closing the pending chunks of the upload session '{}'.", session.getId(), e);
+                    }
+                });
+    }
+
+    // Uploads the chunks held by the session, if any, followed by the given content as a single part.
+    private Mono<UploadSession> uploadPart(UploadSession session, long length, Flux<DataBuffer> content) {
+        long pendingLength = session.getPendingLength();
+        long partLength = pendingLength + length;
+        Flux<DataBuffer> partContent = pendingLength == 0 ? content : Flux.concat(readPendingChunks(session), content);
+        int partNumber = session.getParts().size() + 1;
+        return uploadPipeline.upload(partContent, byteBuffers -> storageBackend.uploadPart(session.getKey(),
+                        session.getUploadId(), partNumber, partLength, byteBuffers))
+                .map(part -> {
+                    session.getParts().add(UploadSessionPart.builder()
+                            .partNumber(part.partNumber())
+                            .eTag(part.eTag())
+                            .length(partLength)
+                            .build());
+                    session.setPendingLength(0);
+                    return session;
+                });
+    }
+
+    private Flux<DataBuffer> readPendingChunks(UploadSession session) {
+        Path pendingFile = sessionStore.getPendingFile(session.getId());
+        return DataBufferUtils.takeUntilByteCount(DataBufferUtils.readAsynchronousFileChannel(
+                        () -> AsynchronousFileChannel.open(pendingFile, StandardOpenOption.READ),
+                        DefaultDataBufferFactory.sharedInstance, READ_BUFFER_SIZE),
+                session.getPendingLength());
+    }
+
+    private static void checkLength(UploadSession session, long expected, long actual) {
+        if (expected != actual) {
+            throw new ResponseStatusException(BAD_REQUEST, "Chunk of the upload session '" + session.getId()
+                    + "' has " + actual + " bytes, but its Content-Length is " + expected + ".");
+        }
+    }
+
+    public Mono<Void> completeSession(String id) {
+        return getSession(id)
+                .flatMap(session -> {
+                    if (session.getParts().isEmpty() && session.getPendingLength() == 0) {
+                        return Mono.error(new ResponseStatusException(BAD_REQUEST, "Upload session '" + id + "' has no chunks."));
+                    }
+                    if (!busySessions.add(id)) {
+                        return Mono.error(new ResponseStatusException(CONFLICT,
+                                "Upload session '" + id + "' is receiving a chunk."));
+                    }
+                    // The chunks still held locally make the last part, which may be smaller than 5 MB.
+                    Mono<UploadSession> lastPart = session.getPendingLength() == 0
+                            ? Mono.just(session)
+                            : uploadPart(session, 0, Flux.empty()).doOnNext(sessionStore::save);
+                    return lastPart
+                            .flatMap(ignored -> storageBackend.completeMultipartUpload(session.getKey(), session.getUploadId(),
+                                    session.getParts().stream()
+                                            .map(part -> new StorageBackend.Part(part.getPartNumber(), part.getETag()))
+                                            .toList()))
+                            .doOnSuccess(ignored -> {
+                                sessionStore.delete(id);
+                                metadataCache.evict(session.getKey());
+                                fileCache.evict(session.getKey());
+                            })
+                            .as(request -> release(id, request));
+                });
+    }
+
+    public Mono<Void> abortSession(String id) {
+        return getSession(id)
+                .flatMap(this::abortSession);
+    }
+
+    @Scheduled(fixedDelayString = "${storage.uploadSession.cleanupInterval}")
+    public void abortExpiredSessions() {
+        List<UploadSession> expiredSessions = sessionStore.findExpired(Instant.now());
+        if (!expiredSessions.isEmpty()) {
+            log.info("Aborting {} expired upload sessions.", expiredSessions.size());
+            Flux.fromIterable(expiredSessions)
+                    .flatMap(session -> abortExpiredSession(session.getId()))
+                    .onErrorContinue((e, session) -> log.warn("Error aborting the upload session {}.", session, e))
+                    .blockLast();
+        }
+    }
+
+    // The session is held busy until it's deleted, so no chunk starts in between. One that was received since
+    // the session was found renewed it, and it's kept.
+    private Mono<Void> abortExpiredSession(String id) {
+        if (!busySessions.add(id)) {
+            return Mono.empty();
+        }
+        return Mono.justOrEmpty(sessionStore.find(id))
+                .filter(session -> session.getExpiresAt().isBefore(Instant.now()))
+                .flatMap(this::abortSession)
+                .as(request -> release(id, request));
+    }
+
+    private Mono<Void> abortSession(UploadSession session) {
+        return storageBackend.abortMultipartUpload(session.getKey(), session.getUploadId())
+                .doOnSuccess(ignored -> sessionStore.delete(session.getId()));
+    }
+}
@@ -0,0 +1,354 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.dto.DeleteResult;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.transfer.s3.S3TransferManager;
+import software.amazon.awssdk.transfer.s3.model.FileUpload;
+import software.amazon.awssdk.transfer.s3.model.Upload;
+import software.amazon.awssdk.transfer.s3.model.UploadFileRequest;
+import software.amazon.awssdk.transfer.s3.model.UploadRequest;
+import software.amazon.awssdk.transfer.s3.progress.LoggingTransferListener;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+@Service
+@ConditionalOnProperty(prefix = "storage.backend", name = "type", havingValue = "s3", matchIfMissing = true)
+@Slf4j
+public class S3StorageBackend implements StorageBackend {
+
+    private final S3AsyncClient s3AsyncClient;
+    private final S3TransferManager transferManager;
+    private final ShardRouter shardRouter;
+    private final TransferRegistry transferRegistry;
+    private final AwsRequestOverrideConfiguration overrideConfiguration;
+
+    @Autowired
+    public S3StorageBackend(S3AsyncClient s3AsyncClient,
+                            S3TransferManager transferManager,
+                            ShardRouter shardRouter,
+                            TransferRegistry transferRegistry,
+                            AwsRequestOverrideConfiguration overrideConfiguration) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.transferManager = transferManager;
+        this.shardRouter = shardRouter;
+        this.transferRegistry = transferRegistry;
+        this.overrideConfiguration = overrideConfiguration;
+    }
+
+    // Follows the continuation tokens of ListObjectsV2, the next page is only requested once the
+    // subscriber has consumed the entries of the current one. The listings of several shards are merged in order.
+    @Override
+    @SuppressWarnings("unchecked")
+    public Flux<FileEntry> list(FileListRequest fileListRequest) {
+        List<ShardRouter.Shard> shards = shardRouter.getAllShards();
+        if (shards.size() == 1) {
+            return list(shards.get(0), fileListRequest);
+        }
+        FileListRequest mergedRequest = ListObjectsV2Support.toMergedRequest(fileListRequest);
+        List<Flux<FileEntry>> listings = shards.stream()
+                .map(shard -> list(shard, mergedRequest))
+                .toList();
+        Comparator<FileEntry> byKey = Comparator.comparing(FileEntry::getKey);
+        Flux<FileEntry> merged = Flux.mergeComparing(byKey, listings.toArray(Flux[]::new));
+        return merged.distinctUntilChanged(FileEntry::getKey);
+    }
+
+    private Flux<FileEntry> list(ShardRouter.Shard shard, FileListRequest fileListRequest) {
+        ListObjectsV2Request request = ListObjectsV2Support.toRequest(shard, fileListRequest).toBuilder()
+                .overrideConfiguration(overrideConfiguration)
+                .build();
+        return Flux.from(s3AsyncClient.listObjectsV2Paginator(request))
+                .concatMapIterable(page -> ListObjectsV2Support.toFileEntries(page, shard));
+    }
+
+    @Override
+    public Mono<FileMetadata> head(String key) {
+        return shardRouter.read(key, shard -> head(shard, key));
+    }
+
+    private Mono<FileMetadata> head(ShardRouter.Shard shard, String key) {
+        return Mono.fromFuture(() -> s3AsyncClient.headObject(request -> request
+                        .bucket(shard.bucket())
+                        .key(shard.toObjectKey(key))
+                        .overrideConfiguration(overrideConfiguration)))
+                .map(response -> FileMetadata.builder()
+                        .name(getMetadataItem(response.metadata(), "filename", key))
+                        .type(response.contentType())
+                        .length(response.contentLength())
+                        .eTag(response.eTag())
+                        .lastModified(response.lastModified())
+                        .encoding(response.contentEncoding())
+                        .build());
+    }
+
+    @Override
+    public Mono<FileDownload> get(String key, String range, String ifNoneMatch) {
+        return shardRouter.read(key, shard -> get(shard, key, range, ifNoneMatch));
+    }
+
+    // Like every request here, the GET is only sent when the Mono is subscribed, and again on every subscription.
+    private Mono<FileDownload> get(ShardRouter.Shard shard, String key, String range, String ifNoneMatch) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(shard.bucket())
+                .key(shard.toObjectKey(key))
+                .range(range)
+                .ifNoneMatch(ifNoneMatch)
+                .overrideConfiguration(overrideConfiguration)
+                .build();
+
+        return Mono.fromFuture(() -> s3AsyncClient.getObject(getObjectRequest, AsyncResponseTransformer.toPublisher()))
+                .map(response -> FileDownload.builder()
+                        .name(getMetadataItem(response.response().metadata(), "filename", key))
+                        .type(response.response().contentType())
+                        .length(response.response().contentLength())
+                        .eTag(response.response().eTag())
+                        .lastModified(response.response().lastModified())
+                        .encoding(response.response().contentEncoding())
+                        .decodedLength(getDecodedLength(response.response()))
+                        .contentRange(range == null ? null : response.response().contentRange())
+                        .content(Flux.from(response))
+                        .build())
+                .onErrorMap(this::isNotModified, e -> new ResponseStatusException(HttpStatus.NOT_MODIFIED, null, e));
+    }
+
+    @Override
+    public Mono<Void> put(String key, String type, String encoding, Map<String, String> metadata, Long length,
+                          Flux<ByteBuffer> content) {
+        return Mono.defer(() -> put(shardRouter.locate(key), key, type, encoding, metadata, length, content));
+    }
+
+    private Mono<Void> put(ShardRouter.Shard shard, String key, String type, String encoding,
+                           Map<String, String> metadata, Long length, Flux<ByteBuffer> content) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(shard.bucket())
+                .key(shard.toObjectKey(key))
+                .contentLength(length)
+                .contentType(type)
+                .contentEncoding(encoding)
+                .metadata(metadata)
+                .overrideConfiguration(overrideConfiguration)
+                .build();
+
+        TransferRegistry.Transfer transfer = transferRegistry.start(key, length);
+        UploadRequest uploadRequest = UploadRequest.builder()
+                .putObjectRequest(putObjectRequest)
+                .requestBody(AsyncRequestBody.fromPublisher(content))
+                .addTransferListener(LoggingTransferListener.create())
+                .addTransferListener(transfer)
+                .build();
+
+        Upload upload = transferManager.upload(uploadRequest);
+        transfer.bind(upload.completionFuture());
+
+        return Mono.fromFuture(upload.completionFuture())
+                .onErrorMap(CancellationException.class, e -> transfer.toCancelledException())
+                .map(completedUpload -> completedUpload.response())
+                .handle((response, sink) -> {
+                    if (response.sdkHttpResponse() == null || !response.sdkHttpResponse().isSuccessful()) {
+                        sink.error(new RuntimeException(response.sdkHttpResponse().toString()));
+                    }
+                })
+                .then(afterWrite(key, shard));
+    }
+
+    @Override
+    public Mono<Void> put(String key, String type, Path file) {
+        return Mono.defer(() -> put(shardRouter.locate(key), key, type, file));
+    }
+
+    private Mono<Void> put(ShardRouter.Shard shard, String key, String type, Path file) {
+        TransferRegistry.Transfer transfer = transferRegistry.start(key, null);
+        UploadFileRequest uploadFileRequest = UploadFileRequest.builder()
+                .putObjectRequest(request -> request
+                        .bucket(shard.bucket())
+                        .key(shard.toObjectKey(key))
+                        .contentType(type)
+                        .overrideConfiguration(overrideConfiguration))
+                .source(file)
+                .addTransferListener(LoggingTransferListener.create())
+                .addTransferListener(transfer)
+                .build();
+        FileUpload upload = transferManager.uploadFile(uploadFileRequest);
+        transfer.bind(upload.completionFuture());
+        return Mono.fromFuture(upload.completionFuture())
+                .onErrorMap(CancellationException.class, e -> transfer.toCancelledException())
+                .then(afterWrite(key, shard));
+    }
+
+    @Override
+    public Mono<Void> delete(String key) {
+        return Mono.defer(() -> delete(shardRouter.locate(key), key))
+                .then(afterDelete(key));
+    }
+
+    private Mono<Void> delete(ShardRouter.Shard shard, String key) {
+        return Mono.fromFuture(() -> s3AsyncClient.deleteObject(request -> request
+                        .bucket(shard.bucket())
+                        .key(shard.toObjectKey(key))
+                        .overrideConfiguration(overrideConfiguration)))
+                .then();
+    }
+
+    // A key written or deleted during a rebalance is removed from its previous shard, so the migration doesn't
+    // bring an older version back. A migration copy that landed on the key before that replaced the write, which
+    // fails to be retried, or undid the delete, which is done again. Writes that started before the rebalance
+    // went to the previous shard, which is kept.
+    private Mono<Void> afterWrite(String key, ShardRouter.Shard shard) {
+        return Mono.defer(() -> shardRouter.locatePrevious(key)
+                .filter(previous -> !previous.equals(shard))
+                .map(previous -> delete(previous, key)
+                        .then(isMoved(shard, key))
+                        .flatMap(moved -> moved ? Mono.<Void>error(ShardRouter.toMovedException(key)) : Mono.empty()))
+                .orElse(Mono.empty()));
+    }
+
+    private Mono<Void> afterDelete(String key) {
+        return Mono.defer(() -> shardRouter.locatePrevious(key)
+                .map(previous -> {
+                    ShardRouter.Shard shard = shardRouter.locate(key);
+                    return delete(previous, key)
+                            .then(isMoved(shard, key))
+                            .flatMap(moved -> moved ? delete(shard, key) : Mono.empty());
+                })
+                .orElse(Mono.empty()));
+    }
+
+    private Mono<Boolean> isMoved(ShardRouter.Shard shard, String key) {
+        return Mono.fromFuture(() -> s3AsyncClient.headObject(request -> request
+                        .bucket(shard.bucket())
+                        .key(shard.toObjectKey(key))
+                        .overrideConfiguration(overrideConfiguration)))
+                .map(response -> ShardRouter.isMoved(response.metadata()))
+                .onErrorResume(ShardRouter::isNotFound, e -> Mono.just(false));
+    }
+
+    // Up to 1,000 keys, in a single DeleteObjects request per shard.
+    @Override
+    public Flux<DeleteResult> delete(List<String> keys) {
+        return Flux.defer(() -> Flux.fromIterable(shardRouter.groupByShard(keys).entrySet()))
+                .concatMap(group -> delete(group.getKey(), group.getValue()))
+                .concatWith(Flux.fromIterable(keys)
+                        .concatMap(this::afterDelete)
+                        .onErrorResume(e -> Mono.empty())
+                        .thenMany(Flux.<DeleteResult>empty()));
+    }
+
+    private Flux<DeleteResult> delete(ShardRouter.Shard shard, List<String> keys) {
+        List<String> objectKeys = keys.stream()
+                .map(shard::toObjectKey)
+                .toList();
+        DeleteObjectsRequest request = DeleteObjectsSupport.toRequest(shard.bucket(), objectKeys).toBuilder()
+                .overrideConfiguration(overrideConfiguration)
+                .build();
+        return Mono.fromFuture(() -> s3AsyncClient.deleteObjects(request))
+                .map(DeleteObjectsSupport::toDeleteResults)
+                .onErrorResume(e -> Mono.just(DeleteObjectsSupport.toDeleteResults(objectKeys, e)))
+                .flatMapIterable(results -> results)
+                .doOnNext(result -> result.setKey(shard.toKey(result.getKey())));
+    }
+
+    @Override
+    public Mono<String> createMultipartUpload(String key, String type, String encoding, Map<String, String> metadata) {
+        return Mono.defer(() -> {
+                    ShardRouter.Shard shard = shardRouter.locate(key);
+                    return Mono.fromFuture(s3AsyncClient.createMultipartUpload(request -> request
+                            .bucket(shard.bucket())
+                            .key(shard.toObjectKey(key))
+                            .contentType(type)
+                            .contentEncoding(encoding)
+                            .metadata(metadata)
+                            .overrideConfiguration(overrideConfiguration)));
+                })
+                .map(CreateMultipartUploadResponse::uploadId);
+    }
+
+    // The parts of an upload created before a rebalance go to the shard it was created in.
+    @Override
+    public Mono<Part> uploadPart(String key, String uploadId, int partNumber, long length, Flux<ByteBuffer> content) {
+        return shardRouter.read(key, shard -> uploadPart(shard, key, uploadId, partNumber, length, content));
+    }
+
+    private Mono<Part> uploadPart(ShardRouter.Shard shard, String key, String uploadId, int partNumber, long length,
+                                  Flux<ByteBuffer> content) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(shard.bucket())
+                .key(shard.toObjectKey(key))
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength(length)
+                .overrideConfiguration(overrideConfiguration)
+                .build();
+
+        return Mono.fromFuture(() -> s3AsyncClient.uploadPart(uploadPartRequest, AsyncRequestBody.fromPublisher(content)))
+                .map(response -> new Part(partNumber, response.eTag()));
+    }
+
+    @Override
+    public Mono<Void> completeMultipartUpload(String key, String uploadId, List<Part> parts) {
+        List<CompletedPart> completedParts = parts.stream()
+                .map(part -> CompletedPart.builder()
+                        .partNumber(part.partNumber())
+                        .eTag(part.eTag())
+                        .build())
+                .toList();
+        return shardRouter.read(key, shard -> Mono.fromFuture(() -> s3AsyncClient.completeMultipartUpload(request -> request
+                                .bucket(shard.bucket())
+                                .key(shard.toObjectKey(key))
+                                .uploadId(uploadId)
+                                .multipartUpload(upload -> upload.parts(completedParts))
+                                .overrideConfiguration(overrideConfiguration)))
+                        .map(ignored -> shard))
+                .flatMap(shard -> afterWrite(key, shard));
+    }
+
+    @Override
+    public Mono<Void> abortMultipartUpload(String key, String uploadId) {
+        return shardRouter.read(key, shard -> Mono.fromFuture(() -> s3AsyncClient.abortMultipartUpload(request -> request
+                        .bucket(shard.bucket())
+                        .key(shard.toObjectKey(key))
+                        .uploadId(uploadId)
+                        .overrideConfiguration(overrideConfiguration))))
+                .doOnError(e -> log.warn("Error aborting the multipart upload '{}' of '{}'.", uploadId, key, e))
+                .then();
+    }
+
+    private Long getDecodedLength(GetObjectResponse response) {
+        String decodedLength = getMetadataItem(response.metadata(), CompressionService.UNCOMPRESSED_LENGTH, null);
+        return decodedLength == null ? null : Long.valueOf(decodedLength);
+    }
+
+    private boolean isNotModified(Throwable throwable) {
+        return throwable instanceof S3Exception s3Exception
+                && s3Exception.statusCode() == HttpStatus.NOT_MODIFIED.value();
+    }
+
+    private String getMetadataItem(Map<String, String> metadata, String key, String defaultValue) {
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key)) {
+                return entry.getValue();
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -1,6 +1,10 @@
 package campidelli.file.storage.service;
 
 import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.dto.DeleteResult;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -8,64 +12,527 @@ import org.springframework.web.multipart.MultipartFile;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
-import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static software.amazon.awssdk.transfer.s3.SizeConstant.MB;
 
 @Service
 @Slf4j
 public class S3SyncFileRepositoryService {
     private final S3Client s3Client;
     private final S3Properties s3Properties;
+    private final ShardRouter shardRouter;
+    private final LocalFileCacheService fileCache;
+    private final FileMetadataCache metadataCache;
+    private final ExecutorService syncUploadExecutor;
+    private final ExecutorService syncDeleteExecutor;
+    private final ContentIndex contentIndex;
+    private final TransferMetrics metrics;
 
     @Autowired
     public S3SyncFileRepositoryService(S3Client s3Client,
-                                       S3Properties s3Properties) {
+                                       S3Properties s3Properties,
+                                       ShardRouter shardRouter,
+                                       LocalFileCacheService fileCache,
+                                       FileMetadataCache metadataCache,
+                                       ExecutorService syncUploadExecutor,
+                                       ExecutorService syncDeleteExecutor,
+                                       ContentIndex contentIndex,
+                                       TransferMetrics metrics) {
         this.s3Client = s3Client;
         this.s3Properties = s3Properties;
+        this.shardRouter = shardRouter;
+        this.fileCache = fileCache;
+        this.metadataCache = metadataCache;
+        this.syncUploadExecutor = syncUploadExecutor;
+        this.syncDeleteExecutor = syncDeleteExecutor;
+        this.contentIndex = contentIndex;
+        this.metrics = metrics;
     }
 
     public void createBucketIfNotExists() {
+        shardRouter.getAllShards().stream()
+                .map(ShardRouter.Shard::bucket)
+                .distinct()
+                .forEach(this::createBucketIfNotExists);
+    }
+
+    private void createBucketIfNotExists(String bucket) {
         try {
-            s3Client.headBucket(request -> request.bucket(s3Properties.bucket()));
-            log.info("S3 bucket '{}' found.", s3Properties.bucket());
+            s3Client.headBucket(request -> request.bucket(bucket));
+            log.info("S3 bucket '{}' found.", bucket);
         } catch (NoSuchBucketException e) {
-            log.info("S3 bucket '{}' not found. Creating.", s3Properties.bucket());
-            s3Client.createBucket(request -> request.bucket(s3Properties.bucket()));
+            log.info("S3 bucket '{}' not found. Creating.", bucket);
+            s3Client.createBucket(request -> request.bucket(bucket));
         }
     }
 
     public List<String> listFiles() {
-        ListObjectsResponse listObjectsResponse = s3Client.listObjects(request -> request.bucket(s3Properties.bucket()));
-        if (listObjectsResponse == null) {
-            log.warn("Couldn't list the S3 files.");
-            return new ArrayList<String>();
+        return listFiles(new FileListRequest())
+                .map(FileEntry::getKey)
+                .toList();
+    }
+
+    // Pages are fetched lazily, as the returned stream is consumed. The listings of several shards are merged in
+    // order.
+    public Stream<FileEntry> listFiles(FileListRequest fileListRequest) {
+        // Keys stored before deduplication was enabled are still in the bucket, next to the blobs.
+        if (contentIndex.isEnabled()) {
+            Stream<FileEntry> stored = listObjects(ListObjectsV2Support.toMergedRequest(fileListRequest))
+                    .filter(entry -> !contentIndex.isBlob(entry.getKey()));
+            return ListObjectsV2Support.merge(List.of(contentIndex.list(fileListRequest).stream(), stored));
         }
-        return listObjectsResponse.contents().stream()
-                        .map(S3Object::key)
-                        .toList();
+        return listObjects(fileListRequest);
+    }
+
+    private Stream<FileEntry> listObjects(FileListRequest fileListRequest) {
+        List<ShardRouter.Shard> shards = shardRouter.getAllShards();
+        if (shards.size() == 1) {
+            return listFiles(shards.get(0), fileListRequest);
+        }
+        FileListRequest mergedRequest = ListObjectsV2Support.toMergedRequest(fileListRequest);
+        return ListObjectsV2Support.merge(shards.stream()
+                .map(shard -> listFiles(shard, mergedRequest))
+                .toList());
+    }
+
+    private Stream<FileEntry> listFiles(ShardRouter.Shard shard, FileListRequest fileListRequest) {
+        ListObjectsV2Request request = ListObjectsV2Support.toRequest(shard, fileListRequest);
+        return s3Client.listObjectsV2Paginator(request).stream()
+                .flatMap(page -> ListObjectsV2Support.toFileEntries(page, shard).stream());
+    }
+
+    public FileMetadata getFileMetadata(String id) {
+        return metrics.time(TransferMetrics.SYNC, "head", () -> metadataCache.get(id)
+                .orElseGet(() -> headFile(id)));
+    }
+
+    private FileMetadata headFile(String id) {
+        String key = contentIndex.resolve(id);
+        HeadObjectResponse response = shardRouter.readSync(key, shard ->
+                s3Client.headObject(request -> request.bucket(shard.bucket()).key(shard.toObjectKey(key))));
+        FileMetadata metadata = FileMetadata.builder()
+                .name(response.metadata().getOrDefault("filename", id))
+                .type(response.contentType())
+                .length(response.contentLength())
+                .eTag(response.eTag())
+                .lastModified(response.lastModified())
+                .encoding(response.contentEncoding())
+                .build();
+        metadataCache.put(id, metadata);
+        return metadata;
     }
 
     public ResponseInputStream<GetObjectResponse> getFile(String id) {
-        return s3Client.getObject(request -> request.bucket(s3Properties.bucket()).key(id));
+        return getFile(id, null);
+    }
+
+    // The range is a HTTP byte range, e.g. "bytes=0-1023", or null to download the whole object.
+    public ResponseInputStream<GetObjectResponse> getFile(String id, String range) {
+        String key = contentIndex.resolve(id);
+        return metrics.time(TransferMetrics.SYNC, "get", () -> shardRouter.readSync(key, shard ->
+                s3Client.getObject(request -> request.bucket(shard.bucket()).key(shard.toObjectKey(key)).range(range))));
     }
 
     public void saveFile(MultipartFile file) {
+        metrics.time(TransferMetrics.SYNC, "save", () -> saveMultipartFile(file));
+    }
+
+    private void saveMultipartFile(MultipartFile file) {
+        if (contentIndex.isEnabled()) {
+            try (InputStream inputStream = file.getInputStream()) {
+                saveDeduplicatedFile(file.getOriginalFilename(), file.getContentType(), inputStream);
+            } catch (IOException e) {
+                log.error("Error reading the file input stream.", e);
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
         try {
             RequestBody requestBody = RequestBody.fromInputStream(file.getInputStream(), file.getSize());
-            s3Client.putObject(request -> request.bucket(s3Properties.bucket()).key(file.getOriginalFilename()), requestBody);
+            ShardRouter.Shard shard = shardRouter.locate(file.getOriginalFilename());
+            s3Client.putObject(request -> request.bucket(shard.bucket()).key(shard.toObjectKey(file.getOriginalFilename())),
+                    requestBody);
+            afterWrite(file.getOriginalFilename(), shard);
+            metadataCache.evict(file.getOriginalFilename());
+            fileCache.evict(file.getOriginalFilename());
         } catch (IOException e) {
             log.error("Error reading the file input stream.", e);
             throw new RuntimeException(e);
         }
     }
 
+    // Streams the body straight into S3, reading it in parts of 'minimumPartSizeInMb' that are uploaded
+    // concurrently. No more than 'uploadConcurrency' parts are held in memory at once, reading the body
+    // blocks until one of them has been uploaded. Bodies smaller than one part go in a single PUT.
+    public void saveFile(String id, String type, InputStream inputStream) {
+        metrics.time(TransferMetrics.SYNC, "save", () -> {
+            try {
+                if (contentIndex.isEnabled()) {
+                    saveDeduplicatedFile(id, type, inputStream);
+                } else {
+                    putFile(id, type, inputStream);
+                }
+            } catch (IOException e) {
+                log.error("Error reading the file input stream.", e);
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void putFile(String id, String type, InputStream inputStream) throws IOException {
+        int partSize = (int) (s3Properties.multipart().minimumPartSizeInMb() * MB);
+        byte[] data = inputStream.readNBytes(partSize);
+        ShardRouter.Shard shard = shardRouter.locate(id);
+        if (data.length < partSize) {
+            s3Client.putObject(request -> request.bucket(shard.bucket()).key(shard.toObjectKey(id)).contentType(type),
+                    RequestBody.fromBytes(data));
+        } else {
+            saveFileInParts(shard, id, type, inputStream, data, partSize);
+        }
+        afterWrite(id, shard);
+        metadataCache.evict(id);
+        fileCache.evict(id);
+    }
+
+    // The body is spooled to a local file while its digest is computed, and only sent to S3 when no other
+    // key already points to the same content. The blob is reserved until the key points to it.
+    private void saveDeduplicatedFile(String id, String type, InputStream inputStream) throws IOException {
+        Path spoolFile = contentIndex.createSpoolFile();
+        try {
+            MessageDigest digest = ContentIndex.newDigest();
+            long length = Files.copy(new DigestInputStream(inputStream, digest), spoolFile, StandardCopyOption.REPLACE_EXISTING);
+            String hash = ContentIndex.toHash(digest);
+            ContentIndex.Reservation reservation = contentIndex.reserve(hash);
+            Optional<ContentIndex.Release> previous;
+            try {
+                if (reservation.uploadNeeded()) {
+                    reservation.deletion().join();
+                    try (InputStream spoolInputStream = Files.newInputStream(spoolFile)) {
+                        putFile(contentIndex.getBlobKey(hash), type, spoolInputStream);
+                    }
+                }
+                previous = contentIndex.put(new ContentIndex.Entry(id, hash, length, type, Instant.now()), reservation);
+            } finally {
+                contentIndex.cancel(reservation);
+            }
+            previous.ifPresent(this::releaseBlob);
+            metadataCache.evict(id);
+            fileCache.evict(id);
+        } finally {
+            contentIndex.deleteSpoolFile(spoolFile);
+        }
+    }
+
+    private void releaseBlob(ContentIndex.Release release) {
+        if (release.unreferenced()) {
+            try {
+                deleteObject(contentIndex.getBlobKey(release.entry().hash()));
+            } finally {
+                contentIndex.deleted(release.entry().hash());
+            }
+        }
+    }
+
+    private void deleteObject(String key) {
+        ShardRouter.Shard shard = shardRouter.locate(key);
+        s3Client.deleteObject(request -> request.bucket(shard.bucket()).key(shard.toObjectKey(key)));
+        afterDelete(key);
+    }
+
+    // A key written or deleted during a rebalance is removed from its previous shard, so the migration doesn't
+    // bring an older version back. A migration copy that landed on the key before that replaced the write, which
+    // fails to be retried, or undid the delete, which is done again. Writes that started before the rebalance
+    // went to the previous shard, which is kept.
+    private void afterWrite(String key, ShardRouter.Shard shard) {
+        Optional<ShardRouter.Shard> previous = shardRouter.locatePrevious(key).filter(other -> !other.equals(shard));
+        if (previous.isPresent()) {
+            s3Client.deleteObject(request -> request.bucket(previous.get().bucket()).key(previous.get().toObjectKey(key)));
+            if (isMoved(shard, key)) {
+                throw ShardRouter.toMovedException(key);
+            }
+        }
+    }
+
+    private void afterDelete(String key) {
+        Optional<ShardRouter.Shard> previous = shardRouter.locatePrevious(key);
+        if (previous.isPresent()) {
+            ShardRouter.Shard shard = shardRouter.locate(key);
+            s3Client.deleteObject(request -> request.bucket(previous.get().bucket()).key(previous.get().toObjectKey(key)));
+            if (isMoved(shard, key)) {
+                s3Client.deleteObject(request -> request.bucket(shard.bucket()).key(shard.toObjectKey(key)));
+            }
+        }
+    }
+
+    private boolean isMoved(ShardRouter.Shard shard, String key) {
+        try {
+            return ShardRouter.isMoved(s3Client.headObject(request -> request
+                    .bucket(shard.bucket())
+                    .key(shard.toObjectKey(key))).metadata());
+        } catch (S3Exception e) {
+            if (ShardRouter.isNotFound(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void saveFileInParts(ShardRouter.Shard shard, String id, String type, InputStream inputStream,
+                                 byte[] firstPart, int partSize) throws IOException {
+        String uploadId = s3Client.createMultipartUpload(request -> request
+                .bucket(shard.bucket())
+                .key(shard.toObjectKey(id))
+                .contentType(type))
+                .uploadId();
+        Semaphore partsInMemory = new Semaphore(s3Properties.multipart().uploadConcurrency());
+        PartsInFlight partsInFlight = new PartsInFlight();
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        try {
+            byte[] data = firstPart;
+            while (data.length > 0) {
+                partsInMemory.acquire();
+                parts.add(uploadPart(shard, id, uploadId, parts.size() + 1, data, partsInFlight)
+                        .whenComplete((part, throwable) -> partsInMemory.release()));
+                if (data.length < partSize || parts.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                    break;
+                }
+                data = inputStream.readNBytes(partSize);
+            }
+            List<CompletedPart> completedParts = parts.stream()
+                    .map(CompletableFuture::join)
+                    .toList();
+            s3Client.completeMultipartUpload(request -> request
+                    .bucket(shard.bucket())
+                    .key(shard.toObjectKey(id))
+                    .uploadId(uploadId)
+                    .multipartUpload(upload -> upload.parts(completedParts)));
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(shard, id, uploadId, parts, partsInFlight);
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMultipartUpload(shard, id, uploadId, parts, partsInFlight);
+            throw new IllegalStateException("Interrupted while uploading '" + id + "'.", e);
+        }
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(ShardRouter.Shard shard, String id, String uploadId,
+                                                        int partNumber, byte[] data, PartsInFlight partsInFlight) {
+        return CompletableFuture.supplyAsync(() -> {
+            partsInFlight.start();
+            try {
+                UploadPartResponse response = s3Client.uploadPart(request -> request
+                                .bucket(shard.bucket())
+                                .key(shard.toObjectKey(id))
+                                .uploadId(uploadId)
+                                .partNumber(partNumber),
+                        RequestBody.fromBytes(data));
+                return CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(response.eTag())
+                        .build();
+            } finally {
+                partsInFlight.finish();
+            }
+        }, syncUploadExecutor);
+    }
+
+    // Cancelling a part only keeps it from starting. One already being sent would complete after the abort and
+    // leave its storage behind. So the abort waits for those to finish first.
+    private void abortMultipartUpload(ShardRouter.Shard shard, String id, String uploadId,
+                                      List<CompletableFuture<CompletedPart>> parts, PartsInFlight partsInFlight) {
+        partsInFlight.stop();
+        parts.forEach(part -> part.cancel(false));
+        partsInFlight.await();
+        try {
+            s3Client.abortMultipartUpload(request -> request
+                    .bucket(shard.bucket())
+                    .key(shard.toObjectKey(id))
+                    .uploadId(uploadId));
+        } catch (RuntimeException e) {
+            log.warn("Error aborting the multipart upload '{}' of '{}'.", uploadId, id, e);
+        }
+    }
+
     public void deleteFile(String id) {
-        s3Client.deleteObject(request -> request.bucket(s3Properties.bucket()).key(id));
+        metrics.time(TransferMetrics.SYNC, "delete", () -> deleteKey(id));
+    }
+
+    private void deleteKey(String id) {
+        Optional<ContentIndex.Release> removed = contentIndex.isEnabled() ? contentIndex.remove(id) : Optional.empty();
+        if (removed.isPresent()) {
+            releaseBlob(removed.get());
+        } else {
+            deleteObject(id);
+        }
+        metadataCache.evict(id);
+        fileCache.evict(id);
+    }
+
+    // Deletes in batches of up to 1,000 keys, running 'bulkDeleteConcurrency' batches at once. The results
+    // are handed to the consumer on the calling thread, in the order of the keys, as the batches finish.
+    public void deleteFiles(Stream<String> keys, Consumer<List<DeleteResult>> resultConsumer) {
+        metrics.time(TransferMetrics.SYNC, "bulk-delete", () -> deleteInBatches(keys, resultConsumer));
+    }
+
+    private void deleteInBatches(Stream<String> keys, Consumer<List<DeleteResult>> resultConsumer) {
+        Semaphore batchesInFlight = new Semaphore(s3Properties.bulkDeleteConcurrency());
+        Deque<CompletableFuture<List<DeleteResult>>> batches = new ArrayDeque<>();
+        Iterator<String> iterator = keys.iterator();
+        try {
+            while (iterator.hasNext()) {
+                List<String> batch = new ArrayList<>(DeleteObjectsSupport.MAXIMUM_KEYS_PER_REQUEST);
+                while (iterator.hasNext() && batch.size() < DeleteObjectsSupport.MAXIMUM_KEYS_PER_REQUEST) {
+                    batch.add(iterator.next());
+                }
+                batchesInFlight.acquire();
+                batches.add(CompletableFuture.supplyAsync(() -> deleteFiles(batch), syncDeleteExecutor)
+                        .whenComplete((results, throwable) -> batchesInFlight.release()));
+                while (!batches.isEmpty() && batches.peek().isDone()) {
+                    resultConsumer.accept(batches.poll().join());
+                }
+            }
+            while (!batches.isEmpty()) {
+                resultConsumer.accept(batches.poll().join());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batches.forEach(batch -> batch.cancel(false));
+            throw new IllegalStateException("Interrupted while deleting files.", e);
+        }
+    }
+
+    public void deleteFilesByPrefix(String prefix, Consumer<List<DeleteResult>> resultConsumer) {
+        try (Stream<String> keys = listFiles(FileListRequest.builder().prefix(prefix).build()).map(FileEntry::getKey)) {
+            deleteFiles(keys, resultConsumer);
+        }
+    }
+
+    // Keys in the content index only drop their reference to a blob, the other ones are deleted in one request.
+    private List<DeleteResult> deleteFiles(List<String> keys) {
+        if (!contentIndex.isEnabled()) {
+            return deleteObjects(keys);
+        }
+        List<DeleteResult> results = new ArrayList<>(keys.size());
+        List<String> objectKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (contentIndex.find(key).isEmpty()) {
+                objectKeys.add(key);
+                continue;
+            }
+            try {
+                deleteKey(key);
+                results.add(DeleteResult.builder().key(key).deleted(true).build());
+            } catch (RuntimeException e) {
+                results.add(DeleteResult.builder().key(key).error(e.getMessage()).build());
+            }
+        }
+        if (!objectKeys.isEmpty()) {
+            results.addAll(deleteObjects(objectKeys));
+        }
+        return results;
+    }
+
+    private List<DeleteResult> deleteObjects(List<String> keys) {
+        List<DeleteResult> results = new ArrayList<>(keys.size());
+        shardRouter.groupByShard(keys).forEach((shard, shardKeys) -> results.addAll(deleteObjects(shard, shardKeys)));
+        for (String key : keys) {
+            try {
+                afterDelete(key);
+            } catch (RuntimeException e) {
+                log.warn("Error deleting '{}' from its previous shard.", key, e);
+            }
+        }
+        return results;
+    }
+
+    private List<DeleteResult> deleteObjects(ShardRouter.Shard shard, List<String> keys) {
+        List<DeleteResult> results;
+        try {
+            List<String> objectKeys = keys.stream()
+                    .map(shard::toObjectKey)
+                    .toList();
+            DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsSupport.toRequest(shard.bucket(), objectKeys));
+            results = DeleteObjectsSupport.toDeleteResults(response);
+        } catch (RuntimeException e) {
+            log.warn("Error deleting a batch of {} files.", keys.size(), e);
+            return DeleteObjectsSupport.toDeleteResults(keys, e);
+        }
+        results.forEach(result -> result.setKey(shard.toKey(result.getKey())));
+        results.stream()
+                .filter(DeleteResult::isDeleted)
+                .forEach(result -> {
+                    metadataCache.evict(result.getKey());
+                    fileCache.evict(result.getKey());
+                });
+        return results;
+    }
+
+    // Counts the parts being sent. Once stopped, no other part starts.
+    private static class PartsInFlight {
+
+        private int running;
+        private boolean stopped;
+
+        synchronized void start() {
+            if (stopped) {
+                throw new CancellationException("The multipart upload was aborted.");
+            }
+            running++;
+        }
+
+        synchronized void finish() {
+            running--;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+        }
+
+        // Uninterruptible, as the upload may be aborted because its thread was interrupted.
+        synchronized void await() {
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
@@ -0,0 +1,182 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.config.ShardingProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Moves the objects whose shard changed to their new one, while the service goes on serving them from either.
+// Every object of the previous shards is listed, and the ones the new ring places elsewhere are copied and then
+// deleted, 'rebalanceConcurrency' at a time. A key that already exists in its new shard was written during the
+// rebalance, so only its previous copy is deleted. The previous ring is dropped once every object has been moved;
+// when some of them couldn't be, it's kept and the rebalance can be resumed with the same shards.
+@Component
+@Slf4j
+public class ShardRebalancer {
+
+    private static final int MAXIMUM_ATTEMPTS = 3;
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(100);
+
+    private final S3AsyncClient s3AsyncClient;
+    private final ShardRouter shardRouter;
+    private final S3Properties s3Properties;
+    private final ShardingProperties properties;
+    private final S3SyncFileRepositoryService s3Service;
+    private final AwsRequestOverrideConfiguration overrideConfiguration;
+    private final AtomicLong movedObjects = new AtomicLong();
+    private final AtomicLong failedObjects = new AtomicLong();
+    private Disposable migration;
+
+    @Autowired
+    public ShardRebalancer(S3AsyncClient s3AsyncClient,
+                           ShardRouter shardRouter,
+                           S3Properties s3Properties,
+                           ShardingProperties properties,
+                           S3SyncFileRepositoryService s3Service,
+                           AwsRequestOverrideConfiguration overrideConfiguration) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.shardRouter = shardRouter;
+        this.s3Properties = s3Properties;
+        this.properties = properties;
+        this.s3Service = s3Service;
+        this.overrideConfiguration = overrideConfiguration;
+    }
+
+    public synchronized void rebalance(List<ShardRouter.Shard> shards) {
+        if (isRunning()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "A rebalance is already in progress.");
+        }
+        if (shardRouter.isRebalancing() && !shardRouter.getShards().equals(shards)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "The previous rebalance must be resumed with the same shards: " + shardRouter.getShards());
+        }
+        if (!shardRouter.isInSync(shards)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "'storage.sharding.shards' must be updated to the shards in use first: " + shardRouter.getShards());
+        }
+        shardRouter.startRebalance(shards);
+        movedObjects.set(0);
+        failedObjects.set(0);
+        log.info("Rebalancing the shards {} to {}.", shardRouter.getPreviousShards(), shards);
+        migration = migrate().subscribe(
+                ignored -> { },
+                e -> log.error("Error rebalancing the shards.", e));
+    }
+
+    public synchronized boolean isRunning() {
+        return migration != null && !migration.isDisposed();
+    }
+
+    public long getMovedObjects() {
+        return movedObjects.get();
+    }
+
+    public long getFailedObjects() {
+        return failedObjects.get();
+    }
+
+    private Mono<Void> migrate() {
+        Mono<Void> createBuckets = s3Properties.createBucketIfNotExist()
+                ? Mono.fromRunnable(s3Service::createBucketIfNotExists).subscribeOn(Schedulers.boundedElastic()).then()
+                : Mono.empty();
+        return createBuckets
+                .thenMany(Flux.fromIterable(shardRouter.getPreviousShards()))
+                .concatMap(shard -> listKeys(shard)
+                        .filter(key -> !shardRouter.locate(key).equals(shard))
+                        .flatMap(key -> move(key, shard, shardRouter.locate(key)), properties.rebalanceConcurrency()))
+                .then(Mono.fromRunnable(() -> {
+                    if (failedObjects.get() == 0) {
+                        shardRouter.finishRebalance();
+                        log.info("Shards rebalanced, {} objects moved.", movedObjects.get());
+                    } else {
+                        log.warn("Shards partially rebalanced, {} objects moved and {} failed.",
+                                movedObjects.get(), failedObjects.get());
+                    }
+                }));
+    }
+
+    private Flux<String> listKeys(ShardRouter.Shard shard) {
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(shard.bucket())
+                .prefix(shard.prefix().isEmpty() ? null : shard.prefix())
+                .overrideConfiguration(overrideConfiguration)
+                .build();
+        return Flux.from(s3AsyncClient.listObjectsV2Paginator(request))
+                .concatMapIterable(ListObjectsV2Response::contents)
+                .map(S3Object::key)
+                .filter(objectKey -> shardRouter.isOwnedBy(shard, objectKey))
+                .map(shard::toKey);
+    }
+
+    // CopyObject takes objects of up to 5 GB, bigger ones are counted as failed and stay in their previous shard.
+    // The copy only happens when the key isn't in its new shard yet, and only from the version of the source just
+    // read: a source rewritten since is read again, and one deleted since needs no move. The copy carries the
+    // moved marker, so a write or delete that raced with it finds it once the source is gone, see ShardRouter.
+    private Mono<Void> move(String key, ShardRouter.Shard from, ShardRouter.Shard to) {
+        Mono<Void> copy = Mono.fromFuture(() -> s3AsyncClient.headObject(request -> request
+                        .bucket(from.bucket())
+                        .key(from.toObjectKey(key))
+                        .overrideConfiguration(overrideConfiguration)))
+                .flatMap(source -> Mono.fromFuture(() -> s3AsyncClient.headObject(request -> request
+                                .bucket(to.bucket())
+                                .key(to.toObjectKey(key))
+                                .overrideConfiguration(overrideConfiguration)))
+                        .then()
+                        .onErrorResume(ShardRouter::isNotFound, e -> copy(key, from, to, source)))
+                .then(Mono.fromFuture(() -> s3AsyncClient.deleteObject(request -> request
+                        .bucket(from.bucket())
+                        .key(from.toObjectKey(key))
+                        .overrideConfiguration(overrideConfiguration))))
+                .then();
+        return copy
+                .onErrorResume(ShardRouter::isNotFound, e -> Mono.empty())
+                .retryWhen(Retry.backoff(MAXIMUM_ATTEMPTS - 1, FIRST_BACKOFF))
+                .doOnSuccess(ignored -> movedObjects.incrementAndGet())
+                .onErrorResume(e -> {
+                    failedObjects.incrementAndGet();
+                    log.warn("Error moving '{}' from the shard '{}' to '{}'.", key, from, to, e);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> copy(String key, ShardRouter.Shard from, ShardRouter.Shard to, HeadObjectResponse source) {
+        Map<String, String> metadata = new HashMap<>(source.metadata());
+        metadata.put(ShardRouter.MOVED_METADATA, from.toString());
+        return Mono.fromFuture(() -> s3AsyncClient.copyObject(request -> request
+                        .sourceBucket(from.bucket())
+                        .sourceKey(from.toObjectKey(key))
+                        .copySourceIfMatch(source.eTag())
+                        .destinationBucket(to.bucket())
+                        .destinationKey(to.toObjectKey(key))
+                        .metadataDirective(MetadataDirective.REPLACE)
+                        .contentType(source.contentType())
+                        .contentEncoding(source.contentEncoding())
+                        .contentDisposition(source.contentDisposition())
+                        .contentLanguage(source.contentLanguage())
+                        .cacheControl(source.cacheControl())
+                        .metadata(metadata)
+                        .overrideConfiguration(overrideConfiguration)))
+                .then();
+    }
+}
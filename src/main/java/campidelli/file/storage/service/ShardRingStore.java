@@ -0,0 +1,66 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.ShardingProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+
+// Keeps the shards in use, and the previous ones while a rebalance is in progress, as a JSON file. Once a rebalance
+// has started, the objects that moved are only found with the rings of this file, not with the configured shards.
+// The file is replaced with an atomic move, a crash never leaves a half written ring behind.
+@Component
+@Slf4j
+public class ShardRingStore {
+
+    private static final String FILE_NAME = "ring.json";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public ShardRingStore(ShardingProperties properties, ObjectMapper objectMapper) {
+        this.directory = Paths.get(properties.directory());
+        this.objectMapper = objectMapper;
+    }
+
+    public Optional<State> load() {
+        Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            State state = objectMapper.readValue(file.toFile(), State.class);
+            log.info("Loaded the shards {} from '{}'.", state.shards(), file);
+            return Optional.of(state);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error loading the shards from '" + file + "'.", e);
+        }
+    }
+
+    public void save(State state) {
+        try {
+            Files.createDirectories(directory);
+            Path temporaryFile = directory.resolve(FILE_NAME + ".tmp");
+            objectMapper.writeValue(temporaryFile.toFile(), state);
+            Files.move(temporaryFile, directory.resolve(FILE_NAME),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving the shards to '" + directory + "'.", e);
+        }
+    }
+
+    // The shards are kept as in 'storage.sharding.shards', the previous ones are empty when no rebalance is in
+    // progress.
+    public record State(List<String> shards, List<String> previousShards) {
+    }
+}
@@ -0,0 +1,250 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.config.ShardingProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+// Spreads the keys over the buckets and prefixes of 'storage.sharding.shards' with a consistent-hash ring, so each
+// of them gets its own share of the S3 request rate limits. Every shard has 'virtualNodesPerShard' points on the
+// ring, and a key goes to the shard of the first point after its hash. Changing the shards only moves the keys
+// whose point changed, about 1/N of them when a shard is added. While a rebalance is in progress the previous ring
+// is kept: writes go to the new shard of a key, and reads that don't find it there look in its previous shard.
+// Both rings are kept in the ShardRingStore, which wins over the configured shards after a restart.
+@Component
+@Slf4j
+public class ShardRouter {
+
+    // Set by the rebalancer on the copies it makes. A write that finds it on its key once the previous copy is gone
+    // was replaced by the migration, and a delete was undone by it.
+    public static final String MOVED_METADATA = "shard-moved";
+
+    private static final int NOT_FOUND = 404;
+
+    private final String defaultBucket;
+    private final int virtualNodesPerShard;
+    private final ShardRingStore ringStore;
+    private final List<Shard> configuredShards;
+    private volatile Ring ring;
+    private volatile Ring previousRing;
+
+    @Autowired
+    public ShardRouter(ShardingProperties properties, S3Properties s3Properties, ShardRingStore ringStore) {
+        this.defaultBucket = s3Properties.bucket();
+        this.virtualNodesPerShard = Math.max(1, properties.virtualNodesPerShard());
+        this.ringStore = ringStore;
+        this.configuredShards = CollectionUtils.isEmpty(properties.shards())
+                ? List.of(new Shard(defaultBucket, ""))
+                : parse(properties.shards());
+        Optional<ShardRingStore.State> state = ringStore.load();
+        this.ring = new Ring(state.map(stored -> parse(stored.shards())).orElse(configuredShards));
+        this.previousRing = state.filter(stored -> !CollectionUtils.isEmpty(stored.previousShards()))
+                .map(stored -> new Ring(parse(stored.previousShards())))
+                .orElse(null);
+        if (!isInSync(ring.shards)) {
+            log.warn("The configured shards {} are not the shards in use {}, 'storage.sharding.shards' must be "
+                    + "updated before the next rebalance.", configuredShards, ring.shards);
+        }
+    }
+
+    public Shard locate(String key) {
+        return ring.locate(key);
+    }
+
+    // The shard the key was in before the rebalance in progress, when it's not the current one.
+    public Optional<Shard> locatePrevious(String key) {
+        Ring previous = previousRing;
+        if (previous == null) {
+            return Optional.empty();
+        }
+        Shard shard = previous.locate(key);
+        return shard.equals(locate(key)) ? Optional.empty() : Optional.of(shard);
+    }
+
+    public List<Shard> getShards() {
+        return ring.shards;
+    }
+
+    public List<Shard> getPreviousShards() {
+        Ring previous = previousRing;
+        return previous == null ? List.of() : previous.shards;
+    }
+
+    // Every shard a key may be in, those of the rebalance in progress included.
+    public List<Shard> getAllShards() {
+        Set<Shard> shards = new LinkedHashSet<>(getShards());
+        shards.addAll(getPreviousShards());
+        return List.copyOf(shards);
+    }
+
+    public boolean isRebalancing() {
+        return previousRing != null;
+    }
+
+    // Whether 'storage.sharding.shards' matches the rings in use or the given shards, so a restart with it doesn't
+    // lose track of where the keys are.
+    public boolean isInSync(List<Shard> shards) {
+        return configuredShards.equals(shards)
+                || configuredShards.equals(getShards())
+                || configuredShards.equals(getPreviousShards());
+    }
+
+    public List<Shard> parse(List<String> shards) {
+        List<Shard> parsed = new ArrayList<>(shards.size());
+        for (String shard : shards) {
+            int separator = shard.indexOf('/');
+            parsed.add(separator < 0
+                    ? new Shard(shard, "")
+                    : new Shard(separator == 0 ? defaultBucket : shard.substring(0, separator),
+                    shard.substring(separator + 1)));
+        }
+        return parsed;
+    }
+
+    // Groups the keys by their shard, keeping their order within each one.
+    public Map<Shard, List<String>> groupByShard(List<String> keys) {
+        Map<Shard, List<String>> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            groups.computeIfAbsent(locate(key), ignored -> new ArrayList<>()).add(key);
+        }
+        return groups;
+    }
+
+    // Whether the object of the shard is one of its keys, and not a key of another shard of the same bucket whose
+    // prefix starts with the prefix of this one.
+    public boolean isOwnedBy(Shard shard, String objectKey) {
+        if (!objectKey.startsWith(shard.prefix())) {
+            return false;
+        }
+        return getAllShards().stream()
+                .noneMatch(other -> other.bucket().equals(shard.bucket())
+                        && other.prefix().length() > shard.prefix().length()
+                        && objectKey.startsWith(other.prefix()));
+    }
+
+    public <T> Mono<T> read(String key, Function<Shard, Mono<T>> read) {
+        return Mono.defer(() -> {
+            Optional<Shard> previous = locatePrevious(key);
+            Mono<T> current = read.apply(locate(key));
+            return previous.isEmpty()
+                    ? current
+                    : current.onErrorResume(ShardRouter::isNotFound, e -> read.apply(previous.get()));
+        });
+    }
+
+    public <T> T readSync(String key, Function<Shard, T> read) {
+        Optional<Shard> previous = locatePrevious(key);
+        try {
+            return read.apply(locate(key));
+        } catch (S3Exception e) {
+            if (previous.isEmpty() || !isNotFound(e)) {
+                throw e;
+            }
+            return read.apply(previous.get());
+        }
+    }
+
+    // The rings are stored before they are used, so no write lands in a shard a restart wouldn't look in.
+    synchronized void startRebalance(List<Shard> shards) {
+        Ring previous = previousRing == null ? ring : previousRing;
+        Ring next = new Ring(shards);
+        ringStore.save(new ShardRingStore.State(toStrings(next.shards), toStrings(previous.shards)));
+        previousRing = previous;
+        ring = next;
+    }
+
+    synchronized void finishRebalance() {
+        ringStore.save(new ShardRingStore.State(toStrings(ring.shards), List.of()));
+        previousRing = null;
+    }
+
+    private static List<String> toStrings(List<Shard> shards) {
+        return shards.stream()
+                .map(Shard::toString)
+                .toList();
+    }
+
+    static boolean isMoved(Map<String, String> metadata) {
+        return metadata.containsKey(MOVED_METADATA);
+    }
+
+    static ResponseStatusException toMovedException(String key) {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                "'" + key + "' was being moved to another shard while it was written, please retry.");
+    }
+
+    static boolean isNotFound(Throwable throwable) {
+        Throwable cause = throwable.getCause() instanceof S3Exception ? throwable.getCause() : throwable;
+        return cause instanceof S3Exception s3Exception && s3Exception.statusCode() == NOT_FOUND;
+    }
+
+    // The first 8 bytes of the MD5 of the value, which spreads any key evenly.
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available.", e);
+        }
+    }
+
+    public record Shard(String bucket, String prefix) {
+
+        public String toObjectKey(String key) {
+            return prefix + key;
+        }
+
+        public String toKey(String objectKey) {
+            return objectKey.substring(prefix.length());
+        }
+
+        @Override
+        public String toString() {
+            return prefix.isEmpty() ? bucket : bucket + "/" + prefix;
+        }
+    }
+
+    private class Ring {
+
+        private final List<Shard> shards;
+        private final NavigableMap<Long, Shard> points = new TreeMap<>();
+
+        Ring(List<Shard> shards) {
+            if (shards.isEmpty()) {
+                throw new IllegalArgumentException("At least one shard is needed.");
+            }
+            this.shards = List.copyOf(shards);
+            for (Shard shard : this.shards) {
+                for (int node = 0; node < virtualNodesPerShard; node++) {
+                    points.put(hash(shard + "#" + node), shard);
+                }
+            }
+        }
+
+        Shard locate(String key) {
+            Map.Entry<Long, Shard> point = points.ceilingEntry(hash(key));
+            return (point == null ? points.firstEntry() : point).getValue();
+        }
+    }
+}
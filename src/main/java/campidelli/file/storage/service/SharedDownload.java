@@ -0,0 +1,231 @@
+package campidelli.file.storage.service;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+// One download of an object whose content is read by every request that joined it. The chunks received are kept
+// while someone still has to read them, up to 'maximumBufferedBytes', so the readers don't need to keep up with
+// each other: the download goes as fast as the fastest one. A reader that falls behind the oldest chunk still
+// buffered, or that joins after the first chunk was dropped, goes on with a download of its own from the byte it
+// has reached. The upstream is cancelled once every reader is gone.
+class SharedDownload {
+
+    private final Flux<ByteBuffer> source;
+    private final long maximumBufferedBytes;
+    private final LongFunction<Flux<ByteBuffer>> fallback;
+    private final Runnable onClose;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Queue<ByteBuffer> received = new ConcurrentLinkedQueue<>();
+    private final List<Reader> readers = new CopyOnWriteArrayList<>();
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    private volatile Subscription upstream;
+    private volatile boolean upstreamDone;
+    private volatile Throwable error;
+    private volatile long firstIndex;
+    private volatile boolean closed;
+    private boolean reading;
+    private long bufferedBytes;
+
+    // The fallback downloads the content from the given offset.
+    SharedDownload(Flux<ByteBuffer> source, long maximumBufferedBytes, LongFunction<Flux<ByteBuffer>> fallback,
+                   Runnable onClose) {
+        this.source = source;
+        this.maximumBufferedBytes = maximumBufferedBytes;
+        this.fallback = fallback;
+        this.onClose = onClose;
+    }
+
+    // Whether a new reader would still find the content from its first byte.
+    boolean isJoinable() {
+        return !closed && firstIndex == 0;
+    }
+
+    Flux<ByteBuffer> content() {
+        return Flux.defer(() -> {
+            Reader reader = new Reader();
+            return Flux.from(reader)
+                    .concatWith(Flux.defer(() -> reader.detached ? fallback.apply(reader.offset) : Flux.empty()));
+        });
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            source.subscribe(new Subscriber<>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    upstream = subscription;
+                    drain();
+                }
+
+                @Override
+                public void onNext(ByteBuffer byteBuffer) {
+                    received.add(byteBuffer);
+                    drain();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    error = throwable;
+                    upstreamDone = true;
+                    drain();
+                }
+
+                @Override
+                public void onComplete() {
+                    upstreamDone = true;
+                    drain();
+                }
+            });
+        }
+    }
+
+    // Every signal goes through here, so the chunks and the readers are only touched by one thread at a time.
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            ByteBuffer byteBuffer;
+            while ((byteBuffer = received.poll()) != null) {
+                chunks.add(byteBuffer);
+                bufferedBytes += byteBuffer.remaining();
+                reading = false;
+            }
+            dropChunks();
+            for (Reader reader : readers) {
+                reader.drain();
+            }
+            if (readers.isEmpty() && started.get() && !closed) {
+                close();
+            } else if (!closed && !upstreamDone && !reading && upstream != null && isAwaited()) {
+                reading = true;
+                upstream.request(1);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // Drops the chunks every reader is done with, and the oldest ones while there are more than the buffer holds,
+    // but never those the most advanced reader still has to read.
+    private void dropChunks() {
+        long oldestNeeded = readers.stream()
+                .mapToLong(reader -> reader.nextIndex)
+                .min()
+                .orElse(firstIndex + chunks.size());
+        long newestNeeded = readers.stream()
+                .mapToLong(reader -> reader.nextIndex)
+                .max()
+                .orElse(firstIndex + chunks.size());
+        int dropped = 0;
+        while (dropped < chunks.size() && (firstIndex + dropped < oldestNeeded
+                || (bufferedBytes > maximumBufferedBytes && firstIndex + dropped < newestNeeded))) {
+            bufferedBytes -= chunks.get(dropped).remaining();
+            dropped++;
+        }
+        if (dropped > 0) {
+            chunks.subList(0, dropped).clear();
+            firstIndex += dropped;
+        }
+    }
+
+    // Someone has asked for a chunk that hasn't been received yet.
+    private boolean isAwaited() {
+        long nextIndex = firstIndex + chunks.size();
+        return readers.stream().anyMatch(reader -> reader.nextIndex == nextIndex && reader.requested.get() > 0);
+    }
+
+    private void close() {
+        closed = true;
+        if (upstream != null && !upstreamDone) {
+            upstream.cancel();
+        }
+        chunks.clear();
+        bufferedBytes = 0;
+        onClose.run();
+    }
+
+    private class Reader implements Publisher<ByteBuffer>, Subscription {
+
+        private final AtomicLong requested = new AtomicLong();
+        private Subscriber<? super ByteBuffer> actual;
+        private volatile boolean cancelled;
+        private volatile boolean detached;
+        private volatile long offset;
+        private long nextIndex;
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            actual = subscriber;
+            readers.add(this);
+            subscriber.onSubscribe(this);
+            start();
+            SharedDownload.this.drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                requested.getAndUpdate(current -> Operators.addCap(current, n));
+                SharedDownload.this.drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            SharedDownload.this.drain();
+        }
+
+        // Completes the shared part of the content when the reader fell behind, so it goes on with the fallback.
+        private void drain() {
+            if (cancelled) {
+                readers.remove(this);
+                return;
+            }
+            if (nextIndex < firstIndex || closed) {
+                detached = true;
+                readers.remove(this);
+                actual.onComplete();
+                return;
+            }
+            long emitted = 0;
+            long demand = requested.get();
+            while (emitted < demand && nextIndex < firstIndex + chunks.size()) {
+                ByteBuffer chunk = chunks.get((int) (nextIndex - firstIndex)).duplicate();
+                nextIndex++;
+                offset += chunk.remaining();
+                emitted++;
+                actual.onNext(chunk);
+            }
+            if (emitted > 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+            if (upstreamDone && nextIndex == firstIndex + chunks.size()) {
+                readers.remove(this);
+                if (error != null) {
+                    actual.onError(error);
+                } else {
+                    actual.onComplete();
+                }
+            }
+        }
+    }
+}
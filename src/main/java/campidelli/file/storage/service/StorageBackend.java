@@ -0,0 +1,50 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.dto.DeleteResult;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// Where the objects of the async API are kept, selected by 'storage.backend.type'. Every implementation follows
+// the semantics of S3: keys are listed in lexicographical order, ranges are HTTP byte ranges, deleting a missing
+// key is not an error and a multipart upload only becomes visible once it's completed.
+// A download that matches 'ifNoneMatch' fails with a 304 ResponseStatusException.
+// The content of an upload is consumed in order, and a ByteBuffer is consumed once its position reached its
+// limit, after which its memory may be reused.
+public interface StorageBackend {
+
+    Flux<FileEntry> list(FileListRequest fileListRequest);
+
+    Mono<FileMetadata> head(String key);
+
+    // The range is a HTTP byte range, e.g. "bytes=0-1023", or null to download the whole object.
+    Mono<FileDownload> get(String key, String range, String ifNoneMatch);
+
+    // The length may be null when it's not known upfront.
+    Mono<Void> put(String key, String type, String encoding, Map<String, String> metadata, Long length,
+                   Flux<ByteBuffer> content);
+
+    Mono<Void> put(String key, String type, Path file);
+
+    Mono<Void> delete(String key);
+
+    Flux<DeleteResult> delete(List<String> keys);
+
+    Mono<String> createMultipartUpload(String key, String type, String encoding, Map<String, String> metadata);
+
+    Mono<Part> uploadPart(String key, String uploadId, int partNumber, long length, Flux<ByteBuffer> content);
+
+    Mono<Void> completeMultipartUpload(String key, String uploadId, List<Part> parts);
+
+    Mono<Void> abortMultipartUpload(String key, String uploadId);
+
+    record Part(int partNumber, String eTag) { }
+}
@@ -0,0 +1,37 @@
+package campidelli.file.storage.service;
+
+import java.time.Duration;
+
+// Lets 'bytesPerSecond' through on average, in bursts of up to a second of them. Taking more than the bucket holds
+// leaves it in debt and tells how long to wait until the debt is paid back, so whoever shares the bucket is
+// served in the order they took from it.
+class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private final long bytesPerSecond;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    synchronized Duration take(long bytes) {
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? Duration.ZERO : Duration.ofNanos((long) (-tokens * NANOS_PER_SECOND / bytesPerSecond));
+    }
+
+    synchronized boolean isFull() {
+        refill();
+        return tokens >= bytesPerSecond;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - refilledAt) * bytesPerSecond / NANOS_PER_SECOND);
+        refilledAt = now;
+    }
+}
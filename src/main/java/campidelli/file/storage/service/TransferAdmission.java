@@ -0,0 +1,266 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.AdmissionProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Decides when a transfer may start, and how fast it may go. At most 'maximumConcurrentTransfers' run at once,
+// and 'maximumConcurrentTransfersPerClient' of the same client, the last 'reservedInteractiveTransfers' slots being
+// kept for interactive ones. The others wait in a queue per priority, interactive transfers going first, and are
+// rejected right away once 'maximumQueuedTransfers' are waiting, or 'maximumQueuedTransfersPerClient' of the same
+// client. The bytes of every transfer are taken from a global token bucket and from the one of its client; bulk
+// transfers wait for them to be refilled, interactive ones are counted but never delayed.
+@Component
+public class TransferAdmission {
+
+    private static final long MB = 1024 * 1024;
+
+    public enum Priority { INTERACTIVE, BULK }
+
+    private final AdmissionProperties properties;
+    private final TokenBucket bandwidth;
+    private final Map<String, Client> clients = new HashMap<>();
+    private final Map<Priority, Deque<Waiter>> queues = new EnumMap<>(Priority.class);
+    private int activeTransfers;
+    private int activeBulkTransfers;
+    private int queuedTransfers;
+
+    @Autowired
+    public TransferAdmission(AdmissionProperties properties) {
+        this.properties = properties;
+        this.bandwidth = newBucket(properties.bytesPerSecondInMb());
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.enabled();
+    }
+
+    // Emits the permit of the transfer once it can start, or a RejectedException when the queues are full. The
+    // permit must be released when the transfer is over.
+    public Mono<Permit> admit(String clientId, Priority priority) {
+        return Mono.create(sink -> {
+            Permit permit = null;
+            boolean queued = false;
+            synchronized (this) {
+                Client client = clients.computeIfAbsent(clientId, ignored -> new Client());
+                if (canStart(client, priority)) {
+                    permit = start(client, priority);
+                } else if (queuedTransfers < properties.maximumQueuedTransfers()
+                        && client.queuedTransfers < properties.maximumQueuedTransfersPerClient()) {
+                    Waiter waiter = new Waiter(client, priority, sink);
+                    queues.get(priority).add(waiter);
+                    queuedTransfers++;
+                    client.queuedTransfers++;
+                    sink.onCancel(() -> cancel(waiter));
+                    queued = true;
+                }
+            }
+            if (permit != null) {
+                sink.success(permit);
+            } else if (!queued) {
+                sink.error(new RejectedException(properties.retryAfter()));
+            }
+        });
+    }
+
+    public synchronized int getActiveTransfers() {
+        return activeTransfers;
+    }
+
+    public synchronized int getQueuedTransfers() {
+        return queuedTransfers;
+    }
+
+    // Forgets the clients that have been idle long enough for their bucket to be full again.
+    @Scheduled(fixedDelayString = "${storage.admission.cleanupInterval}")
+    public synchronized void removeIdleClients() {
+        clients.values().removeIf(client -> client.activeTransfers == 0 && client.queuedTransfers == 0
+                && (client.bandwidth == null || client.bandwidth.isFull()));
+    }
+
+    private boolean canStart(Client client, Priority priority) {
+        int maximumTransfers = priority == Priority.INTERACTIVE
+                ? properties.maximumConcurrentTransfers()
+                : properties.maximumConcurrentTransfers() - properties.reservedInteractiveTransfers();
+        int transfers = priority == Priority.INTERACTIVE ? activeTransfers : activeBulkTransfers;
+        return activeTransfers < properties.maximumConcurrentTransfers()
+                && transfers < maximumTransfers
+                && client.activeTransfers < properties.maximumConcurrentTransfersPerClient();
+    }
+
+    private Permit start(Client client, Priority priority) {
+        activeTransfers++;
+        client.activeTransfers++;
+        if (priority == Priority.BULK) {
+            activeBulkTransfers++;
+        }
+        return new Permit(client, priority);
+    }
+
+    // A waiter may be cancelled after it was started but before it got the permit.
+    private void cancel(Waiter waiter) {
+        Permit permit;
+        synchronized (this) {
+            if (queues.get(waiter.priority).remove(waiter)) {
+                queuedTransfers--;
+                waiter.client.queuedTransfers--;
+            }
+            permit = waiter.permit;
+        }
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    private void release(Permit permit) {
+        List<Runnable> started = new ArrayList<>();
+        synchronized (this) {
+            activeTransfers--;
+            permit.client.activeTransfers--;
+            if (permit.priority == Priority.BULK) {
+                activeBulkTransfers--;
+            }
+            // Waiters of a client that is at its limit don't hold back those of other clients.
+            for (Priority priority : Priority.values()) {
+                Iterator<Waiter> waiters = queues.get(priority).iterator();
+                while (waiters.hasNext() && activeTransfers < properties.maximumConcurrentTransfers()) {
+                    Waiter waiter = waiters.next();
+                    if (canStart(waiter.client, priority)) {
+                        waiters.remove();
+                        queuedTransfers--;
+                        waiter.client.queuedTransfers--;
+                        waiter.permit = start(waiter.client, priority);
+                        started.add(() -> waiter.sink.success(waiter.permit));
+                    }
+                }
+            }
+        }
+        started.forEach(Runnable::run);
+    }
+
+    private static TokenBucket newBucket(int bytesPerSecondInMb) {
+        return bytesPerSecondInMb > 0 ? new TokenBucket(bytesPerSecondInMb * MB) : null;
+    }
+
+    public class Permit {
+
+        private final Client client;
+        private final Priority priority;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Client client, Priority priority) {
+            this.client = client;
+            this.priority = priority;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        // Whether the bytes of the transfer may have to wait for the buckets.
+        public boolean isShaped() {
+            return priority == Priority.BULK && (bandwidth != null || client.bandwidth != null);
+        }
+
+        public Flux<DataBuffer> shape(Flux<DataBuffer> content) {
+            return content.concatMap(dataBuffer -> {
+                Duration delay = take(dataBuffer.readableByteCount());
+                if (delay.isZero()) {
+                    return Mono.just(dataBuffer);
+                }
+                return Mono.delay(delay)
+                        .thenReturn(dataBuffer)
+                        .doOnCancel(() -> DataBufferUtils.release(dataBuffer));
+            }, 1);
+        }
+
+        // Waits until the given bytes can go.
+        public Mono<Void> acquire(long bytes) {
+            return Mono.defer(() -> {
+                Duration delay = take(bytes);
+                return delay.isZero() ? Mono.empty() : Mono.delay(delay).then();
+            });
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                TransferAdmission.this.release(this);
+            }
+        }
+
+        private Duration take(long bytes) {
+            Duration delay = Duration.ZERO;
+            if (bandwidth != null) {
+                delay = bandwidth.take(bytes);
+            }
+            if (client.bandwidth != null) {
+                Duration clientDelay = client.bandwidth.take(bytes);
+                delay = clientDelay.compareTo(delay) > 0 ? clientDelay : delay;
+            }
+            return priority == Priority.INTERACTIVE ? Duration.ZERO : delay;
+        }
+    }
+
+    public static class RejectedException extends ResponseStatusException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Duration retryAfter;
+
+        RejectedException(Duration retryAfter) {
+            super(HttpStatus.TOO_MANY_REQUESTS, "Too many transfers in progress, try again later.");
+            this.retryAfter = retryAfter;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, retryAfter.toSeconds())));
+            return headers;
+        }
+    }
+
+    private class Client {
+
+        private final TokenBucket bandwidth = newBucket(properties.bytesPerSecondPerClientInMb());
+        private int activeTransfers;
+        private int queuedTransfers;
+    }
+
+    private static class Waiter {
+
+        private final Client client;
+        private final Priority priority;
+        private final MonoSink<Permit> sink;
+        private Permit permit;
+
+        Waiter(Client client, Priority priority, MonoSink<Permit> sink) {
+            this.client = client;
+            this.priority = priority;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package campidelli.file.storage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+// Records the metrics of the repository operations and of the transfers served by the controllers:
+// - storage.operation.duration: latency of each repository operation, by api (sync/async), operation and outcome;
+// - storage.transfer.duration: time from the first to the last byte of an upload or download;
+// - storage.transfer.bytes: bytes moved, its rate is the aggregated throughput;
+// - storage.transfer.throughput: throughput of each transfer, in bytes per second;
+// - storage.transfer.active: transfers in flight;
+// - storage.multipart.part.duration: latency of each part of the multipart download;
+// - storage.hedge.requests: second requests sent because the first one was slow, by operation;
+// - storage.retry.requests: requests sent again after a transient error, by operation.
+@Component
+public class TransferMetrics {
+
+    public static final String SYNC = "sync";
+    public static final String ASYNC = "async";
+
+    private final MeterRegistry registry;
+    private final Map<Tags, AtomicInteger> activeTransfers = new ConcurrentHashMap<>();
+
+    @Autowired
+    public TransferMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public <T> Mono<T> time(String api, String operation, Mono<T> mono) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return mono.doFinally(signal -> sample.stop(operationTimer(api, operation, toOutcome(signal))));
+        });
+    }
+
+    public <T> Flux<T> time(String api, String operation, Flux<T> flux) {
+        return Flux.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return flux.doFinally(signal -> sample.stop(operationTimer(api, operation, toOutcome(signal))));
+        });
+    }
+
+    public <T> T time(String api, String operation, Supplier<T> supplier) {
+        Timer.Sample sample = Timer.start(registry);
+        String outcome = "error";
+        try {
+            T result = supplier.get();
+            outcome = "success";
+            return result;
+        } finally {
+            sample.stop(operationTimer(api, operation, outcome));
+        }
+    }
+
+    public void time(String api, String operation, Runnable runnable) {
+        time(api, operation, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    // The transfer ends when the returned Mono terminates, not when its content has been consumed.
+    public <T> Mono<T> transfer(String api, String operation, Function<Transfer, Mono<T>> transferFunction) {
+        return Mono.defer(() -> {
+            Transfer transfer = start(api, operation);
+            return transferFunction.apply(transfer)
+                    .doFinally(signal -> transfer.stop(toOutcome(signal)));
+        });
+    }
+
+    // For the blocking controllers, the transfer ends when the body returns.
+    public void transferBlocking(String api, String operation, BlockingTransfer blockingTransfer) throws IOException {
+        Transfer transfer = start(api, operation);
+        String outcome = "error";
+        try {
+            blockingTransfer.run(transfer);
+            outcome = "success";
+        } finally {
+            transfer.stop(outcome);
+        }
+    }
+
+    public Transfer start(String api, String operation) {
+        return new Transfer(Tags.of("api", api, "operation", operation));
+    }
+
+    public void recordPart(Duration duration, String outcome) {
+        Timer.builder("storage.multipart.part.duration")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(duration);
+    }
+
+    public void recordHedge(String operation) {
+        Counter.builder("storage.hedge.requests")
+                .tag("operation", operation)
+                .register(registry)
+                .increment();
+    }
+
+    public void recordRetry(String operation) {
+        Counter.builder("storage.retry.requests")
+                .tag("operation", operation)
+                .register(registry)
+                .increment();
+    }
+
+    public static String toOutcome(SignalType signal) {
+        return switch (signal) {
+            case ON_COMPLETE -> "success";
+            case CANCEL -> "cancelled";
+            default -> "error";
+        };
+    }
+
+    private Timer operationTimer(String api, String operation, String outcome) {
+        return Timer.builder("storage.operation.duration")
+                .tags("api", api, "operation", operation, "outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private AtomicInteger activeTransfers(Tags tags) {
+        return activeTransfers.computeIfAbsent(tags,
+                ignored -> registry.gauge("storage.transfer.active", tags, new AtomicInteger()));
+    }
+
+    @FunctionalInterface
+    public interface BlockingTransfer {
+        void run(Transfer transfer) throws IOException;
+    }
+
+    public class Transfer {
+
+        private final Tags tags;
+        private final Counter bytesCounter;
+        private final Timer.Sample sample;
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger active;
+
+        private Transfer(Tags tags) {
+            this.tags = tags;
+            this.bytesCounter = Counter.builder("storage.transfer.bytes")
+                    .tags(tags)
+                    .baseUnit("bytes")
+                    .register(registry);
+            this.sample = Timer.start(registry);
+            this.active = activeTransfers(tags);
+            active.incrementAndGet();
+        }
+
+        public void addBytes(long count) {
+            bytes.addAndGet(count);
+            bytesCounter.increment(count);
+        }
+
+        public <T> Flux<T> count(Flux<T> content, ToLongFunction<T> size) {
+            return content.doOnNext(item -> addBytes(size.applyAsLong(item)));
+        }
+
+        public InputStream count(InputStream inputStream) {
+            return new FilterInputStream(inputStream) {
+                @Override
+                public int read() throws IOException {
+                    int value = super.read();
+                    if (value >= 0) {
+                        addBytes(1);
+                    }
+                    return value;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int count = super.read(buffer, offset, length);
+                    if (count > 0) {
+                        addBytes(count);
+                    }
+                    return count;
+                }
+            };
+        }
+
+        public void stop(String outcome) {
+            active.decrementAndGet();
+            long durationInNanos = sample.stop(Timer.builder("storage.transfer.duration")
+                    .tags(tags)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry));
+            if (durationInNanos > 0 && bytes.get() > 0) {
+                DistributionSummary.builder("storage.transfer.throughput")
+                        .tags(tags)
+                        .baseUnit("bytes/s")
+                        .publishPercentileHistogram()
+                        .register(registry)
+                        .record(bytes.get() * 1e9 / durationInNanos);
+            }
+        }
+    }
+}
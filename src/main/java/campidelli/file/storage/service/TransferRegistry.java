@@ -0,0 +1,196 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.dto.TransferProgress;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import software.amazon.awssdk.transfer.s3.progress.TransferListener;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Keeps the uploads that are running: those of the S3TransferManager, with the progress reported by their
+// TransferListener, and the ones cut in parts or sent in chunks, with the bytes of content they consumed. The rate
+// is measured over the last PROGRESS_INTERVAL as the bytes come, and again when the progress is read, so a transfer
+// that stalls shows it straight away. Cancelling a transfer cancels its completion future, which aborts the request
+// to S3 and stops reading the content of the client, so its connections and its share of the bandwidth are freed
+// at once.
+@Component
+@Slf4j
+public class TransferRegistry {
+
+    public static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+
+    // The transfer is listed until its completion future, given to bind, is done.
+    public Transfer start(String key, Long length) {
+        Transfer transfer = new Transfer(UUID.randomUUID().toString(), key, length);
+        transfers.put(transfer.id, transfer);
+        return transfer;
+    }
+
+    // Lists an upload that doesn't go through the S3TransferManager while it runs. It's fed with the content given
+    // to Transfer.count, and cancelling it cancels the upload.
+    public <T> Mono<T> track(String key, Long length, Function<Transfer, Mono<T>> upload) {
+        return Mono.defer(() -> {
+            Transfer transfer = start(key, length);
+            CompletableFuture<T> completionFuture = new CompletableFuture<>();
+            transfer.bind(completionFuture);
+            Sinks.Empty<T> cancellation = Sinks.empty();
+            completionFuture.whenComplete((result, e) -> {
+                if (completionFuture.isCancelled()) {
+                    cancellation.tryEmitError(new CancellationException());
+                }
+            });
+            return Mono.firstWithSignal(upload.apply(transfer), cancellation.asMono())
+                    .onErrorMap(CancellationException.class, e -> transfer.toCancelledException())
+                    .doOnSuccess(completionFuture::complete)
+                    .doOnError(completionFuture::completeExceptionally)
+                    .doOnCancel(() -> completionFuture.cancel(true));
+        });
+    }
+
+    public List<TransferProgress> list() {
+        return transfers.values().stream()
+                .map(Transfer::toProgress)
+                .sorted(Comparator.comparing(TransferProgress::getStartedAt))
+                .toList();
+    }
+
+    // Emits the progress every PROGRESS_INTERVAL, and a last time once the transfer is done.
+    public Flux<TransferProgress> watch(String id) {
+        Transfer transfer = find(id);
+        return Flux.interval(Duration.ZERO, PROGRESS_INTERVAL)
+                .map(ignored -> transfer.toProgress())
+                .takeUntil(progress -> !Transfer.IN_PROGRESS.equals(progress.getState()));
+    }
+
+    public TransferProgress cancel(String id) {
+        Transfer transfer = find(id);
+        log.info("Cancelling the transfer '{}' of '{}'.", id, transfer.key);
+        transfer.cancel();
+        return transfer.toProgress();
+    }
+
+    private Transfer find(String id) {
+        return Optional.ofNullable(transfers.get(id))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Transfer '" + id + "' not found."));
+    }
+
+    public class Transfer implements TransferListener {
+
+        static final String IN_PROGRESS = "in-progress";
+        static final String COMPLETED = "completed";
+        static final String FAILED = "failed";
+        static final String CANCELLED = "cancelled";
+
+        private final String id;
+        private final String key;
+        private final Instant startedAt = Instant.now();
+        private volatile Long totalBytes;
+        private final AtomicLong transferredBytes = new AtomicLong();
+        private volatile String state = IN_PROGRESS;
+        private CompletableFuture<?> future;
+        private boolean cancelled;
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+        private long bytesPerSecond;
+
+        private Transfer(String id, String key, Long totalBytes) {
+            this.id = id;
+            this.key = key;
+            this.totalBytes = totalBytes;
+        }
+
+        @Override
+        public void transferInitiated(Context.TransferInitiated context) {
+            context.progressSnapshot().totalBytes().ifPresent(total -> totalBytes = total);
+        }
+
+        @Override
+        public void bytesTransferred(Context.BytesTransferred context) {
+            transferredBytes.set(context.progressSnapshot().transferredBytes());
+            measure();
+        }
+
+        public Flux<DataBuffer> count(Flux<DataBuffer> content) {
+            return content.doOnNext(dataBuffer -> {
+                transferredBytes.addAndGet(dataBuffer.readableByteCount());
+                measure();
+            });
+        }
+
+        // A transfer cancelled before it was bound is cancelled as soon as it is.
+        public synchronized void bind(CompletableFuture<?> completionFuture) {
+            future = completionFuture;
+            if (cancelled) {
+                completionFuture.cancel(true);
+            }
+            completionFuture.whenComplete((result, e) -> {
+                state = e == null ? COMPLETED : isCancellation(e) ? CANCELLED : FAILED;
+                transfers.remove(id);
+            });
+        }
+
+        public ResponseStatusException toCancelledException() {
+            return new ResponseStatusException(HttpStatus.CONFLICT, "The upload of '" + key + "' was cancelled.");
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        private synchronized long measure() {
+            long now = System.nanoTime();
+            long transferred = transferredBytes.get();
+            long elapsed = now - windowStart;
+            if (elapsed >= PROGRESS_INTERVAL.toNanos()) {
+                bytesPerSecond = (transferred - windowBytes) * 1_000_000_000L / elapsed;
+                windowStart = now;
+                windowBytes = transferred;
+            }
+            return transferred;
+        }
+
+        private synchronized TransferProgress toProgress() {
+            long transferred = measure();
+            Long total = totalBytes;
+            Long eta = total == null || bytesPerSecond == 0
+                    ? null
+                    : Math.max(0, total - transferred) / bytesPerSecond;
+            return TransferProgress.builder()
+                    .id(id)
+                    .key(key)
+                    .state(state)
+                    .transferredBytes(transferred)
+                    .totalBytes(total)
+                    .bytesPerSecond(bytesPerSecond)
+                    .etaInSeconds(eta)
+                    .startedAt(startedAt)
+                    .build();
+        }
+
+        private static boolean isCancellation(Throwable throwable) {
+            return throwable instanceof CancellationException || throwable.getCause() instanceof CancellationException;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.UploadProperties;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Hands the body of an upload to the storage backend without copying it, and bounds the bytes held between the
+// client socket and the backend. The readable ByteBuffers of every DataBuffer are passed on as they are, and the
+// DataBuffer is owned by the upload until the backend has read them, or the upload is over, when it's released.
+// Backends read duplicates of the buffers, so their positions tell nothing. What they do tell is when they want
+// more: they only ask once they hold less than 'backendBufferSizeInKb' unread bytes, 1 MB for the CRT client, so
+// every asking releases the buffers delivered before the last 'backendBufferSizeInKb'. That's how the SDK's
+// request body adapter of the CRT client reads, which isn't documented, so UploadPipelineTest checks it against
+// the SDK in use: 'backendBufferSizeInKb' must never be below what the backend holds.
+// The next buffer is only read from the client while the bytes held by the upload, beyond those the backend may
+// still be reading, are below 'maximumInFlightSizeInKbPerTransfer' and those held by all uploads are below
+// 'maximumInFlightSizeInMb', so a slow backend pushes back on the client socket. Both limits are soft, the buffer
+// being read may go over them. An upload holding no more than the backend may still be reading can always read,
+// as only the backend asking for more would release its buffers. A backend that asks for everything at once
+// gets everything, it keeps the buffers until the upload is over.
+@Component
+public class UploadPipeline {
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * 1024;
+    private final long backendBufferSize;
+    private final long maximumInFlightBytesPerTransfer;
+    private final long maximumInFlightBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final Queue<Runnable> waitingTransfers = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public UploadPipeline(UploadProperties properties) {
+        this.backendBufferSize = properties.backendBufferSizeInKb() * KB;
+        this.maximumInFlightBytesPerTransfer = properties.maximumInFlightSizeInKbPerTransfer() * KB;
+        this.maximumInFlightBytes = properties.maximumInFlightSizeInMb() * MB;
+    }
+
+    // The content can only be subscribed once, by the upload. Its buffers are released before the result is
+    // signalled, not after.
+    public <T> Mono<T> upload(Flux<DataBuffer> content, Function<Flux<ByteBuffer>, Mono<T>> upload) {
+        return Mono.using(() -> new Transfer(content), transfer -> upload.apply(Flux.from(transfer)), Transfer::close);
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    // When all uploads are over the limit, the transfer is resumed by the next release.
+    private boolean tryAcquire(Runnable resume) {
+        if (inFlightBytes.get() < maximumInFlightBytes) {
+            return true;
+        }
+        waitingTransfers.add(resume);
+        // Bytes may have been released in between, nobody would resume the transfer then.
+        if (inFlightBytes.get() < maximumInFlightBytes) {
+            waitingTransfers.remove(resume);
+            return true;
+        }
+        return false;
+    }
+
+    private void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+        Runnable resume;
+        while (inFlightBytes.get() < maximumInFlightBytes && (resume = waitingTransfers.poll()) != null) {
+            resume.run();
+        }
+    }
+
+    // Reads one DataBuffer at a time, only when the backend asked for more and the limits allow it. Every signal
+    // goes through drain(), so the state it touches is only ever accessed by one thread at a time. Buffers are
+    // numbered by the offset of their last byte, in the order they are delivered.
+    private class Transfer implements Publisher<ByteBuffer>, Subscriber<DataBuffer>, Subscription {
+
+        private final Flux<DataBuffer> source;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final Queue<DataBuffer> received = new ConcurrentLinkedQueue<>();
+        private final Deque<HeldBuffer> heldBuffers = new ArrayDeque<>();
+        private final Queue<ByteBuffer> readyBuffers = new ArrayDeque<>();
+        private final AtomicLong deliveredBytes = new AtomicLong();
+        private final AtomicLong readBytes = new AtomicLong();
+        private final Runnable resume = () -> {
+            waiting = false;
+            drain();
+        };
+
+        private Subscriber<? super ByteBuffer> downstream;
+        private volatile Subscription upstream;
+        private volatile boolean reading;
+        private volatile boolean upstreamDone;
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+        private volatile boolean closed;
+        private volatile boolean waiting;
+        private boolean upstreamCancelled;
+        private boolean terminated;
+        private long heldBytes;
+        private long heldUpTo;
+
+        Transfer(Flux<DataBuffer> source) {
+            this.source = source;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            if (!subscribed.compareAndSet(false, true)) {
+                Operators.error(subscriber, new IllegalStateException("The content of an upload can only be read once."));
+                return;
+            }
+            downstream = subscriber;
+            source.subscribe(this);
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(DataBuffer dataBuffer) {
+            if (cancelled || closed) {
+                DataBufferUtils.release(dataBuffer);
+                return;
+            }
+            received.add(dataBuffer);
+            reading = false;
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                readBytes.accumulateAndGet(deliveredBytes.get() - backendBufferSize, Math::max);
+                requested.getAndUpdate(current -> Operators.addCap(current, n));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        void close() {
+            closed = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (closed || cancelled) {
+                    cancelUpstream();
+                    // Buffers already handed over may still be read by the backend until the upload is over.
+                    DataBuffer dataBuffer;
+                    while ((dataBuffer = received.poll()) != null) {
+                        hold(dataBuffer);
+                    }
+                    readyBuffers.clear();
+                    if (closed) {
+                        releaseAll();
+                    }
+                } else {
+                    releaseRead();
+                    DataBuffer dataBuffer;
+                    while ((dataBuffer = received.poll()) != null) {
+                        hold(dataBuffer);
+                    }
+                    emit();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            long emitted = 0;
+            long demand = requested.get();
+            while (emitted < demand && !readyBuffers.isEmpty()) {
+                ByteBuffer byteBuffer = readyBuffers.poll();
+                int size = byteBuffer.remaining();
+                downstream.onNext(byteBuffer);
+                deliveredBytes.addAndGet(size);
+                emitted++;
+            }
+            if (emitted > 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+            if (!readyBuffers.isEmpty() || terminated) {
+                return;
+            }
+            if (upstreamDone) {
+                terminated = true;
+                if (error != null) {
+                    downstream.onError(error);
+                } else {
+                    downstream.onComplete();
+                }
+            } else if (!reading && !waiting && requested.get() > 0 && mayRead()) {
+                reading = true;
+                upstream.request(1);
+            }
+        }
+
+        // When the limits don't allow it, the next request of the backend or a release of another upload
+        // drains again.
+        private boolean mayRead() {
+            if (requested.get() == Long.MAX_VALUE || heldBytes <= backendBufferSize) {
+                return true;
+            }
+            if (heldBytes >= backendBufferSize + maximumInFlightBytesPerTransfer) {
+                return false;
+            }
+            waiting = true;
+            if (tryAcquire(resume)) {
+                waiting = false;
+                return true;
+            }
+            return false;
+        }
+
+        private void hold(DataBuffer dataBuffer) {
+            DataBuffer.ByteBufferIterator iterator = dataBuffer.readableByteBuffers();
+            iterator.forEachRemaining(readyBuffers::add);
+            long size = dataBuffer.readableByteCount();
+            heldUpTo += size;
+            heldBuffers.add(new HeldBuffer(dataBuffer, iterator, size, heldUpTo));
+            heldBytes += size;
+            inFlightBytes.addAndGet(size);
+        }
+
+        // The backend reads the buffers in order, so every buffer that ends before what it has read is done.
+        private void releaseRead() {
+            long read = readBytes.get();
+            while (!heldBuffers.isEmpty() && heldBuffers.peek().end() <= read) {
+                release(heldBuffers.poll());
+            }
+        }
+
+        private void releaseAll() {
+            while (!heldBuffers.isEmpty()) {
+                release(heldBuffers.poll());
+            }
+        }
+
+        private void release(HeldBuffer heldBuffer) {
+            heldBuffer.iterator().close();
+            DataBufferUtils.release(heldBuffer.dataBuffer());
+            heldBytes -= heldBuffer.size();
+            UploadPipeline.this.release(heldBuffer.size());
+        }
+
+        private void cancelUpstream() {
+            if (!upstreamCancelled && upstream != null) {
+                upstreamCancelled = true;
+                waitingTransfers.remove(resume);
+                upstream.cancel();
+            }
+        }
+    }
+
+    private record HeldBuffer(DataBuffer dataBuffer, DataBuffer.ByteBufferIterator iterator, long size, long end) { }
+}
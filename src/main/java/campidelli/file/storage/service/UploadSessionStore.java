@@ -0,0 +1,91 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.UploadSessionProperties;
+import campidelli.file.storage.dto.UploadSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps every upload session as a JSON file, so sessions and the ETags of their parts survive restarts.
+// Files are replaced with an atomic move, a crash never leaves a half written session behind. Chunks a session holds
+// until they make a part are kept in a file of their own next to it.
+@Component
+@Slf4j
+public class UploadSessionStore implements InitializingBean {
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    @Autowired
+    public UploadSessionStore(UploadSessionProperties properties, ObjectMapper objectMapper) {
+        this.directory = Paths.get(properties.directory());
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                UploadSession session = objectMapper.readValue(file.toFile(), UploadSession.class);
+                sessions.put(session.getId(), session);
+            }
+        }
+        log.info("Loaded {} upload sessions from '{}'.", sessions.size(), directory);
+    }
+
+    public Optional<UploadSession> find(String id) {
+        return Optional.ofNullable(sessions.get(id));
+    }
+
+    public List<UploadSession> findExpired(Instant now) {
+        return sessions.values().stream()
+                .filter(session -> session.getExpiresAt().isBefore(now))
+                .toList();
+    }
+
+    public void save(UploadSession session) {
+        try {
+            Path temporaryFile = directory.resolve(session.getId() + ".tmp");
+            objectMapper.writeValue(temporaryFile.toFile(), session);
+            Files.move(temporaryFile, getFile(session.getId()), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            sessions.put(session.getId(), session);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving the upload session '" + session.getId() + "'.", e);
+        }
+    }
+
+    public Path getPendingFile(String id) {
+        return directory.resolve(id + ".pending");
+    }
+
+    public void delete(String id) {
+        sessions.remove(id);
+        try {
+            Files.deleteIfExists(getFile(id));
+            Files.deleteIfExists(getPendingFile(id));
+        } catch (IOException e) {
+            log.warn("Error deleting the upload session '{}'.", id, e);
+        }
+    }
+
+    private Path getFile(String id) {
+        return directory.resolve(id + ".json");
+    }
+}
@@ -0,0 +1,141 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Builds a ZIP archive on the fly from the S3 downloads. The next 'zipPrefetchEntries' objects are
+// requested while the current one is written, but their content is only read when their turn comes, so
+// no entry is ever held in memory or on disk. ZipOutputStream switches to ZIP64 by itself when needed.
+@Service
+@Slf4j
+public class ZipArchiveService {
+
+    private final S3AsyncFileRepositoryService fileRepositoryService;
+    private final S3Properties s3Properties;
+    private final CompressionService compressionService;
+
+    @Autowired
+    public ZipArchiveService(S3AsyncFileRepositoryService fileRepositoryService,
+                             S3Properties s3Properties,
+                             CompressionService compressionService) {
+        this.fileRepositoryService = fileRepositoryService;
+        this.s3Properties = s3Properties;
+        this.compressionService = compressionService;
+    }
+
+    public Flux<ByteBuffer> zipFilesByPrefix(String prefix) {
+        Flux<String> keys = fileRepositoryService.listFiles(FileListRequest.builder().prefix(prefix).build())
+                .map(FileEntry::getKey);
+        return zipFiles(keys);
+    }
+
+    // A key asked for twice is written once, a second entry of the same name would fail the archive midway.
+    public Flux<ByteBuffer> zipFiles(Flux<String> keys) {
+        return Flux.using(ZipArchive::new,
+                archive -> keys
+                        .distinct()
+                        .flatMapSequential(key -> fileRepositoryService.getFile(key)
+                                .map(fileDownload -> new PendingEntry(key, fileDownload.getEncoding() == null
+                                        ? fileDownload
+                                        : compressionService.decompress(fileDownload))), s3Properties.zipPrefetchEntries(), 1)
+                        .doOnDiscard(PendingEntry.class, this::discard)
+                        .concatMap(entry -> writeEntry(archive, entry), 0)
+                        .concatWith(Mono.fromCallable(archive::finish))
+                        .filter(ByteBuffer::hasRemaining),
+                ZipArchive::close);
+    }
+
+    private Flux<ByteBuffer> writeEntry(ZipArchive archive, PendingEntry entry) {
+        return Flux.concat(
+                Mono.fromCallable(() -> archive.putNextEntry(entry.key(), entry.fileDownload())),
+                entry.fileDownload().getContent().map(archive::write),
+                Mono.fromCallable(archive::closeEntry));
+    }
+
+    // A prefetched download that will never be written, its content is cancelled so the connection is released.
+    private void discard(PendingEntry entry) {
+        entry.fileDownload().getContent().take(0).subscribe();
+    }
+
+    private record PendingEntry(String key, FileDownload fileDownload) { }
+
+    private static class ZipArchive {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        // Collects whatever the ZipOutputStream writes, it's drained after every call.
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(CHUNK_SIZE);
+        private final ZipOutputStream zipOutputStream = new ZipOutputStream(output);
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        ZipArchive() {
+            // Most of the time is spent on the network, and media files hardly compress anyway.
+            zipOutputStream.setLevel(Deflater.BEST_SPEED);
+        }
+
+        ByteBuffer putNextEntry(String key, FileDownload fileDownload) throws IOException {
+            ZipEntry entry = new ZipEntry(key);
+            if (fileDownload.getLastModified() != null) {
+                entry.setTime(fileDownload.getLastModified().toEpochMilli());
+            }
+            zipOutputStream.putNextEntry(entry);
+            return drain();
+        }
+
+        ByteBuffer write(ByteBuffer byteBuffer) {
+            try {
+                if (byteBuffer.hasArray()) {
+                    zipOutputStream.write(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+                } else {
+                    ByteBuffer source = byteBuffer.duplicate();
+                    while (source.hasRemaining()) {
+                        int length = Math.min(source.remaining(), chunk.length);
+                        source.get(chunk, 0, length);
+                        zipOutputStream.write(chunk, 0, length);
+                    }
+                }
+                return drain();
+            } catch (IOException e) {
+                throw new IllegalStateException("Error writing to the ZIP archive.", e);
+            }
+        }
+
+        ByteBuffer closeEntry() throws IOException {
+            zipOutputStream.closeEntry();
+            return drain();
+        }
+
+        ByteBuffer finish() throws IOException {
+            zipOutputStream.finish();
+            return drain();
+        }
+
+        void close() {
+            try {
+                zipOutputStream.close();
+            } catch (IOException e) {
+                log.debug("Error closing the ZIP archive.", e);
+            }
+        }
+
+        private ByteBuffer drain() {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(output.toByteArray());
+            output.reset();
+            return byteBuffer;
+        }
+    }
+}
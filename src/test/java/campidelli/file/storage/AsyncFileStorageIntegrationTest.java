@@ -2,6 +2,7 @@ package campidelli.file.storage;
 
 import com.adobe.testing.s3mock.testcontainers.S3MockContainer;
 import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
 import org.junit.jupiter.api.Order;
@@ -10,7 +11,12 @@ import org.junit.jupiter.api.TestMethodOrder;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.test.context.ActiveProfiles;
@@ -22,8 +28,10 @@ import org.springframework.web.reactive.function.BodyInserters;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Random;
 
 @ActiveProfiles("test")
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
@@ -32,6 +40,8 @@ import java.nio.ByteBuffer;
 @Slf4j
 public class AsyncFileStorageIntegrationTest extends S3MockIntegrationTest {
 
+	private static final String LARGE_FILE_NAME = "large-file.bin";
+
 	@LocalServerPort
 	private int port;
 
@@ -104,6 +114,45 @@ public class AsyncFileStorageIntegrationTest extends S3MockIntegrationTest {
 
 	@Test
 	@Order(4)
+	public void testDownloadFileRange() throws IOException {
+		client.get()
+				.uri("/v1/async/file/" + FILE_NAME)
+				.header(HttpHeaders.RANGE, "bytes=0-1023")
+				.exchange()
+				.expectStatus()
+				.isEqualTo(HttpStatus.PARTIAL_CONTENT)
+				.expectHeader()
+				.valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+				.expectHeader()
+				.valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 0-1023/" + getTestFile().contentLength())
+				.expectHeader()
+				.contentLength(1024);
+	}
+
+	@Test
+	@Order(5)
+	public void testDownloadFileNotModified() {
+		String eTag = client.get()
+				.uri("/v1/async/file/" + FILE_NAME)
+				.exchange()
+				.expectStatus()
+				.is2xxSuccessful()
+				.returnResult(ByteBuffer.class)
+				.getResponseHeaders()
+				.getETag();
+
+		client.get()
+				.uri("/v1/async/file/" + FILE_NAME)
+				.header(HttpHeaders.IF_NONE_MATCH, eTag)
+				.exchange()
+				.expectStatus()
+				.isNotModified()
+				.expectHeader()
+				.valueEquals(HttpHeaders.ETAG, eTag);
+	}
+
+	@Test
+	@Order(6)
 	public void testDeleteFile() {
 		client.delete()
 				.uri("/v1/async/file/" + FILE_NAME)
@@ -124,7 +173,83 @@ public class AsyncFileStorageIntegrationTest extends S3MockIntegrationTest {
 	}
 
 	@Test
-	@Order(5)
+	@Order(7)
+	public void testUploadFileWithoutContentLength() throws IOException {
+		MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+		multipartBodyBuilder.asyncPart("file",
+						DataBufferUtils.read(getTestFile(), DefaultDataBufferFactory.sharedInstance, 4096), DataBuffer.class)
+				.filename(FILE_NAME);
+
+		client.post()
+				.uri("/v1/async/file")
+				.contentType(MediaType.MULTIPART_FORM_DATA)
+				.body(BodyInserters.fromMultipartData(multipartBodyBuilder.build()))
+				.exchange()
+				.expectStatus().is2xxSuccessful();
+
+		client.get()
+				.uri("/v1/async/file/" + FILE_NAME)
+				.exchange()
+				.expectStatus()
+				.is2xxSuccessful()
+				.expectHeader()
+				.contentLength(getTestFile().contentLength());
+
+		client.delete()
+				.uri("/v1/async/file/" + FILE_NAME)
+				.exchange()
+				.expectStatus()
+				.is2xxSuccessful();
+	}
+
+	// Bigger than 'maximumInFlightSizeInKbPerTransfer', so the upload only goes through when the buffers the
+	// backend has read are released.
+	@Test
+	@Order(8)
+	public void testUploadFileOverTheInFlightLimit() {
+		byte[] content = new byte[8 * 1024 * 1024];
+		new Random(42).nextBytes(content);
+		MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+		multipartBodyBuilder.part("file", new ByteArrayResource(content) {
+					@Override
+					public String getFilename() {
+						return LARGE_FILE_NAME;
+					}
+				})
+				.header(HttpHeaders.CONTENT_LENGTH, String.valueOf(content.length));
+
+		client.post()
+				.uri("/v1/async/file")
+				.contentType(MediaType.MULTIPART_FORM_DATA)
+				.body(BodyInserters.fromMultipartData(multipartBodyBuilder.build()))
+				.exchange()
+				.expectStatus().is2xxSuccessful();
+
+		ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+		client.get()
+				.uri("/v1/async/file/" + LARGE_FILE_NAME)
+				.exchange()
+				.expectStatus()
+				.is2xxSuccessful()
+				.returnResult(ByteBuffer.class)
+				.getResponseBody()
+				.doOnNext(byteBuffer -> {
+					byte[] bytes = new byte[byteBuffer.remaining()];
+					byteBuffer.get(bytes);
+					downloaded.writeBytes(bytes);
+				})
+				.blockLast();
+		Assertions.assertArrayEquals(content, downloaded.toByteArray());
+
+		client.delete()
+				.uri("/v1/async/file/" + LARGE_FILE_NAME)
+				.exchange()
+				.expectStatus()
+				.is2xxSuccessful();
+	}
+
+	@Test
+	@Order(9)
 	public void logS3MockContainer() {
 		log.info(s3Mock.getLogs());
 	}
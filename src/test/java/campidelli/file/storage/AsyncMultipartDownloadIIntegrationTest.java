@@ -40,6 +40,7 @@ public class AsyncMultipartDownloadIIntegrationTest extends S3MockIntegrationTes
 	private WebTestClient webTestClient;
 	private S3Client s3Client;
 	private Resource file;
+	private long fileLength;
 
 	@Container
 	private static final S3MockContainer s3Mock = new S3MockContainer(S3_MOCK_VERSION)
@@ -53,12 +54,13 @@ public class AsyncMultipartDownloadIIntegrationTest extends S3MockIntegrationTes
 	}
 
 	@BeforeEach
-	public void setup() {
+	public void setup() throws IOException {
 		webTestClient = WebTestClient.bindToServer()
 				.baseUrl("http://localhost:" + this.port)
 				.build();
 		s3Client = createS3Client(s3Mock.getHttpEndpoint());
 		file = getTestFile();
+		fileLength = file.contentLength();
 	}
 
 	@Test
@@ -76,10 +78,14 @@ public class AsyncMultipartDownloadIIntegrationTest extends S3MockIntegrationTes
 				.expectHeader()
 				.contentType(MediaType.APPLICATION_JSON)
 				.expectBodyList(PreSignedURL.class)
-				.hasSize(5)
+				.hasSize(1)
 				.value(urls -> {
 					for (int i = 0; i < urls.size(); i++) {
 						assertEquals(i + 1, urls.get(i).getPartNumber());
+						assertEquals(urls.size(), urls.get(i).getPartCount());
+						assertEquals(0L, urls.get(i).getOffset());
+						assertEquals(fileLength, urls.get(i).getLength());
+						assertEquals(1, urls.get(i).getConcurrency());
 						assertNotNull(urls.get(i).getUrl());
 						assertEquals(2, urls.get(i).getHeaders().size());
 						assertTrue(urls.get(i).getHeaders().containsKey("host"));
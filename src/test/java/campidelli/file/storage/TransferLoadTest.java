@@ -0,0 +1,341 @@
+package campidelli.file.storage;
+
+import com.adobe.testing.s3mock.testcontainers.S3MockContainer;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Load harness comparing the sync, async and multipart endpoints against S3Mock. It only runs with the
+// "load" Maven profile (mvn -Pload test), for every object size and concurrency level of the matrix:
+// -Dload.objectSizesInKb=64,1024,16384 -Dload.concurrencyLevels=1,8,32 -Dload.requests=64
+// MB/s, latency percentiles, peak heap and GC activity are logged and written to target/load-report.csv.
+// -Dload.saveBaseline=<file> saves the throughput of every run, and -Dload.baseline=<file> fails the build
+// when any run is slower than its baseline by more than -Dload.maxRegression (0.2 by default).
+@ActiveProfiles("test")
+// The local cache would serve every download but the first one, so only the S3 path is measured.
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "storage.cache.enabled=false")
+@Testcontainers
+@EnabledIfSystemProperty(named = "load.enabled", matches = "true")
+@Slf4j
+public class TransferLoadTest extends S3MockIntegrationTest {
+
+	private static final int KB = 1024;
+	private static final double MB = 1024 * 1024;
+	private static final String BOUNDARY = "load-test-boundary";
+
+	@LocalServerPort
+	private int port;
+
+	private HttpClient httpClient;
+	private S3Client s3Client;
+
+	@Container
+	private static final S3MockContainer s3Mock = new S3MockContainer(S3_MOCK_VERSION)
+			.withValidKmsKeys(TEST_ENC_KEYREF)
+			.withInitialBuckets(INITIAL_BUCKET_NAME);
+
+	@DynamicPropertySource
+	static void registerDynamicProperties(DynamicPropertyRegistry registry) {
+		registry.add("aws.s3.endpoint", s3Mock::getHttpEndpoint);
+	}
+
+	@BeforeEach
+	public void setup() {
+		httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.build();
+		s3Client = createS3Client(s3Mock.getHttpEndpoint());
+	}
+
+	@Test
+	public void testThroughput() throws Exception {
+		Random random = new Random(42);
+		List<Result> results = new ArrayList<>();
+		for (int objectSizeInKb : getIntegers("load.objectSizesInKb", "64,1024,16384")) {
+			byte[] content = new byte[objectSizeInKb * KB];
+			random.nextBytes(content);
+			String downloadKey = "load-" + objectSizeInKb + ".bin";
+			s3Client.putObject(PutObjectRequest.builder()
+					.bucket(INITIAL_BUCKET_NAME)
+					.key(downloadKey)
+					.contentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+					.build(), RequestBody.fromBytes(content));
+
+			for (int concurrency : getIntegers("load.concurrencyLevels", "1,8,32")) {
+				for (Endpoint endpoint : Endpoint.values()) {
+					results.add(run(endpoint, downloadKey, content, concurrency));
+				}
+			}
+		}
+
+		report(results);
+		List<String> failures = new ArrayList<>();
+		results.stream()
+				.filter(result -> result.failures() > 0)
+				.forEach(result -> failures.add(result.name() + ": " + result.failures() + " requests failed."));
+		failures.addAll(checkBaseline(results));
+		assertTrue(failures.isEmpty(), String.join("\n", failures));
+	}
+
+	private Result run(Endpoint endpoint, String downloadKey, byte[] content, int concurrency) throws InterruptedException {
+		int requests = Math.max(Integer.getInteger("load.requests", 64), concurrency);
+		String name = endpoint.getName() + "." + content.length / KB + "." + concurrency;
+		long[] latencies = new long[requests];
+		AtomicInteger nextRequest = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+
+		System.gc();
+		List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(pool -> pool.getType() == MemoryType.HEAP)
+				.toList();
+		heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+		long gcCount = getGcCount();
+		long gcTime = getGcTimeInMillis();
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		long start = System.nanoTime();
+		for (int worker = 0; worker < concurrency; worker++) {
+			executor.execute(() -> {
+				int request;
+				while ((request = nextRequest.getAndIncrement()) < requests) {
+					String key = endpoint.isUpload() ? "load-" + name + "-" + request + ".bin" : downloadKey;
+					long requestStart = System.nanoTime();
+					try {
+						HttpResponse<Void> response = httpClient.send(
+								endpoint.request("http://localhost:" + port, key, content),
+								HttpResponse.BodyHandlers.discarding());
+						if (response.statusCode() >= 300) {
+							failures.incrementAndGet();
+						}
+					} catch (IOException e) {
+						log.warn("Request {} of '{}' failed.", request, name, e);
+						failures.incrementAndGet();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					latencies[request] = System.nanoTime() - requestStart;
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		long elapsed = System.nanoTime() - start;
+
+		Arrays.sort(latencies);
+		long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+		return new Result(name,
+				requests,
+				failures.get(),
+				(double) requests * content.length / MB / (elapsed / 1e9),
+				percentile(latencies, 0.50),
+				percentile(latencies, 0.99),
+				percentile(latencies, 0.999),
+				peakHeap / MB,
+				getGcCount() - gcCount,
+				getGcTimeInMillis() - gcTime);
+	}
+
+	private double percentile(long[] sortedLatencies, double percentile) {
+		int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+		return sortedLatencies[Math.max(index, 0)] / 1e6;
+	}
+
+	// Time accumulated by the collectors, which for the young generation collections are pauses.
+	private long getGcTimeInMillis() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream()
+				.mapToLong(GarbageCollectorMXBean::getCollectionTime)
+				.sum();
+	}
+
+	private long getGcCount() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream()
+				.mapToLong(GarbageCollectorMXBean::getCollectionCount)
+				.sum();
+	}
+
+	private void report(List<Result> results) throws IOException {
+		StringBuilder table = new StringBuilder(String.format("%n%-32s %9s %10s %10s %10s %10s %10s %8s %10s",
+				"run", "failures", "MB/s", "p50 ms", "p99 ms", "p999 ms", "heap MB", "gc count", "gc ms"));
+		for (Result result : results) {
+			table.append(String.format("%n%-32s %9d %10.1f %10.1f %10.1f %10.1f %10.1f %8d %10d",
+					result.name(), result.failures(), result.mbPerSecond(), result.p50(), result.p99(),
+					result.p999(), result.peakHeapInMb(), result.gcCount(), result.gcTimeInMillis()));
+		}
+		log.info(table.toString());
+
+		Path report = Paths.get(System.getProperty("load.report", "target/load-report.csv"));
+		Files.createDirectories(report.toAbsolutePath().getParent());
+		try (Writer writer = Files.newBufferedWriter(report)) {
+			writer.write("run,requests,failures,mb_per_second,p50_ms,p99_ms,p999_ms,peak_heap_mb,gc_count,gc_ms\n");
+			for (Result result : results) {
+				writer.write(String.format("%s,%d,%d,%.2f,%.2f,%.2f,%.2f,%.2f,%d,%d%n",
+						result.name(), result.requests(), result.failures(), result.mbPerSecond(), result.p50(),
+						result.p99(), result.p999(), result.peakHeapInMb(), result.gcCount(), result.gcTimeInMillis()));
+			}
+		}
+
+		String saveBaseline = System.getProperty("load.saveBaseline");
+		if (saveBaseline != null) {
+			Properties baseline = new Properties();
+			results.forEach(result -> baseline.setProperty(result.name(), String.format("%.2f", result.mbPerSecond())));
+			try (Writer writer = Files.newBufferedWriter(Paths.get(saveBaseline))) {
+				baseline.store(writer, "MB/s of every run of " + getClass().getSimpleName());
+			}
+		}
+	}
+
+	private List<String> checkBaseline(List<Result> results) throws IOException {
+		String baselineFile = System.getProperty("load.baseline");
+		if (baselineFile == null) {
+			return List.of();
+		}
+		double maxRegression = Double.parseDouble(System.getProperty("load.maxRegression", "0.2"));
+		Properties baseline = new Properties();
+		try (Reader reader = Files.newBufferedReader(Paths.get(baselineFile))) {
+			baseline.load(reader);
+		}
+		List<String> regressions = new ArrayList<>();
+		for (Result result : results) {
+			String expected = baseline.getProperty(result.name());
+			if (expected != null && result.mbPerSecond() < Double.parseDouble(expected) * (1 - maxRegression)) {
+				regressions.add(String.format("%s: %.1f MB/s, baseline is %s MB/s.",
+						result.name(), result.mbPerSecond(), expected));
+			}
+		}
+		return regressions;
+	}
+
+	private List<Integer> getIntegers(String property, String defaultValue) {
+		return Arrays.stream(System.getProperty(property, defaultValue).split(","))
+				.map(String::trim)
+				.map(Integer::valueOf)
+				.toList();
+	}
+
+	private enum Endpoint {
+		SYNC_UPLOAD("sync-upload", true) {
+			@Override
+			HttpRequest request(String baseUrl, String key, byte[] content) {
+				return HttpRequest.newBuilder(URI.create(baseUrl + "/v1/sync/file/" + key))
+						.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE)
+						.PUT(HttpRequest.BodyPublishers.ofByteArray(content))
+						.build();
+			}
+		},
+		SYNC_DOWNLOAD("sync-download", false) {
+			@Override
+			HttpRequest request(String baseUrl, String key, byte[] content) {
+				return HttpRequest.newBuilder(URI.create(baseUrl + "/v1/sync/file/" + key)).GET().build();
+			}
+		},
+		ASYNC_UPLOAD("async-upload", true) {
+			// Sent chunked, so the Content-Length of the file part is the one used.
+			@Override
+			HttpRequest request(String baseUrl, String key, byte[] content) {
+				byte[] body = multipartBody(key, content);
+				return HttpRequest.newBuilder(URI.create(baseUrl + "/v1/async/file"))
+						.header(HttpHeaders.CONTENT_TYPE, MediaType.MULTIPART_FORM_DATA_VALUE + "; boundary=" + BOUNDARY)
+						.POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(body)))
+						.build();
+			}
+		},
+		ASYNC_DOWNLOAD("async-download", false) {
+			@Override
+			HttpRequest request(String baseUrl, String key, byte[] content) {
+				return HttpRequest.newBuilder(URI.create(baseUrl + "/v1/async/file/" + key)).GET().build();
+			}
+		},
+		MULTIPART_DOWNLOAD("multipart-download", false) {
+			@Override
+			HttpRequest request(String baseUrl, String key, byte[] content) {
+				return HttpRequest.newBuilder(URI.create(baseUrl + "/v1/async/file/multipart/" + key)).GET().build();
+			}
+		};
+
+		private final String name;
+		private final boolean upload;
+
+		Endpoint(String name, boolean upload) {
+			this.name = name;
+			this.upload = upload;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		boolean isUpload() {
+			return upload;
+		}
+
+		abstract HttpRequest request(String baseUrl, String key, byte[] content);
+
+		private static byte[] multipartBody(String key, byte[] content) {
+			String header = "--" + BOUNDARY + "\r\n"
+					+ "Content-Disposition: form-data; name=\"file\"; filename=\"" + key + "\"\r\n"
+					+ "Content-Type: " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+					+ "Content-Length: " + content.length + "\r\n\r\n";
+			String trailer = "\r\n--" + BOUNDARY + "--\r\n";
+			ByteArrayOutputStream body = new ByteArrayOutputStream(content.length + header.length() + trailer.length());
+			body.writeBytes(header.getBytes(StandardCharsets.US_ASCII));
+			body.writeBytes(content);
+			body.writeBytes(trailer.getBytes(StandardCharsets.US_ASCII));
+			return body.toByteArray();
+		}
+	}
+
+	private record Result(String name,
+						  int requests,
+						  int failures,
+						  double mbPerSecond,
+						  double p50,
+						  double p99,
+						  double p999,
+						  double peakHeapInMb,
+						  long gcCount,
+						  long gcTimeInMillis) { }
+}
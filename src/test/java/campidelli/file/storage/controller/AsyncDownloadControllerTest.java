@@ -0,0 +1,148 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.config.CompressionProperties;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.service.CompressionService;
+import campidelli.file.storage.service.S3AsyncFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
+import campidelli.file.storage.service.ZipArchiveService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncDownloadControllerTest {
+
+	private S3AsyncFileRepositoryService fileRepositoryService;
+	private ZipArchiveService zipArchiveService;
+	private CompressionService compressionService;
+	private WebTestClient client;
+
+	@BeforeEach
+	public void setup() {
+		fileRepositoryService = mock(S3AsyncFileRepositoryService.class);
+		zipArchiveService = mock(ZipArchiveService.class);
+		compressionService = new CompressionService(new CompressionProperties(true, 6, List.of("text/*")));
+		// Every key becomes a line of the archive, so the test sees which keys were asked for.
+		when(zipArchiveService.zipFiles(any())).thenAnswer(invocation -> {
+			Flux<String> keys = invocation.getArgument(0);
+			return keys.map(key -> ByteBuffer.wrap((key + "\n").getBytes(StandardCharsets.UTF_8)));
+		});
+		client = WebTestClient
+				.bindToController(new AsyncDownloadController(fileRepositoryService, zipArchiveService,
+						compressionService, new TransferMetrics(new SimpleMeterRegistry())))
+				.build();
+	}
+
+	@Test
+	public void testDownloadZip() {
+		byte[] archive = client.post()
+				.uri("/v1/async/file/zip")
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue("[\"sherlock.pdf\", \"watson.pdf\"]")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType("application/zip")
+				.expectBody().returnResult().getResponseBody();
+
+		assertEquals("sherlock.pdf\nwatson.pdf\n", new String(archive, StandardCharsets.UTF_8));
+	}
+
+	// Far more keys than the 256 KB the codecs hold in memory, as a JSON array and as NDJSON.
+	@Test
+	public void testDownloadZipOfManyFiles() {
+		List<String> keys = IntStream.range(0, 50_000)
+				.mapToObj(index -> "case-files/the-adventure-" + index + ".pdf")
+				.toList();
+		String expected = keys.stream()
+				.map(key -> key + "\n")
+				.collect(Collectors.joining());
+		String array = keys.stream()
+				.map(key -> "\"" + key + "\"")
+				.collect(Collectors.joining(",", "[", "]"));
+		String lines = keys.stream()
+				.map(key -> "\"" + key + "\"\n")
+				.collect(Collectors.joining());
+
+		assertEquals(expected, downloadZip(MediaType.APPLICATION_JSON, array));
+		assertEquals(expected, downloadZip(MediaType.APPLICATION_NDJSON, lines));
+	}
+
+	private String downloadZip(MediaType contentType, String body) {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		client.post()
+				.uri("/v1/async/file/zip")
+				.contentType(contentType)
+				.bodyValue(body)
+				.exchange()
+				.expectStatus().isOk()
+				.returnResult(ByteBuffer.class)
+				.getResponseBody()
+				.toIterable()
+				.forEach(byteBuffer -> {
+					byte[] bytes = new byte[byteBuffer.remaining()];
+					byteBuffer.get(bytes);
+					archive.writeBytes(bytes);
+				});
+		return archive.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testDecodedDownloadHasWeakETag() throws IOException {
+		String content = "The Adventure of the Empty House";
+		mockEncodedFile("empty-house.txt", content);
+
+		byte[] decoded = client.get()
+				.uri("/v1/async/file/empty-house.txt")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(HttpHeaders.ETAG, "W/\"1\"")
+				.expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+				.expectBody().returnResult().getResponseBody();
+		assertEquals(content, new String(decoded, StandardCharsets.UTF_8));
+
+		client.get()
+				.uri("/v1/async/file/empty-house.txt")
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(HttpHeaders.ETAG, "\"1\"")
+				.expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip");
+	}
+
+	private void mockEncodedFile(String key, String content) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		try (GZIPOutputStream outputStream = new GZIPOutputStream(encoded)) {
+			outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		when(fileRepositoryService.getFile(key)).thenAnswer(invocation -> Mono.just(FileDownload.builder()
+				.name(key)
+				.type("text/plain")
+				.length(encoded.size())
+				.eTag("\"1\"")
+				.lastModified(Instant.now())
+				.encoding("gzip")
+				.decodedLength((long) content.length())
+				.content(Flux.just(ByteBuffer.wrap(encoded.toByteArray())))
+				.build()));
+	}
+}
@@ -0,0 +1,101 @@
+package campidelli.file.storage.controller;
+
+import campidelli.file.storage.dto.DeleteResult;
+import campidelli.file.storage.service.S3AsyncFileRepositoryService;
+import campidelli.file.storage.service.TransferMetrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncUploadControllerTest {
+
+	private WebTestClient client;
+
+	@BeforeEach
+	public void setup() {
+		S3AsyncFileRepositoryService fileRepositoryService = mock(S3AsyncFileRepositoryService.class);
+		when(fileRepositoryService.deleteFiles(any())).thenAnswer(invocation -> {
+			Flux<String> keys = invocation.getArgument(0);
+			return keys.map(key -> DeleteResult.builder().key(key).deleted(true).build());
+		});
+		client = WebTestClient
+				.bindToController(new AsyncUploadController(fileRepositoryService, mock(TransferMetrics.class)))
+				.build();
+	}
+
+	@Test
+	public void testDeleteFiles() {
+		List<DeleteResult> results = client.post()
+				.uri("/v1/async/file/delete")
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue("[\"sherlock.pdf\", \"watson.pdf\"]")
+				.exchange()
+				.expectStatus().isOk()
+				.returnResult(DeleteResult.class)
+				.getResponseBody()
+				.collectList()
+				.block();
+
+		assertEquals(List.of("sherlock.pdf", "watson.pdf"), results.stream().map(DeleteResult::getKey).toList());
+		results.forEach(result -> assertTrue(result.isDeleted()));
+	}
+
+	@Test
+	public void testDeleteStreamedFiles() {
+		List<DeleteResult> results = deleteFiles(MediaType.APPLICATION_NDJSON, "\"sherlock.pdf\"\n\"watson\\n.pdf\"\n");
+		assertEquals(List.of("sherlock.pdf", "watson\n.pdf"), results.stream().map(DeleteResult::getKey).toList());
+	}
+
+	// Far more keys than the 256 KB the codecs hold in memory.
+	@Test
+	public void testDeleteManyFiles() {
+		List<String> keys = IntStream.range(0, 50_000)
+				.mapToObj(index -> "case-files/the-adventure-" + index + ".pdf")
+				.toList();
+		String array = keys.stream()
+				.map(key -> "\"" + key + "\"")
+				.collect(Collectors.joining(",", "[", "]"));
+		String lines = keys.stream()
+				.map(key -> "\"" + key + "\"\n")
+				.collect(Collectors.joining());
+		assertTrue(array.length() > 4 * 256 * 1024);
+
+		assertEquals(keys, deleteFiles(MediaType.APPLICATION_JSON, array).stream().map(DeleteResult::getKey).toList());
+		assertEquals(keys, deleteFiles(MediaType.APPLICATION_NDJSON, lines).stream().map(DeleteResult::getKey).toList());
+	}
+
+	@Test
+	public void testDeleteFilesWithInvalidKeys() {
+		client.post()
+				.uri("/v1/async/file/delete")
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue("{\"keys\": [\"sherlock.pdf\"]}")
+				.exchange()
+				.expectStatus().isBadRequest();
+	}
+
+	private List<DeleteResult> deleteFiles(MediaType contentType, String body) {
+		return client.post()
+				.uri("/v1/async/file/delete")
+				.contentType(contentType)
+				.bodyValue(body)
+				.exchange()
+				.expectStatus().isOk()
+				.returnResult(DeleteResult.class)
+				.getResponseBody()
+				.collectList()
+				.block();
+	}
+}
@@ -0,0 +1,35 @@
+package campidelli.file.storage.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContentEncodingSupportTest {
+
+	@Test
+	public void testIsAccepted() {
+		assertTrue(ContentEncodingSupport.isAccepted(acceptEncoding("gzip, deflate"), "gzip"));
+		assertTrue(ContentEncodingSupport.isAccepted(acceptEncoding("*"), "gzip"));
+		assertTrue(ContentEncodingSupport.isAccepted(new HttpHeaders(), null));
+		assertFalse(ContentEncodingSupport.isAccepted(new HttpHeaders(), "gzip"));
+		assertFalse(ContentEncodingSupport.isAccepted(acceptEncoding("gzip;q=0, br"), "gzip"));
+	}
+
+	@Test
+	public void testDecodedETagIsWeak() {
+		assertEquals("W/\"abc\"", ContentEncodingSupport.toDecodedETag("\"abc\""));
+		assertEquals("W/\"abc\"", ContentEncodingSupport.toDecodedETag("W/\"abc\""));
+		assertEquals("\"abc\"", ContentEncodingSupport.getETag(acceptEncoding("gzip"), "\"abc\"", "gzip"));
+		assertEquals("W/\"abc\"", ContentEncodingSupport.getETag(new HttpHeaders(), "\"abc\"", "gzip"));
+		assertEquals("\"abc\"", ContentEncodingSupport.getETag(new HttpHeaders(), "\"abc\"", null));
+	}
+
+	private static HttpHeaders acceptEncoding(String value) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.ACCEPT_ENCODING, value);
+		return headers;
+	}
+}
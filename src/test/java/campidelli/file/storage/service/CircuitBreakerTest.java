@@ -0,0 +1,87 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.ResilienceProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircuitBreakerTest {
+
+	private static final Duration OPEN_DURATION = Duration.ofMillis(100);
+
+	private final CircuitBreaker circuitBreaker =
+			new CircuitBreaker(new ResilienceProperties.CircuitBreaker(50, 4, 4, OPEN_DURATION));
+
+	@Test
+	public void testOpensOnceEnoughCallsFailed() {
+		call(true);
+		call(true);
+		call(true);
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+		call(false);
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		call(true);
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.tryAcquire());
+	}
+
+	// Only the last 'slidingWindowSize' calls count.
+	@Test
+	public void testOldFailuresRollOut() {
+		call(true);
+		for (int call = 0; call < 4; call++) {
+			call(false);
+		}
+		call(true);
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		call(true);
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void testSingleProbeAfterTheOpenDuration() throws InterruptedException {
+		open();
+		Thread.sleep(OPEN_DURATION.toMillis() + 20);
+		assertTrue(circuitBreaker.tryAcquire());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.tryAcquire());
+
+		circuitBreaker.onCancel();
+		assertTrue(circuitBreaker.tryAcquire());
+		circuitBreaker.onSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		call(true);
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void testFailedProbeOpensAgain() throws InterruptedException {
+		open();
+		Thread.sleep(OPEN_DURATION.toMillis() + 20);
+		assertTrue(circuitBreaker.tryAcquire());
+		circuitBreaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.tryAcquire());
+	}
+
+	private void open() {
+		for (int call = 0; call < 4; call++) {
+			call(true);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	private void call(boolean failed) {
+		assertTrue(circuitBreaker.tryAcquire());
+		if (failed) {
+			circuitBreaker.onFailure();
+		} else {
+			circuitBreaker.onSuccess();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.CompressionProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressionServiceTest {
+
+	private final CompressionService compressionService =
+			new CompressionService(new CompressionProperties(true, 6, List.of("text/*", "application/json")));
+
+	@Test
+	public void testCompressibleTypes() {
+		assertTrue(compressionService.isCompressible("text/plain;charset=UTF-8"));
+		assertTrue(compressionService.isCompressible("application/json"));
+		assertFalse(compressionService.isCompressible("application/pdf"));
+		assertFalse(compressionService.isCompressible(null));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		byte[] content = text(300 * 1024);
+		Flux<DataBuffer> dataBuffers = Flux.fromIterable(split(content, 10_000))
+				.map(DefaultDataBufferFactory.sharedInstance::wrap);
+
+		byte[] compressed = join(compressionService.compress(dataBuffers));
+		assertTrue(compressed.length < content.length);
+		assertArrayEquals(content, join(compressionService.decompress(Flux.just(ByteBuffer.wrap(compressed)))));
+	}
+
+	// The header, the deflated content and the trailer may each be split over several buffers.
+	@Test
+	public void testDecodesAnySplit() throws IOException {
+		byte[] content = text(100 * 1024);
+		byte[] compressed = gzip(content);
+
+		for (int size : new int[]{1, 3, 9, 11, 4096}) {
+			Flux<ByteBuffer> byteBuffers = Flux.fromIterable(split(compressed, size)).map(ByteBuffer::wrap);
+			assertArrayEquals(content, join(compressionService.decompress(byteBuffers)), "Split in " + size);
+		}
+	}
+
+	@Test
+	public void testRejectsCorruptContent() throws IOException {
+		byte[] compressed = gzip(text(1024));
+		byte[] badCrc = compressed.clone();
+		badCrc[badCrc.length - 8] ^= 1;
+		byte[] truncated = new byte[compressed.length - 4];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+		byte[] badHeader = compressed.clone();
+		badHeader[0] = 0;
+
+		for (byte[] corrupt : List.of(badCrc, truncated, badHeader)) {
+			assertThrows(IllegalStateException.class,
+					() -> join(compressionService.decompress(Flux.just(ByteBuffer.wrap(corrupt)))));
+		}
+	}
+
+	private static byte[] text(int length) {
+		Random random = new Random(42);
+		byte[] content = new byte[length];
+		for (int index = 0; index < length; index++) {
+			content[index] = (byte) ('a' + random.nextInt(8));
+		}
+		return content;
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(output)) {
+			gzipOutputStream.write(content);
+		}
+		return output.toByteArray();
+	}
+
+	private static List<byte[]> split(byte[] content, int size) {
+		List<byte[]> chunks = new ArrayList<>();
+		for (int offset = 0; offset < content.length; offset += size) {
+			byte[] chunk = new byte[Math.min(size, content.length - offset)];
+			System.arraycopy(content, offset, chunk, 0, chunk.length);
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static byte[] join(Flux<ByteBuffer> byteBuffers) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byteBuffers.doOnNext(byteBuffer -> {
+			byte[] bytes = new byte[byteBuffer.remaining()];
+			byteBuffer.get(bytes);
+			output.writeBytes(bytes);
+		}).blockLast();
+		return output.toByteArray();
+	}
+}
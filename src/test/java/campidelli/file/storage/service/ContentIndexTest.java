@@ -0,0 +1,136 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.DeduplicationProperties;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContentIndexTest {
+
+	private static final String HASH = "a1";
+
+	@TempDir
+	private Path directory;
+
+	private ContentIndex contentIndex;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		contentIndex = newContentIndex();
+	}
+
+	@Test
+	public void testFirstReservationUploads() {
+		ContentIndex.Reservation first = contentIndex.reserve(HASH);
+		assertTrue(first.uploadNeeded());
+		assertTrue(first.deletion().isDone());
+		put("sherlock.pdf", first);
+
+		ContentIndex.Reservation second = contentIndex.reserve(HASH);
+		assertFalse(second.uploadNeeded());
+		put("watson.pdf", second);
+
+		assertEquals(".blobs/" + HASH, contentIndex.resolve("sherlock.pdf"));
+		assertEquals("other.pdf", contentIndex.resolve("other.pdf"));
+	}
+
+	@Test
+	public void testBlobIsUnreferencedByTheLastKey() {
+		put("sherlock.pdf", contentIndex.reserve(HASH));
+		put("watson.pdf", contentIndex.reserve(HASH));
+
+		assertFalse(contentIndex.remove("sherlock.pdf").orElseThrow().unreferenced());
+		assertTrue(contentIndex.remove("watson.pdf").orElseThrow().unreferenced());
+		assertTrue(contentIndex.remove("watson.pdf").isEmpty());
+	}
+
+	@Test
+	public void testReplacedEntryIsReleased() {
+		put("sherlock.pdf", contentIndex.reserve(HASH));
+
+		ContentIndex.Release release = contentIndex.put(entry("sherlock.pdf", "b2"), contentIndex.reserve("b2"))
+				.orElseThrow();
+
+		assertEquals(HASH, release.entry().hash());
+		assertTrue(release.unreferenced());
+	}
+
+	@Test
+	public void testReservationKeepsTheBlob() {
+		put("sherlock.pdf", contentIndex.reserve(HASH));
+		ContentIndex.Reservation reservation = contentIndex.reserve(HASH);
+
+		assertFalse(contentIndex.remove("sherlock.pdf").orElseThrow().unreferenced());
+		put("watson.pdf", reservation);
+		assertTrue(contentIndex.remove("watson.pdf").orElseThrow().unreferenced());
+	}
+
+	@Test
+	public void testReservationWaitsForTheDeletion() {
+		put("sherlock.pdf", contentIndex.reserve(HASH));
+		assertTrue(contentIndex.remove("sherlock.pdf").orElseThrow().unreferenced());
+
+		ContentIndex.Reservation reservation = contentIndex.reserve(HASH);
+		assertTrue(reservation.uploadNeeded());
+		assertFalse(reservation.deletion().isDone());
+
+		contentIndex.deleted(HASH);
+		assertTrue(reservation.deletion().isDone());
+	}
+
+	@Test
+	public void testCancelledReservationIsReleasedOnce() {
+		put("sherlock.pdf", contentIndex.reserve(HASH));
+		ContentIndex.Reservation reservation = contentIndex.reserve(HASH);
+		ContentIndex.Reservation other = contentIndex.reserve(HASH);
+
+		contentIndex.cancel(reservation);
+		contentIndex.cancel(reservation);
+		assertFalse(contentIndex.remove("sherlock.pdf").orElseThrow().unreferenced());
+
+		contentIndex.cancel(other);
+		put("watson.pdf", contentIndex.reserve(HASH));
+		assertTrue(contentIndex.remove("watson.pdf").orElseThrow().unreferenced());
+	}
+
+	@Test
+	public void testReferencesSurviveRestarts() throws IOException {
+		put("sherlock.pdf", contentIndex.reserve(HASH));
+		put("watson.pdf", contentIndex.reserve(HASH));
+
+		ContentIndex restarted = newContentIndex();
+
+		assertFalse(restarted.reserve(HASH).uploadNeeded());
+		assertEquals(List.of("sherlock.pdf", "watson.pdf"), restarted.list(new FileListRequest()).stream()
+				.map(FileEntry::getKey)
+				.toList());
+		assertFalse(restarted.remove("sherlock.pdf").orElseThrow().unreferenced());
+	}
+
+	private ContentIndex newContentIndex() throws IOException {
+		ContentIndex index = new ContentIndex(new DeduplicationProperties(true, directory.toString(), ".blobs/"),
+				new ObjectMapper().findAndRegisterModules());
+		index.afterPropertiesSet();
+		return index;
+	}
+
+	private void put(String key, ContentIndex.Reservation reservation) {
+		contentIndex.put(entry(key, reservation.hash()), reservation);
+	}
+
+	private static ContentIndex.Entry entry(String key, String hash) {
+		return new ContentIndex.Entry(key, hash, 42, "application/pdf", Instant.now());
+	}
+}
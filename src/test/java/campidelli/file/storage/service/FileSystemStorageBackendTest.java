@@ -0,0 +1,193 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.StorageBackendProperties;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.dto.FileEntry;
+import campidelli.file.storage.dto.FileListRequest;
+import campidelli.file.storage.dto.FileMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FileSystemStorageBackendTest {
+
+	private static final byte[] CONTENT = "To Sherlock Holmes she is always the woman.".getBytes(StandardCharsets.UTF_8);
+
+	@TempDir
+	private Path directory;
+
+	private FileSystemStorageBackend storageBackend;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		storageBackend = newStorageBackend();
+	}
+
+	@Test
+	public void testPutAndGet() {
+		storageBackend.put("sherlock.txt", "text/plain", null, Map.of("filename", "Sherlock.txt"),
+				(long) CONTENT.length, content(CONTENT, 10)).block();
+
+		FileDownload fileDownload = storageBackend.get("sherlock.txt", null, null).block();
+		assertEquals("Sherlock.txt", fileDownload.getName());
+		assertEquals("text/plain", fileDownload.getType());
+		assertEquals(CONTENT.length, fileDownload.getLength());
+		assertArrayEquals(CONTENT, join(fileDownload.getContent()));
+
+		FileMetadata metadata = storageBackend.head("sherlock.txt").block();
+		assertEquals(fileDownload.getETag(), metadata.getETag());
+		assertEquals(CONTENT.length, metadata.getLength());
+	}
+
+	@Test
+	public void testGetRange() {
+		storageBackend.put("sherlock.txt", "text/plain", null, Map.of(), null, content(CONTENT, 7)).block();
+
+		FileDownload fileDownload = storageBackend.get("sherlock.txt", "bytes=3-10", null).block();
+		assertEquals(8, fileDownload.getLength());
+		assertEquals("bytes 3-10/" + CONTENT.length, fileDownload.getContentRange());
+		assertEquals(3, fileDownload.getFileOffset());
+		assertEquals("Sherlock", new String(join(fileDownload.getContent()), StandardCharsets.UTF_8));
+
+		FileDownload suffix = storageBackend.get("sherlock.txt", "bytes=-6", null).block();
+		assertEquals("woman.", new String(join(suffix.getContent()), StandardCharsets.UTF_8));
+
+		assertStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+				() -> storageBackend.get("sherlock.txt", "bytes=1000-", null).block());
+	}
+
+	@Test
+	public void testNotModifiedAndNotFound() {
+		storageBackend.put("sherlock.txt", "text/plain", null, Map.of(), null, content(CONTENT, 64)).block();
+		String eTag = storageBackend.head("sherlock.txt").block().getETag();
+
+		assertStatus(HttpStatus.NOT_MODIFIED, () -> storageBackend.get("sherlock.txt", null, eTag).block());
+		assertStatus(HttpStatus.NOT_FOUND, () -> storageBackend.get("watson.txt", null, null).block());
+		assertStatus(HttpStatus.BAD_REQUEST, () -> storageBackend.put("watson.txt", "text/plain", null, Map.of(),
+				CONTENT.length + 1L, content(CONTENT, 64)).block());
+	}
+
+	@Test
+	public void testReplaceDeleteAndList() throws IOException {
+		storageBackend.put("b/watson.txt", "text/plain", null, Map.of(), null, content(CONTENT, 64)).block();
+		storageBackend.put("a.txt", "text/plain", null, Map.of(), null, content(CONTENT, 64)).block();
+		storageBackend.put("a.txt", "text/plain", null, Map.of(), null, content("replaced".getBytes(), 64)).block();
+		storageBackend.put("c.txt", "text/plain", null, Map.of(), null, content(CONTENT, 64)).block();
+		storageBackend.delete("c.txt").block();
+		storageBackend.delete("missing.txt").block();
+
+		FileListRequest fileListRequest = FileListRequest.builder().delimiter("/").build();
+		List<String> keys = storageBackend.list(fileListRequest).map(FileEntry::getKey).collectList().block();
+		assertEquals(List.of("a.txt", "b/"), keys);
+
+		FileSystemStorageBackend restarted = newStorageBackend();
+		assertArrayEquals("replaced".getBytes(), join(restarted.get("a.txt", null, null).block().getContent()));
+		assertEquals(List.of("a.txt", "b/watson.txt"),
+				restarted.list(FileListRequest.builder().build()).map(FileEntry::getKey).collectList().block());
+	}
+
+	// The data file of a replaced version is kept for the downloads that are reading it.
+	@Test
+	public void testReplacedVersionIsKeptWhileRead() throws IOException {
+		byte[] large = new byte[64 * 1024];
+		storageBackend.put("sherlock.txt", "text/plain", null, Map.of(), null, content(large, 8 * 1024)).block();
+		FileDownload zeroCopy = storageBackend.get("sherlock.txt", null, null).block();
+		FileDownload mapped = storageBackend.get("sherlock.txt", "bytes=0-", null).block();
+		FileDownload unread = storageBackend.get("sherlock.txt", null, null).block();
+		Runnable release = zeroCopy.getLease().get();
+		Iterator<ByteBuffer> range = mapped.getContent().toIterable(1).iterator();
+		assertTrue(range.hasNext());
+
+		storageBackend.put("sherlock.txt", "text/plain", null, Map.of(), null, content("replaced".getBytes(), 64)).block();
+		assertTrue(Files.exists(zeroCopy.getFile()));
+
+		release.run();
+		assertTrue(Files.exists(zeroCopy.getFile()));
+		while (range.hasNext()) {
+			range.next();
+		}
+		assertFalse(Files.exists(zeroCopy.getFile()));
+		assertThrows(IllegalStateException.class, () -> join(unread.getContent()));
+
+		storageBackend.delete("sherlock.txt").block();
+		assertEquals(0, countDataFiles());
+	}
+
+	@Test
+	public void testMultipartUpload() {
+		String uploadId = storageBackend.createMultipartUpload("sherlock.txt", "text/plain", "gzip", Map.of()).block();
+		StorageBackend.Part second = storageBackend.uploadPart("sherlock.txt", uploadId, 2, CONTENT.length - 20,
+				content(CONTENT, 20, CONTENT.length, 8)).block();
+		StorageBackend.Part first = storageBackend.uploadPart("sherlock.txt", uploadId, 1, 20,
+				content(CONTENT, 0, 20, 8)).block();
+		assertStatus(HttpStatus.NOT_FOUND, () -> storageBackend.head("sherlock.txt").block());
+
+		storageBackend.completeMultipartUpload("sherlock.txt", uploadId, List.of(second, first)).block();
+		FileDownload fileDownload = storageBackend.get("sherlock.txt", null, null).block();
+		assertArrayEquals(CONTENT, join(fileDownload.getContent()));
+		assertEquals("gzip", fileDownload.getEncoding());
+		assertTrue(fileDownload.getETag().endsWith("-2\""), fileDownload.getETag());
+
+		assertStatus(HttpStatus.NOT_FOUND, () -> storageBackend.uploadPart("sherlock.txt", uploadId, 3, 1,
+				content(CONTENT, 0, 1, 1)).block());
+	}
+
+	private long countDataFiles() throws IOException {
+		try (Stream<Path> files = Files.list(directory.resolve("objects"))) {
+			return files.filter(file -> file.toString().endsWith(".bin")).count();
+		}
+	}
+
+	private FileSystemStorageBackend newStorageBackend() throws IOException {
+		FileSystemStorageBackend backend = new FileSystemStorageBackend(new StorageBackendProperties(
+				StorageBackendProperties.Type.FILESYSTEM, directory.toString(), 16), new ObjectMapper().findAndRegisterModules());
+		backend.afterPropertiesSet();
+		return backend;
+	}
+
+	private static void assertStatus(HttpStatus status, Runnable call) {
+		ResponseStatusException e = assertThrows(ResponseStatusException.class, call::run);
+		assertEquals(status, e.getStatusCode());
+	}
+
+	private static Flux<ByteBuffer> content(byte[] content, int chunkSize) {
+		return content(content, 0, content.length, chunkSize);
+	}
+
+	private static Flux<ByteBuffer> content(byte[] content, int start, int end, int chunkSize) {
+		return Flux.range(0, (end - start + chunkSize - 1) / chunkSize)
+				.map(chunk -> ByteBuffer.wrap(content, start + chunk * chunkSize,
+						Math.min(chunkSize, end - start - chunk * chunkSize)));
+	}
+
+	private static byte[] join(Flux<ByteBuffer> byteBuffers) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byteBuffers.doOnNext(byteBuffer -> {
+			byte[] bytes = new byte[byteBuffer.remaining()];
+			byteBuffer.get(bytes);
+			output.writeBytes(bytes);
+		}).blockLast();
+		return output.toByteArray();
+	}
+}
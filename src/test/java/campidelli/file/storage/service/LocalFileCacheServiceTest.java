@@ -0,0 +1,134 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.FileCacheProperties;
+import campidelli.file.storage.dto.FileDownload;
+import campidelli.file.storage.service.LocalFileCacheService.CachedFile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalFileCacheServiceTest {
+
+	private static final String KEY = "sherlock.txt";
+	private static final String CONTENT = "The Adventure of the Empty House";
+
+	@TempDir
+	private Path directory;
+
+	private LocalFileCacheService fileCache;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		fileCache = new LocalFileCacheService(new FileCacheProperties(true, directory.toString(), 1, 1,
+				new FileCacheProperties.Metadata(Duration.ofMinutes(1), 100)));
+		fileCache.afterPropertiesSet();
+	}
+
+	@Test
+	public void testStartupOnlyDeletesCacheFiles() throws IOException {
+		Path other = Files.writeString(directory.resolve("other.bin"), CONTENT);
+		Path stale = Files.writeString(directory.resolve("objects").resolve("stale.bin"), CONTENT);
+		Path kept = Files.writeString(directory.resolve("objects").resolve("kept.txt"), CONTENT);
+
+		fileCache.afterPropertiesSet();
+
+		assertTrue(Files.exists(other));
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(kept));
+	}
+
+	@Test
+	public void testFillIsFresh() {
+		CachedFile cachedFile = fill();
+
+		assertEquals("\"1\"", cachedFile.eTag());
+		assertEquals(CONTENT.length(), cachedFile.length());
+		assertTrue(fileCache.isFresh(cachedFile));
+		assertEquals(CONTENT, read(fileCache.toFileDownload(cachedFile, null)));
+		assertEquals("Empty", read(fileCache.toFileDownload(cachedFile, "bytes=21-25")));
+	}
+
+	@Test
+	public void testOtherETagEvicts() {
+		CachedFile cachedFile = fill();
+
+		assertTrue(fileCache.get(KEY, "\"2\"").isEmpty());
+		assertTrue(fileCache.get(KEY).isEmpty());
+		assertFalse(Files.exists(cachedFile.path()));
+	}
+
+	@Test
+	public void testEvictWaitsForReaders() {
+		CachedFile cachedFile = fill();
+		FileDownload zeroCopy = fileCache.toFileDownload(cachedFile, null);
+		FileDownload streamed = fileCache.toFileDownload(cachedFile, null);
+		Runnable release = zeroCopy.getLease().get();
+
+		fileCache.evict(KEY);
+		assertTrue(Files.exists(cachedFile.path()));
+
+		assertEquals(CONTENT, read(streamed));
+		assertTrue(Files.exists(cachedFile.path()));
+
+		release.run();
+		release.run();
+		assertFalse(Files.exists(cachedFile.path()));
+	}
+
+	// The file is only held by downloads that are being read, one that never is doesn't keep it.
+	@Test
+	public void testUnreadDownloadDoesNotHoldTheFile() {
+		CachedFile cachedFile = fill();
+		FileDownload unread = fileCache.toFileDownload(cachedFile, null);
+
+		fileCache.evict(KEY);
+		assertFalse(Files.exists(cachedFile.path()));
+		assertThrows(IllegalStateException.class, () -> unread.getLease().get());
+		assertThrows(IllegalStateException.class, () -> read(unread));
+	}
+
+	@Test
+	public void testValidatedKeepsTheCurrentVersion() {
+		CachedFile cachedFile = fill();
+		CachedFile stale = new CachedFile(KEY, "\"0\"", cachedFile.path(), cachedFile.length(), cachedFile.type(),
+				cachedFile.name(), cachedFile.lastModified(), null, null, Instant.EPOCH);
+
+		assertFalse(fileCache.isFresh(stale));
+		fileCache.validated(stale);
+		assertEquals("\"1\"", fileCache.get(KEY).orElseThrow().eTag());
+	}
+
+	private CachedFile fill() {
+		FileDownload fileDownload = FileDownload.builder()
+				.name(KEY)
+				.type("text/plain")
+				.length(CONTENT.length())
+				.eTag("\"1\"")
+				.lastModified(Instant.now())
+				.content(Flux.just(ByteBuffer.wrap(CONTENT.getBytes(StandardCharsets.UTF_8))))
+				.build();
+		fileCache.fill(KEY, fileDownload).blockLast();
+		return fileCache.get(KEY).orElseThrow();
+	}
+
+	private static String read(FileDownload fileDownload) {
+		StringBuilder content = new StringBuilder();
+		fileDownload.getContent().toStream()
+				.forEach(byteBuffer -> content.append(StandardCharsets.UTF_8.decode(byteBuffer)));
+		return content.toString();
+	}
+}
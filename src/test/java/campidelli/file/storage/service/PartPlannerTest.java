@@ -0,0 +1,67 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PartPlannerTest {
+
+	private static final long MB = 1024 * 1024;
+	private static final long GB = 1024 * MB;
+
+	private final PartPlanner partPlanner = new PartPlanner(new S3Properties("ap-southeast-2", null, "bucket", false,
+			false, 50, null, 8, 4, null, new S3Properties.Multipart(20.0, 8, 4, 32, 64, 4, 1000)));
+
+	@Test
+	public void testPartsOfTheMinimumSize() {
+		PartPlanner.Plan plan = partPlanner.plan(20 * MB + 1);
+		assertEquals(8 * MB, plan.partSize());
+		assertEquals(3, plan.partCount());
+		assertEquals(16 * MB, plan.offset(3));
+		assertEquals(4 * MB + 1, plan.length(3));
+
+		PartPlanner.Plan small = partPlanner.plan(1000);
+		assertEquals(1, small.partCount());
+		assertEquals(1000, small.length(1));
+		assertEquals(0, partPlanner.plan(0).partCount());
+	}
+
+	// Objects that would need more parts than S3 allows get bigger parts, in whole MBs.
+	@Test
+	public void testPartsOfBigObjects() {
+		for (long objectSize : new long[]{80 * GB, 100 * GB + 7, 5 * 1024 * GB}) {
+			PartPlanner.Plan plan = partPlanner.plan(objectSize);
+			assertTrue(plan.partCount() <= PartPlanner.MAXIMUM_PARTS, "Parts " + plan.partCount());
+			assertEquals(0, plan.partSize() % MB);
+			long total = 0;
+			for (int partNumber = 1; partNumber <= plan.partCount(); partNumber++) {
+				assertEquals(total, plan.offset(partNumber));
+				total += plan.length(partNumber);
+			}
+			assertEquals(objectSize, total);
+		}
+		assertEquals(11 * MB, partPlanner.plan(100 * GB + 7).partSize());
+	}
+
+	// 20 Gbps need 28 connections of 90 MB/s, within the 64 allowed and never fewer than 'readAheadParts' + 1.
+	@Test
+	public void testConcurrency() {
+		assertEquals(28, partPlanner.concurrency(1000));
+		assertEquals(3, partPlanner.concurrency(3));
+
+		for (int part = 0; part < 50; part++) {
+			partPlanner.partStarted();
+		}
+		assertEquals(14, partPlanner.concurrency(1000));
+		for (int part = 0; part < 20; part++) {
+			partPlanner.partStarted();
+		}
+		assertEquals(5, partPlanner.concurrency(1000));
+		for (int part = 0; part < 70; part++) {
+			partPlanner.partFinished();
+		}
+		assertEquals(28, partPlanner.concurrency(1000));
+	}
+}
@@ -0,0 +1,102 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.FileCacheProperties;
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.config.ShardingProperties;
+import campidelli.file.storage.dto.PreSignedURL;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PreSignedURLCacheTest {
+
+	private static final String BUCKET = "bucket";
+	private static final String KEY = "sherlock.pdf";
+	private static final String ETAG = "\"a1\"";
+	private static final List<PreSignedURL> URLS = List.of(PreSignedURL.builder().partNumber(1).partCount(1).build());
+
+	@TempDir
+	private Path directory;
+
+	private FileMetadataCache metadataCache;
+
+	@BeforeEach
+	public void setup() {
+		metadataCache = new FileMetadataCache(fileCacheProperties(Duration.ofMinutes(1)));
+	}
+
+	@Test
+	public void testPlanIsServedUntilHalfOfItsValidity() throws InterruptedException {
+		PreSignedURLCache cache = newCache(Duration.ofMillis(400), Duration.ofMinutes(1), 10);
+		cache.put(BUCKET, KEY, ETAG, URLS, Instant.now());
+		assertEquals(Optional.of(URLS), cache.get(BUCKET, KEY));
+		assertEquals(Optional.of(URLS), cache.get(BUCKET, KEY, ETAG));
+
+		Thread.sleep(250);
+		assertTrue(cache.get(BUCKET, KEY).isEmpty());
+		assertTrue(cache.get(BUCKET, KEY, ETAG).isEmpty());
+	}
+
+	@Test
+	public void testURLsSignedEarlierExpireEarlier() {
+		PreSignedURLCache cache = newCache(Duration.ofMinutes(10), Duration.ofMinutes(1), 10);
+		cache.put(BUCKET, KEY, ETAG, URLS, Instant.now().minus(Duration.ofMinutes(6)));
+		assertTrue(cache.get(BUCKET, KEY).isEmpty());
+	}
+
+	@Test
+	public void testPlanIsRevalidatedWithTheETag() throws InterruptedException {
+		PreSignedURLCache cache = newCache(Duration.ofMinutes(10), Duration.ofMillis(100), 10);
+		cache.put(BUCKET, KEY, ETAG, URLS, Instant.now());
+
+		Thread.sleep(150);
+		assertTrue(cache.get(BUCKET, KEY).isEmpty());
+		assertTrue(cache.get(BUCKET, KEY, "\"b2\"").isEmpty());
+		assertEquals(Optional.of(URLS), cache.get(BUCKET, KEY, ETAG));
+		assertEquals(Optional.of(URLS), cache.get(BUCKET, KEY));
+	}
+
+	@Test
+	public void testPlanIsEvictedWithTheMetadata() {
+		PreSignedURLCache cache = newCache(Duration.ofMinutes(10), Duration.ofMinutes(1), 10);
+		cache.put(BUCKET, KEY, ETAG, URLS, Instant.now());
+		metadataCache.evict(KEY);
+		assertTrue(cache.get(BUCKET, KEY).isEmpty());
+	}
+
+	@Test
+	public void testFullCacheOnlyMakesRoomForExpiredPlans() throws InterruptedException {
+		PreSignedURLCache cache = newCache(Duration.ofMillis(200), Duration.ofMinutes(1), 1);
+		cache.put(BUCKET, KEY, ETAG, URLS, Instant.now());
+		cache.put(BUCKET, "watson.pdf", ETAG, URLS, Instant.now());
+		assertTrue(cache.get(BUCKET, "watson.pdf").isEmpty());
+
+		Thread.sleep(150);
+		cache.put(BUCKET, "watson.pdf", ETAG, URLS, Instant.now());
+		assertEquals(Optional.of(URLS), cache.get(BUCKET, "watson.pdf"));
+	}
+
+	private PreSignedURLCache newCache(Duration preSignedURLDuration, Duration metadataTimeToLive, int maximumCachedPlans) {
+		S3Properties s3Properties = new S3Properties("ap-southeast-2", null, BUCKET, false, false, 50,
+				preSignedURLDuration, 8, 4, null,
+				new S3Properties.Multipart(20.0, 8, 4, 32, 64, 4, maximumCachedPlans));
+		ShardingProperties shardingProperties = new ShardingProperties(List.of(), 128, 16, directory.toString());
+		ShardRouter shardRouter = new ShardRouter(shardingProperties, s3Properties,
+				new ShardRingStore(shardingProperties, new ObjectMapper()));
+		return new PreSignedURLCache(s3Properties, fileCacheProperties(metadataTimeToLive), metadataCache, shardRouter);
+	}
+
+	private static FileCacheProperties fileCacheProperties(Duration metadataTimeToLive) {
+		return new FileCacheProperties(true, null, 1024, 100, new FileCacheProperties.Metadata(metadataTimeToLive, 1000));
+	}
+}
@@ -0,0 +1,100 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.ResilienceProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ResilientFetcherTest {
+
+	private static final int CHUNK_SIZE = 10;
+	private static final int NUMBER_OF_CHUNKS = 6;
+
+	private final List<Long> offsets = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void testRetriesTransientErrors() {
+		ResilientFetcher resilientFetcher = newResilientFetcher(3, 10);
+		AtomicInteger attempts = new AtomicInteger();
+		String result = resilientFetcher.fetch("head", () -> attempts.incrementAndGet() < 3
+				? Mono.error(new IOException("Connection reset"))
+				: Mono.just("ok")).block();
+		assertEquals("ok", result);
+		assertEquals(3, attempts.get());
+
+		AtomicInteger notRetried = new AtomicInteger();
+		assertThrows(IllegalArgumentException.class, () -> resilientFetcher.fetch("head", () -> {
+			notRetried.incrementAndGet();
+			return Mono.error(new IllegalArgumentException());
+		}).block());
+		assertEquals(1, notRetried.get());
+	}
+
+	@Test
+	public void testContentResumesFromTheByteReached() {
+		ResilientFetcher resilientFetcher = newResilientFetcher(3, 10);
+		AtomicInteger attempts = new AtomicInteger();
+		List<Long> chunks = resilientFetcher.fetchMany("get", offset -> attempts.incrementAndGet() == 1
+						? content(offset).take(2).concatWith(Flux.error(new IOException("Connection reset")))
+						: content(offset), ignored -> CHUNK_SIZE)
+				.collectList()
+				.block();
+		assertEquals(List.of(0L, 10L, 20L, 30L, 40L, 50L), chunks);
+		assertEquals(List.of(0L, 20L), offsets);
+	}
+
+	// Every attempt that makes progress starts the attempts over, so a stream that keeps breaking still ends.
+	@Test
+	public void testProgressStartsTheAttemptsOver() {
+		ResilientFetcher resilientFetcher = newResilientFetcher(2, 10);
+		Flux<Long> first = content(0).take(1).concatWith(Flux.error(new IOException("Connection reset")));
+		List<Long> chunks = resilientFetcher.resume("get", first, ignored -> CHUNK_SIZE, offset -> offset
+						< (NUMBER_OF_CHUNKS - 1) * CHUNK_SIZE
+						? content(offset).take(1).concatWith(Flux.error(new IOException("Connection reset")))
+						: content(offset))
+				.collectList()
+				.block();
+		assertEquals(List.of(0L, 10L, 20L, 30L, 40L, 50L), chunks);
+		assertEquals(List.of(0L, 10L, 20L, 30L, 40L, 50L), offsets);
+	}
+
+	@Test
+	public void testOpenCircuitFailsRightAway() {
+		ResilientFetcher resilientFetcher = newResilientFetcher(1, 2);
+		for (int call = 0; call < 2; call++) {
+			assertThrows(IllegalStateException.class, () -> resilientFetcher.fetch("head",
+					() -> Mono.error(new IllegalStateException(new IOException("Connection reset")))).block());
+		}
+
+		AtomicInteger attempts = new AtomicInteger();
+		ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> resilientFetcher.fetch("head",
+				() -> Mono.fromCallable(attempts::incrementAndGet)).block());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+		assertEquals(0, attempts.get());
+	}
+
+	private Flux<Long> content(long offset) {
+		offsets.add(offset);
+		return Flux.range((int) (offset / CHUNK_SIZE), NUMBER_OF_CHUNKS - (int) (offset / CHUNK_SIZE))
+				.map(chunk -> (long) chunk * CHUNK_SIZE);
+	}
+
+	private static ResilientFetcher newResilientFetcher(int maximumAttempts, int minimumCalls) {
+		ResilienceProperties properties = new ResilienceProperties(true, maximumAttempts, Duration.ofMillis(1),
+				Duration.ofMillis(5), 0.5, new ResilienceProperties.CircuitBreaker(50, minimumCalls, minimumCalls,
+				Duration.ofMinutes(1)));
+		return new ResilientFetcher(properties, new TransferMetrics(new SimpleMeterRegistry()));
+	}
+}
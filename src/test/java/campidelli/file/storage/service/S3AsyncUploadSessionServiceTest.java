@@ -0,0 +1,201 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.UploadProperties;
+import campidelli.file.storage.config.UploadSessionProperties;
+import campidelli.file.storage.dto.UploadSession;
+import campidelli.file.storage.dto.UploadSessionPart;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class S3AsyncUploadSessionServiceTest {
+
+	private static final int MB = 1024 * 1024;
+
+	@TempDir
+	private Path directory;
+
+	private StorageBackend storageBackend;
+	private UploadSessionStore sessionStore;
+	private S3AsyncUploadSessionService uploadSessionService;
+	private final List<byte[]> uploadedParts = new ArrayList<>();
+
+	@BeforeEach
+	public void setup() throws IOException {
+		storageBackend = mock(StorageBackend.class);
+		when(storageBackend.createMultipartUpload(anyString(), any(), any(), any())).thenReturn(Mono.just("upload-id"));
+		when(storageBackend.uploadPart(anyString(), anyString(), anyInt(), anyLong(), any())).thenAnswer(invocation -> {
+			int partNumber = invocation.getArgument(2);
+			Flux<ByteBuffer> content = invocation.getArgument(4);
+			return content
+					.reduce(new ByteArrayOutputStream(), (part, byteBuffer) -> {
+						byte[] bytes = new byte[byteBuffer.remaining()];
+						byteBuffer.get(bytes);
+						part.writeBytes(bytes);
+						return part;
+					})
+					.map(part -> {
+						uploadedParts.add(part.toByteArray());
+						return new StorageBackend.Part(partNumber, "\"" + partNumber + "\"");
+					});
+		});
+		when(storageBackend.completeMultipartUpload(anyString(), anyString(), any())).thenReturn(Mono.empty());
+
+		UploadSessionProperties properties = new UploadSessionProperties(directory.toString(), Duration.ofHours(1));
+		sessionStore = new UploadSessionStore(properties, new ObjectMapper().findAndRegisterModules());
+		sessionStore.afterPropertiesSet();
+		uploadSessionService = new S3AsyncUploadSessionService(storageBackend, sessionStore, properties,
+				mock(FileMetadataCache.class), mock(LocalFileCacheService.class),
+				new UploadPipeline(new UploadProperties(1024, 1024, 64)), new TransferRegistry());
+	}
+
+	@Test
+	public void testSmallChunksAreCoalesced() {
+		UploadSession session = uploadSessionService.createSession("sherlock.pdf", "application/pdf").block();
+		byte[] content = bytes(7 * MB);
+
+		long offset = 0;
+		for (int chunk = 0; chunk < 7; chunk++) {
+			session = appendChunk(session.getId(), content, offset, MB);
+			offset += MB;
+			assertEquals(offset, session.getOffset());
+		}
+		assertEquals(1, session.getParts().size());
+		assertEquals(5 * MB, session.getParts().get(0).getLength());
+		assertEquals(2 * MB, session.getPendingLength());
+
+		uploadSessionService.completeSession(session.getId()).block();
+
+		assertEquals(2, uploadedParts.size());
+		assertArrayEquals(content, concat(uploadedParts));
+		verify(storageBackend).completeMultipartUpload(eq("sherlock.pdf"), eq("upload-id"),
+				eq(List.of(new StorageBackend.Part(1, "\"1\""), new StorageBackend.Part(2, "\"2\""))));
+		assertTrue(sessionStore.find(session.getId()).isEmpty());
+		assertFalse(Files.exists(sessionStore.getPendingFile(session.getId())));
+	}
+
+	@Test
+	public void testLargeChunksAreParts() {
+		UploadSession session = uploadSessionService.createSession("sherlock.pdf", "application/pdf").block();
+		byte[] content = bytes(11 * MB);
+
+		session = appendChunk(session.getId(), content, 0, 6 * MB);
+		session = appendChunk(session.getId(), content, 6 * MB, 5 * MB);
+
+		assertEquals(List.of(6L * MB, 5L * MB), session.getParts().stream().map(UploadSessionPart::getLength).toList());
+		assertEquals(0, session.getPendingLength());
+		assertArrayEquals(content, concat(uploadedParts));
+	}
+
+	@Test
+	public void testShortChunkIsWrittenAgain() {
+		UploadSession session = uploadSessionService.createSession("sherlock.pdf", "application/pdf").block();
+		byte[] content = bytes(2 * MB);
+		String id = session.getId();
+
+		assertThrows(ResponseStatusException.class, () -> uploadSessionService.appendChunk(id, 0, MB,
+				Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(content, 0, MB / 2)))).block());
+		assertEquals(0, sessionStore.find(id).orElseThrow().getOffset());
+
+		session = appendChunk(id, content, 0, MB);
+		session = appendChunk(id, content, MB, MB);
+		uploadSessionService.completeSession(id).block();
+
+		assertEquals(2 * MB, session.getOffset());
+		assertEquals(1, uploadedParts.size());
+		assertArrayEquals(content, uploadedParts.get(0));
+	}
+
+	@Test
+	public void testExpiryWaitsForTheChunkBeingReceived() {
+		String id = uploadSessionService.createSession("sherlock.pdf", "application/pdf").block().getId();
+		expire(id);
+		Sinks.Many<DataBuffer> chunk = Sinks.many().unicast().onBackpressureBuffer();
+		CompletableFuture<UploadSession> appended = uploadSessionService.appendChunk(id, 0, MB, chunk.asFlux()).toFuture();
+
+		uploadSessionService.abortExpiredSessions();
+		verify(storageBackend, never()).abortMultipartUpload(anyString(), anyString());
+
+		chunk.tryEmitNext(DefaultDataBufferFactory.sharedInstance.wrap(bytes(MB)));
+		chunk.tryEmitComplete();
+		assertEquals(MB, appended.join().getOffset());
+		// The chunk renewed the session.
+		uploadSessionService.abortExpiredSessions();
+		verify(storageBackend, never()).abortMultipartUpload(anyString(), anyString());
+
+		// A chunk that arrives while the session is aborted is turned away.
+		List<Throwable> errors = new ArrayList<>();
+		when(storageBackend.abortMultipartUpload(anyString(), anyString())).thenAnswer(invocation -> {
+			uploadSessionService.appendChunk(id, MB, MB, Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(bytes(MB))))
+					.subscribe(null, errors::add);
+			return Mono.empty();
+		});
+		expire(id);
+		uploadSessionService.abortExpiredSessions();
+		verify(storageBackend).abortMultipartUpload("sherlock.pdf", "upload-id");
+		assertTrue(sessionStore.find(id).isEmpty());
+		assertEquals(1, errors.size());
+		assertEquals(HttpStatus.CONFLICT, ((ResponseStatusException) errors.get(0)).getStatusCode());
+	}
+
+	private UploadSession appendChunk(String id, byte[] content, long offset, int length) {
+		Flux<DataBuffer> chunk = Flux.range(0, length / (64 * 1024))
+				.map(index -> DefaultDataBufferFactory.sharedInstance.wrap(
+						ByteBuffer.wrap(content, (int) offset + index * 64 * 1024, 64 * 1024).slice()));
+		return uploadSessionService.appendChunk(id, offset, length, chunk).block();
+	}
+
+	private void expire(String id) {
+		UploadSession session = sessionStore.find(id).orElseThrow();
+		session.setExpiresAt(Instant.now().minusSeconds(1));
+		sessionStore.save(session);
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31 + i / 251);
+		}
+		return bytes;
+	}
+
+	private static byte[] concat(List<byte[]> parts) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		parts.forEach(content::writeBytes);
+		return content.toByteArray();
+	}
+}
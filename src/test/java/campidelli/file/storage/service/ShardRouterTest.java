@@ -0,0 +1,105 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.config.ShardingProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShardRouterTest {
+
+	private static final List<String> SHARDS = List.of("bucket-a", "bucket-b", "/00/");
+	private static final List<String> KEYS = IntStream.range(0, 1000)
+			.mapToObj(index -> "file-" + index + ".pdf")
+			.toList();
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	public void testPlacementIsStable() {
+		ShardRouter shardRouter = newShardRouter(SHARDS);
+		ShardRouter restarted = newShardRouter(SHARDS);
+
+		for (String key : KEYS) {
+			assertEquals(shardRouter.locate(key), restarted.locate(key));
+		}
+		assertEquals(new ShardRouter.Shard("default-bucket", "00/"), shardRouter.parse(List.of("/00/")).get(0));
+		assertEquals(3, KEYS.stream().map(shardRouter::locate).distinct().count());
+	}
+
+	@Test
+	public void testAddingAShardOnlyMovesItsKeys() {
+		ShardRouter shardRouter = newShardRouter(SHARDS);
+		List<ShardRouter.Shard> before = KEYS.stream().map(shardRouter::locate).toList();
+		ShardRouter.Shard added = new ShardRouter.Shard("bucket-c", "");
+		shardRouter.startRebalance(shardRouter.parse(List.of("bucket-a", "bucket-b", "/00/", "bucket-c")));
+
+		int moved = 0;
+		for (int index = 0; index < KEYS.size(); index++) {
+			String key = KEYS.get(index);
+			ShardRouter.Shard shard = shardRouter.locate(key);
+			if (shard.equals(before.get(index))) {
+				assertTrue(shardRouter.locatePrevious(key).isEmpty());
+			} else {
+				assertEquals(added, shard);
+				assertEquals(Optional.of(before.get(index)), shardRouter.locatePrevious(key));
+				moved++;
+			}
+		}
+		assertTrue(moved > 150 && moved < 350, "Moved " + moved + " keys.");
+	}
+
+	@Test
+	public void testRingsSurviveARestart() {
+		ShardRouter shardRouter = newShardRouter(SHARDS);
+		shardRouter.startRebalance(shardRouter.parse(List.of("bucket-a", "bucket-c")));
+
+		ShardRouter restarted = newShardRouter(SHARDS);
+		assertTrue(restarted.isRebalancing());
+		assertEquals(shardRouter.getShards(), restarted.getShards());
+		assertEquals(shardRouter.getPreviousShards(), restarted.getPreviousShards());
+		for (String key : KEYS) {
+			assertEquals(shardRouter.locatePrevious(key), restarted.locatePrevious(key));
+		}
+
+		restarted.finishRebalance();
+		ShardRouter finished = newShardRouter(SHARDS);
+		assertFalse(finished.isRebalancing());
+		assertEquals(shardRouter.getShards(), finished.getShards());
+	}
+
+	@Test
+	public void testConfiguredShardsMustMatchARing() {
+		ShardRouter shardRouter = newShardRouter(SHARDS);
+		List<ShardRouter.Shard> next = shardRouter.parse(List.of("bucket-a", "bucket-c"));
+		List<ShardRouter.Shard> other = shardRouter.parse(List.of("bucket-d"));
+		assertTrue(shardRouter.isInSync(next));
+		shardRouter.startRebalance(next);
+		assertTrue(shardRouter.isInSync(next));
+		shardRouter.finishRebalance();
+
+		ShardRouter restarted = newShardRouter(SHARDS);
+		assertNotEquals(restarted.parse(SHARDS), restarted.getShards());
+		assertFalse(restarted.isInSync(other));
+		assertTrue(restarted.isInSync(restarted.parse(SHARDS)));
+		assertTrue(newShardRouter(List.of("bucket-a", "bucket-c")).isInSync(other));
+	}
+
+	private ShardRouter newShardRouter(List<String> shards) {
+		ShardingProperties properties = new ShardingProperties(shards, 128, 16, directory.toString());
+		S3Properties s3Properties = new S3Properties("ap-southeast-2", null, "default-bucket", false, false, 50,
+				null, 8, 4, null, null);
+		return new ShardRouter(properties, s3Properties, new ShardRingStore(properties, new ObjectMapper()));
+	}
+}
@@ -0,0 +1,133 @@
+package campidelli.file.storage.service;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedDownloadTest {
+
+	private static final int CHUNK_SIZE = 10;
+	private static final int NUMBER_OF_CHUNKS = 10;
+	private static final byte[] CONTENT = content();
+
+	private final AtomicInteger subscriptions = new AtomicInteger();
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final List<Long> fallbackOffsets = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void testReadersShareOneDownload() {
+		SharedDownload sharedDownload = newSharedDownload(1000);
+		Reader first = new Reader();
+		sharedDownload.content().subscribe(first);
+		Reader second = new Reader();
+		sharedDownload.content().subscribe(second);
+
+		first.request(Long.MAX_VALUE);
+		second.request(Long.MAX_VALUE);
+		assertArrayEquals(CONTENT, first.bytes.toByteArray());
+		assertArrayEquals(CONTENT, second.bytes.toByteArray());
+		assertEquals(1, subscriptions.get());
+		assertTrue(fallbackOffsets.isEmpty());
+		assertTrue(closed.get());
+	}
+
+	// The slow reader gets the first chunk from the shared download, and the rest from a download of its own.
+	@Test
+	public void testReaderFallingBehindGoesOnFromItsOffset() {
+		SharedDownload sharedDownload = newSharedDownload(3 * CHUNK_SIZE);
+		Reader slow = new Reader();
+		sharedDownload.content().subscribe(slow);
+		slow.request(1);
+		Reader fast = new Reader();
+		sharedDownload.content().subscribe(fast);
+		fast.request(Long.MAX_VALUE);
+		assertArrayEquals(CONTENT, fast.bytes.toByteArray());
+
+		slow.request(Long.MAX_VALUE);
+		assertArrayEquals(CONTENT, slow.bytes.toByteArray());
+		assertEquals(List.of((long) CHUNK_SIZE), fallbackOffsets);
+		assertEquals(1, subscriptions.get());
+	}
+
+	@Test
+	public void testLateReaderDownloadsFromTheStart() {
+		SharedDownload sharedDownload = newSharedDownload(2 * CHUNK_SIZE);
+		Reader first = new Reader();
+		sharedDownload.content().subscribe(first);
+		first.request(5);
+		assertFalse(sharedDownload.isJoinable());
+
+		Reader late = new Reader();
+		sharedDownload.content().subscribe(late);
+		late.request(Long.MAX_VALUE);
+		assertArrayEquals(CONTENT, late.bytes.toByteArray());
+		assertEquals(List.of(0L), fallbackOffsets);
+	}
+
+	@Test
+	public void testUpstreamIsCancelledWithTheLastReader() {
+		SharedDownload sharedDownload = newSharedDownload(1000);
+		Reader first = new Reader();
+		sharedDownload.content().subscribe(first);
+		Reader second = new Reader();
+		sharedDownload.content().subscribe(second);
+		first.request(2);
+
+		first.cancel();
+		assertFalse(cancelled.get());
+		second.cancel();
+		assertTrue(cancelled.get());
+		assertTrue(closed.get());
+		assertFalse(sharedDownload.isJoinable());
+	}
+
+	private SharedDownload newSharedDownload(long maximumBufferedBytes) {
+		Flux<ByteBuffer> source = Flux.range(0, NUMBER_OF_CHUNKS)
+				.map(chunk -> ByteBuffer.wrap(CONTENT, chunk * CHUNK_SIZE, CHUNK_SIZE).slice())
+				.doOnSubscribe(ignored -> subscriptions.incrementAndGet())
+				.doOnCancel(() -> cancelled.set(true));
+		return new SharedDownload(source, maximumBufferedBytes, offset -> {
+			fallbackOffsets.add(offset);
+			return Flux.just(ByteBuffer.wrap(CONTENT, (int) offset, CONTENT.length - (int) offset).slice());
+		}, () -> closed.set(true));
+	}
+
+	private static byte[] content() {
+		byte[] content = new byte[CHUNK_SIZE * NUMBER_OF_CHUNKS];
+		for (int index = 0; index < content.length; index++) {
+			content[index] = (byte) index;
+		}
+		return content;
+	}
+
+	// Reads only what the test asks for.
+	private static class Reader extends BaseSubscriber<ByteBuffer> {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		@Override
+		protected void hookOnSubscribe(Subscription subscription) {
+		}
+
+		@Override
+		protected void hookOnNext(ByteBuffer byteBuffer) {
+			byte[] chunk = new byte[byteBuffer.remaining()];
+			byteBuffer.get(chunk);
+			bytes.writeBytes(chunk);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package campidelli.file.storage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TokenBucketTest {
+
+	private static final long BYTES_PER_SECOND = 1_000_000;
+
+	@Test
+	public void testBurstOfASecond() {
+		TokenBucket tokenBucket = new TokenBucket(BYTES_PER_SECOND);
+		assertTrue(tokenBucket.isFull());
+		assertEquals(Duration.ZERO, tokenBucket.take(BYTES_PER_SECOND));
+		assertFalse(tokenBucket.isFull());
+	}
+
+	// Whoever takes from a bucket in debt waits for the debt of those before it too.
+	@Test
+	public void testDebtIsPaidInOrder() {
+		TokenBucket tokenBucket = new TokenBucket(BYTES_PER_SECOND);
+		tokenBucket.take(BYTES_PER_SECOND);
+
+		assertBetween(Duration.ofMillis(400), Duration.ofMillis(500), tokenBucket.take(BYTES_PER_SECOND / 2));
+		assertBetween(Duration.ofMillis(900), Duration.ofMillis(1000), tokenBucket.take(BYTES_PER_SECOND / 2));
+	}
+
+	@Test
+	public void testRefillsOverTime() throws InterruptedException {
+		TokenBucket tokenBucket = new TokenBucket(BYTES_PER_SECOND);
+		tokenBucket.take(BYTES_PER_SECOND + BYTES_PER_SECOND / 10);
+
+		Thread.sleep(200);
+		assertEquals(Duration.ZERO, tokenBucket.take(BYTES_PER_SECOND / 20));
+		assertFalse(tokenBucket.isFull());
+	}
+
+	private static void assertBetween(Duration minimum, Duration maximum, Duration actual) {
+		assertTrue(actual.compareTo(minimum) >= 0 && actual.compareTo(maximum) <= 0, "Delay " + actual);
+	}
+}
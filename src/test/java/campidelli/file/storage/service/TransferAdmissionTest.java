@@ -0,0 +1,119 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.AdmissionProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TransferAdmissionTest {
+
+	private static final TransferAdmission.Priority INTERACTIVE = TransferAdmission.Priority.INTERACTIVE;
+	private static final TransferAdmission.Priority BULK = TransferAdmission.Priority.BULK;
+
+	// The last of the 2 slots is kept for interactive transfers.
+	@Test
+	public void testInteractiveTransfersGoFirst() throws Exception {
+		TransferAdmission admission = newAdmission(2, 2, 1, 10, 10, 0);
+		TransferAdmission.Permit bulk = admit(admission, "a", BULK).get();
+		CompletableFuture<TransferAdmission.Permit> queuedBulk = admit(admission, "b", BULK);
+		TransferAdmission.Permit interactive = admit(admission, "b", INTERACTIVE).get();
+		CompletableFuture<TransferAdmission.Permit> queuedInteractive = admit(admission, "c", INTERACTIVE);
+		assertFalse(queuedBulk.isDone());
+		assertFalse(queuedInteractive.isDone());
+		assertEquals(2, admission.getActiveTransfers());
+		assertEquals(2, admission.getQueuedTransfers());
+
+		bulk.release();
+		bulk.release();
+		assertTrue(queuedInteractive.isDone());
+		assertFalse(queuedBulk.isDone());
+
+		interactive.release();
+		assertEquals(BULK, queuedBulk.get().getPriority());
+		assertEquals(0, admission.getQueuedTransfers());
+	}
+
+	// Waiters of a client at its limit don't hold back those of other clients.
+	@Test
+	public void testClientLimit() throws Exception {
+		TransferAdmission admission = newAdmission(3, 1, 0, 10, 10, 0);
+		TransferAdmission.Permit first = admit(admission, "a", BULK).get();
+		CompletableFuture<TransferAdmission.Permit> second = admit(admission, "a", BULK);
+		assertTrue(admit(admission, "b", BULK).isDone());
+		assertFalse(second.isDone());
+
+		first.release();
+		assertTrue(second.isDone());
+	}
+
+	@Test
+	public void testRejectedWhenTheQueuesAreFull() {
+		TransferAdmission admission = newAdmission(1, 1, 0, 2, 1, 0);
+		admit(admission, "a", BULK);
+		admit(admission, "a", BULK);
+
+		assertRejected(admit(admission, "a", BULK));
+		admit(admission, "b", BULK);
+		assertRejected(admit(admission, "c", BULK));
+	}
+
+	@Test
+	public void testCancelledWaiterLeavesTheQueue() throws Exception {
+		TransferAdmission admission = newAdmission(1, 1, 0, 10, 10, 0);
+		TransferAdmission.Permit permit = admit(admission, "a", BULK).get();
+		Disposable waiter = admission.admit("b", BULK).subscribe();
+		assertEquals(1, admission.getQueuedTransfers());
+
+		waiter.dispose();
+		assertEquals(0, admission.getQueuedTransfers());
+		permit.release();
+		assertEquals(0, admission.getActiveTransfers());
+	}
+
+	// Interactive transfers are counted in the buckets but never delayed.
+	@Test
+	public void testOnlyBulkTransfersAreShaped() throws Exception {
+		TransferAdmission admission = newAdmission(10, 10, 1, 10, 10, 1);
+		TransferAdmission.Permit interactive = admit(admission, "a", INTERACTIVE).get();
+		TransferAdmission.Permit bulk = admit(admission, "a", BULK).get();
+		assertFalse(interactive.isShaped());
+		assertTrue(bulk.isShaped());
+
+		interactive.acquire(1024 * 1024).block(Duration.ofMillis(50));
+		long start = System.nanoTime();
+		bulk.acquire(100 * 1024).block();
+		assertTrue(System.nanoTime() - start >= Duration.ofMillis(80).toNanos());
+	}
+
+	private static CompletableFuture<TransferAdmission.Permit> admit(TransferAdmission admission, String clientId,
+																	 TransferAdmission.Priority priority) {
+		return admission.admit(clientId, priority).toFuture();
+	}
+
+	private static void assertRejected(CompletableFuture<TransferAdmission.Permit> permit) {
+		ExecutionException e = assertThrows(ExecutionException.class, permit::get);
+		TransferAdmission.RejectedException rejected = assertInstanceOf(TransferAdmission.RejectedException.class, e.getCause());
+		assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatusCode());
+		assertEquals("2", rejected.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+	}
+
+	private static TransferAdmission newAdmission(int maximumConcurrentTransfers, int maximumConcurrentTransfersPerClient,
+												  int reservedInteractiveTransfers, int maximumQueuedTransfers,
+												  int maximumQueuedTransfersPerClient, int bytesPerSecondInMb) {
+		return new TransferAdmission(new AdmissionProperties(true, maximumConcurrentTransfers,
+				maximumConcurrentTransfersPerClient, reservedInteractiveTransfers, maximumQueuedTransfers,
+				maximumQueuedTransfersPerClient, bytesPerSecondInMb, 0, 1024, Duration.ofSeconds(2), "X-Client-Id",
+				Duration.ofMinutes(1)));
+	}
+}
@@ -0,0 +1,77 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.dto.TransferProgress;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TransferRegistryTest {
+
+	private final TransferRegistry transferRegistry = new TransferRegistry();
+
+	@Test
+	public void testTrackedUploadIsListedWithTheBytesConsumed() throws Exception {
+		Sinks.Many<DataBuffer> content = Sinks.many().unicast().onBackpressureBuffer();
+		CompletableFuture<Long> upload = transferRegistry.track("sherlock.pdf", 3000L, transfer -> transfer.count(content.asFlux())
+						.map(DataBuffer::readableByteCount)
+						.reduce(0L, Long::sum))
+				.toFuture();
+
+		content.tryEmitNext(buffer(1000));
+		content.tryEmitNext(buffer(1000));
+		TransferProgress progress = transferRegistry.list().get(0);
+		assertEquals("sherlock.pdf", progress.getKey());
+		assertEquals(2000, progress.getTransferredBytes());
+		assertEquals(3000L, progress.getTotalBytes());
+
+		content.tryEmitNext(buffer(1000));
+		content.tryEmitComplete();
+		assertEquals(3000L, upload.get());
+		assertTrue(transferRegistry.list().isEmpty());
+	}
+
+	@Test
+	public void testRateIsMeasuredAsTheBytesCome() throws Exception {
+		Sinks.Many<DataBuffer> content = Sinks.many().unicast().onBackpressureBuffer();
+		transferRegistry.track("sherlock.pdf", null, transfer -> transfer.count(content.asFlux()).then())
+				.subscribe();
+
+		content.tryEmitNext(buffer(1000));
+		Thread.sleep(TransferRegistry.PROGRESS_INTERVAL.toMillis() + 100);
+		content.tryEmitNext(buffer(1000));
+		TransferProgress progress = transferRegistry.list().get(0);
+		assertTrue(progress.getBytesPerSecond() > 0, "Rate " + progress.getBytesPerSecond());
+		assertNull(progress.getEtaInSeconds());
+		content.tryEmitComplete();
+	}
+
+	@Test
+	public void testCancelledUploadFails() {
+		Mono<Void> upload = transferRegistry.track("sherlock.pdf", null, transfer -> Mono.<Void>never());
+		CompletableFuture<Void> future = upload.toFuture();
+
+		String id = transferRegistry.list().get(0).getId();
+		assertEquals("cancelled", transferRegistry.cancel(id).getState());
+
+		ResponseStatusException e = assertThrows(ResponseStatusException.class,
+				() -> Mono.fromFuture(future).block(Duration.ofSeconds(1)));
+		assertEquals(HttpStatus.CONFLICT, e.getStatusCode());
+		assertTrue(transferRegistry.list().isEmpty());
+	}
+
+	private static DataBuffer buffer(int length) {
+		return DefaultDataBufferFactory.sharedInstance.wrap(new byte[length]);
+	}
+}
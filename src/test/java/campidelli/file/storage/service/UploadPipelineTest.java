@@ -0,0 +1,273 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.UploadProperties;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.http.async.SdkHttpContentPublisher;
+import software.amazon.awssdk.services.s3.internal.crt.S3CrtRequestBodyStreamAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UploadPipelineTest {
+
+	private static final int KB = 1024;
+	private static final int MB = 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * KB;
+
+	private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+	private final List<NettyDataBuffer> dataBuffers = new ArrayList<>();
+
+	@Test
+	public void testBackendReadingDuplicates() {
+		UploadPipeline uploadPipeline = new UploadPipeline(new UploadProperties(1024, 1024, 64));
+		byte[] content = bytes(8 * MB);
+		AtomicLong maximumInFlightBytes = new AtomicLong();
+
+		byte[] uploaded = uploadPipeline.upload(toDataBuffers(content), byteBuffers -> Mono.fromCallable(() -> {
+					StoringBackend backend = new StoringBackend(MB, dataBuffers);
+					byteBuffers.subscribe(backend);
+					return backend.readAll(() -> maximumInFlightBytes.accumulateAndGet(uploadPipeline.getInFlightBytes(), Math::max));
+				}).subscribeOn(Schedulers.boundedElastic()))
+				.block(Duration.ofSeconds(30));
+
+		assertArrayEquals(content, uploaded);
+		assertTrue(maximumInFlightBytes.get() <= 2 * MB + BUFFER_SIZE, "In flight: " + maximumInFlightBytes.get());
+		assertAllReleased(uploadPipeline);
+	}
+
+	// The buffers are released on the assumption that the CRT client only asks for more once it holds less than
+	// 'backendBufferSizeInKb' unread bytes. It's checked against the adapter of the SDK in use, whose native side
+	// copies the body into buffers of its own with sendRequestBody: no buffer may be released before it's copied.
+	@Test
+	public void testCrtClientReadingTheBody() {
+		UploadPipeline uploadPipeline = new UploadPipeline(new UploadProperties(1024, 1024, 64));
+		byte[] content = bytes(8 * MB);
+
+		byte[] uploaded = uploadPipeline.upload(toDataBuffers(content), byteBuffers -> Mono.fromCallable(() -> {
+					S3CrtRequestBodyStreamAdapter requestBody =
+							new S3CrtRequestBodyStreamAdapter(new ContentPublisher(byteBuffers, content.length));
+					ByteArrayOutputStream sent = new ByteArrayOutputStream();
+					// Copies that don't line up with the buffers of the upload.
+					ByteBuffer chunk = ByteBuffer.allocate(8 * KB + 1);
+					boolean done = false;
+					while (!done) {
+						chunk.clear();
+						done = requestBody.sendRequestBody(chunk);
+						sent.write(chunk.array(), 0, chunk.position());
+						assertOnlySentReleased(sent.size());
+					}
+					return sent.toByteArray();
+				}).subscribeOn(Schedulers.boundedElastic()))
+				.block(Duration.ofSeconds(30));
+
+		assertArrayEquals(content, uploaded);
+		assertAllReleased(uploadPipeline);
+	}
+
+	@Test
+	public void testBackendAskingForEverything() {
+		UploadPipeline uploadPipeline = new UploadPipeline(new UploadProperties(1024, 1024, 1));
+		byte[] content = bytes(4 * MB);
+
+		byte[] uploaded = uploadPipeline.upload(toDataBuffers(content), byteBuffers -> byteBuffers
+						.collectList()
+						.map(UploadPipelineTest::concat))
+				.block(Duration.ofSeconds(30));
+
+		assertArrayEquals(content, uploaded);
+		assertAllReleased(uploadPipeline);
+	}
+
+	@Test
+	public void testUploadsWaitForEachOther() {
+		UploadPipeline uploadPipeline = new UploadPipeline(new UploadProperties(256, 1024, 1));
+		byte[] content = bytes(4 * MB);
+
+		List<byte[]> uploaded = Flux.range(0, 4)
+				.flatMap(ignored -> uploadPipeline.upload(toDataBuffers(content), byteBuffers -> Mono.fromCallable(() -> {
+							StoringBackend backend = new StoringBackend(256 * KB, null);
+							byteBuffers.subscribe(backend);
+							return backend.readAll(() -> { });
+						}).subscribeOn(Schedulers.boundedElastic())))
+				.collectList()
+				.block(Duration.ofSeconds(30));
+
+		assertEquals(4, uploaded.size());
+		uploaded.forEach(bytes -> assertArrayEquals(content, bytes));
+		assertAllReleased(uploadPipeline);
+	}
+
+	@Test
+	public void testReleasedWhenCancelled() {
+		UploadPipeline uploadPipeline = new UploadPipeline(new UploadProperties(1024, 1024, 64));
+
+		uploadPipeline.upload(toDataBuffers(bytes(MB)), byteBuffers -> byteBuffers.take(2).then())
+				.block(Duration.ofSeconds(30));
+
+		assertAllReleased(uploadPipeline);
+	}
+
+	private Flux<DataBuffer> toDataBuffers(byte[] content) {
+		return Flux.range(0, content.length / BUFFER_SIZE)
+				.map(index -> {
+					byte[] bytes = new byte[BUFFER_SIZE];
+					System.arraycopy(content, index * BUFFER_SIZE, bytes, 0, BUFFER_SIZE);
+					return dataBuffer(bytes);
+				});
+	}
+
+	private DataBuffer dataBuffer(byte[] bytes) {
+		NettyDataBuffer dataBuffer = bufferFactory.allocateBuffer(bytes.length);
+		dataBuffer.write(bytes);
+		synchronized (dataBuffers) {
+			dataBuffers.add(dataBuffer);
+		}
+		return dataBuffer;
+	}
+
+	private void assertAllReleased(UploadPipeline uploadPipeline) {
+		assertEquals(0, uploadPipeline.getInFlightBytes());
+		synchronized (dataBuffers) {
+			dataBuffers.forEach(dataBuffer -> assertEquals(0, dataBuffer.getNativeBuffer().refCnt()));
+		}
+	}
+
+	private void assertOnlySentReleased(long sentBytes) {
+		synchronized (dataBuffers) {
+			for (int index = 0; index < dataBuffers.size(); index++) {
+				long end = (long) (index + 1) * BUFFER_SIZE;
+				assertTrue(dataBuffers.get(index).getNativeBuffer().refCnt() > 0 || end <= sentBytes,
+						"Buffer " + index + " was released before it was sent");
+			}
+		}
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31 + i / 251);
+		}
+		return bytes;
+	}
+
+	private static byte[] concat(List<ByteBuffer> byteBuffers) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		for (ByteBuffer byteBuffer : byteBuffers) {
+			byte[] bytes = new byte[byteBuffer.remaining()];
+			byteBuffer.get(bytes);
+			content.writeBytes(bytes);
+		}
+		return content.toByteArray();
+	}
+
+	// The request body as the CRT client gets it from AsyncRequestBody.fromPublisher.
+	private record ContentPublisher(Publisher<ByteBuffer> content, long length) implements SdkHttpContentPublisher {
+
+		@Override
+		public Optional<Long> contentLength() {
+			return Optional.of(length);
+		}
+
+		@Override
+		public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+			content.subscribe(subscriber);
+		}
+	}
+
+	// Behaves like the subscriber of the CRT client: it stores duplicates of the buffers, so their positions never
+	// move, and asks for one more every time a buffer arrives or is read while it holds less than its minimum.
+	// When the DataBuffers of the upload are given, it checks that each one is still held while it's read.
+	private static class StoringBackend implements Subscriber<ByteBuffer> {
+
+		private final long minimumBytesBuffered;
+		private final List<NettyDataBuffer> sources;
+		private final BlockingQueue<ByteBuffer> stored = new LinkedBlockingQueue<>();
+		private final AtomicLong bytesBuffered = new AtomicLong();
+		private volatile Subscription subscription;
+		private volatile boolean done;
+		private volatile Throwable error;
+
+		StoringBackend(long minimumBytesBuffered, List<NettyDataBuffer> sources) {
+			this.minimumBytesBuffered = minimumBytesBuffered;
+			this.sources = sources;
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(ByteBuffer byteBuffer) {
+			stored.add(byteBuffer.duplicate());
+			maybeRequestMore(bytesBuffered.addAndGet(byteBuffer.remaining()));
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			done = true;
+		}
+
+		@Override
+		public void onComplete() {
+			done = true;
+		}
+
+		// A buffer released before it's read could already have been reused.
+		byte[] readAll(Runnable onRead) throws InterruptedException {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			int index = 0;
+			while (!done || !stored.isEmpty()) {
+				ByteBuffer byteBuffer = stored.poll(10, TimeUnit.MILLISECONDS);
+				if (byteBuffer == null) {
+					continue;
+				}
+				onRead.run();
+				if (sources != null) {
+					synchronized (sources) {
+						assertTrue(sources.get(index).getNativeBuffer().refCnt() > 0, "Buffer " + index + " was released");
+					}
+				}
+				byte[] bytes = new byte[byteBuffer.remaining()];
+				byteBuffer.get(bytes);
+				content.writeBytes(bytes);
+				index++;
+				maybeRequestMore(bytesBuffered.addAndGet(-bytes.length));
+			}
+			if (error != null) {
+				throw new IllegalStateException(error);
+			}
+			return content.toByteArray();
+		}
+
+		private void maybeRequestMore(long currentlyBuffered) {
+			if (currentlyBuffered < minimumBytesBuffered) {
+				subscription.request(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package campidelli.file.storage.service;
+
+import campidelli.file.storage.config.CompressionProperties;
+import campidelli.file.storage.config.S3Properties;
+import campidelli.file.storage.dto.FileDownload;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ZipArchiveServiceTest {
+
+	@Test
+	public void testKeysAskedForTwiceAreWrittenOnce() throws IOException {
+		S3AsyncFileRepositoryService fileRepositoryService = mock(S3AsyncFileRepositoryService.class);
+		when(fileRepositoryService.getFile(anyString())).thenAnswer(invocation -> Mono.just(FileDownload.builder()
+				.name(invocation.getArgument(0))
+				.content(Flux.just(ByteBuffer.wrap(invocation.<String>getArgument(0).getBytes(StandardCharsets.UTF_8))))
+				.build()));
+		ZipArchiveService zipArchiveService = new ZipArchiveService(fileRepositoryService,
+				new S3Properties("ap-southeast-2", null, "bucket", false, false, 50, null, 8, 4, null, null),
+				new CompressionService(new CompressionProperties(false, 6, List.of())));
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		zipArchiveService.zipFiles(Flux.just("sherlock.pdf", "watson.pdf", "sherlock.pdf"))
+				.toIterable()
+				.forEach(byteBuffer -> archive.write(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+						byteBuffer.remaining()));
+
+		List<String> entries = new ArrayList<>();
+		try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+			for (ZipEntry entry = zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+				assertEquals(entry.getName(), new String(zipInputStream.readAllBytes(), StandardCharsets.UTF_8));
+				entries.add(entry.getName());
+			}
+		}
+		assertEquals(List.of("sherlock.pdf", "watson.pdf"), entries);
+	}
+}